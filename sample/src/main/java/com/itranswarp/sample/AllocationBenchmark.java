@@ -0,0 +1,57 @@
+package com.itranswarp.sample;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.slf4j.LoggerFactory;
+
+import com.itranswarp.eth.smt.MemoryTreeStore;
+import com.itranswarp.eth.smt.PersistSparseMerkleTree;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Measure bytes allocated and time of each update of existing addresses.
+ *
+ * Usage: AllocationBenchmark [addresses] [rounds]
+ *
+ * Allocated bytes are read from the HotSpot thread MXBean, so it must be run on
+ * a HotSpot JVM.
+ */
+public class AllocationBenchmark {
+
+    public static void main(String[] args) {
+        // debug log is not part of hot path:
+        Logger logger = (Logger) LoggerFactory.getLogger("com.itranswarp.eth.smt");
+        logger.setLevel(Level.WARN);
+
+        int addressCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        byte[][] values = new byte[8][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ("value-" + i).repeat(4).getBytes();
+        }
+        Random random = new Random(0x123456789abcL);
+        var psmt = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+        byte[][] addresses = new byte[addressCount][];
+        for (int i = 0; i < addressCount; i++) {
+            addresses[i] = new byte[20];
+            random.nextBytes(addresses[i]);
+            psmt.update(addresses[i], values[i % 8]);
+        }
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        // 第一轮为预热:
+        for (int round = 0; round < rounds; round++) {
+            long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < addressCount; i++) {
+                psmt.update(addresses[i], values[(i + round + 1) % 8]);
+            }
+            long time = System.nanoTime() - start;
+            long bytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+            System.out.printf("round %d: %d bytes/update, %d ns/update\n", round, bytes / addressCount, time / addressCount);
+        }
+    }
+}
@@ -1,89 +1,404 @@
 package com.itranswarp.sample;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import org.bouncycastle.jcajce.provider.digest.Keccak;
 import org.slf4j.LoggerFactory;
 
+import com.itranswarp.eth.smt.LeafEntry;
 import com.itranswarp.eth.smt.MemoryTreeStore;
+import com.itranswarp.eth.smt.MerkleProof;
 import com.itranswarp.eth.smt.PersistSparseMerkleTree;
+import com.itranswarp.eth.smt.TreeOptions;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 
+/**
+ * Generate proof of reserves from a CSV of user balances.
+ *
+ * Usage: Proof [users.csv] [output-dir]
+ *
+ * Each line of users.csv is "userId,balance". Memory is bounded by the leafs of
+ * one partition instead of all users, because the tree is built in 256
+ * partitions by the first byte of address:
+ *
+ * 1. Users are read in batches, and leafs derived in parallel are appended to
+ * partition files.
+ *
+ * 2. Each partition is built as a tree of its own, which has the hash of the
+ * partition node at depth 8, and siblings of its leafs below depth 8. Leafs
+ * are appended to bucket files by user with their siblings.
+ *
+ * 3. The top 8 levels are combined from the hashes of 256 partitions, and
+ * proofs of users in each bucket are completed by siblings of the top levels.
+ *
+ * Outputs are written incrementally:
+ *
+ * leafs.csv: address and balance of all leafs ordered by address.
+ *
+ * proofs/[userId % 1000]/[userId].json: merkle proof of each user.
+ *
+ * Partition and bucket files are written to output-dir/tmp and deleted when
+ * used.
+ */
 public class Proof {
 
-    private static Random random = new Random(12345678L);
+    static final int BATCH_SIZE = 10_000;
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+    static final int MAX_PENDING_BATCHES = THREADS * 2;
 
-    public static void main(String[] args) {
+    static final int PARTITION_BITS = 8;
+    static final int PARTITIONS = 1 << PARTITION_BITS;
+    static final int BUCKETS = 256;
+
+    static final String SNAPSHOT_TIME = "2022-11-14T09:19:20";
+
+    public static void main(String[] args) throws IOException {
         ch.qos.logback.classic.Logger logger = (Logger) LoggerFactory.getLogger("com.itranswarp.eth.smt");
         logger.setLevel(Level.WARN);
 
-        // 用户ID -> 资产余额:
-        Map<Long, BigDecimal> userAssets = Map.of( //
-                12345L, new BigDecimal("12.34"), //
-                23456L, new BigDecimal("23.45"), //
-                34567L, new BigDecimal("34.56"), //
-                45678L, new BigDecimal("45.67"), //
-                56789L, new BigDecimal("567.89")); //
-
-        String snapshotTime = "2022-11-14T09:19:20";
-
-        var store = new MemoryTreeStore();
-        var psmt = new PersistSparseMerkleTree(store, null);
-        List<LeafItem> leafs = new ArrayList<>();
-        // 计算总额:
-        BigDecimal total = BigDecimal.ZERO;
-
-        // 用户ID排序:
-        List<Long> keys = new ArrayList<>(userAssets.keySet());
-        Collections.sort(keys);
-        for (Long userId : keys) {
-            BigDecimal balance = userAssets.get(userId);
-            String secretKey = "random-" + userId + snapshotTime;
-            // 添加到证明:
-            putUserAsset(psmt, leafs, userId, secretKey, balance);
-            total = total.add(balance);
-        }
-        // 生成CSV:
-        System.out.println("-- generated merkle proof --");
-        leafs.sort((l1, l2) -> l1.address.compareTo(l2.address));
-        System.out.printf("address, balance\n");
-        leafs.forEach((leaf) -> {
-            System.out.printf("%s, %s\n", leaf.address, leaf.balance);
-        });
-        byte[] root = psmt.getMerkleRoot();
-        System.out.printf("total = %s, merkle root = %64x\n", total.toPlainString(), new BigInteger(1, root));
-    }
-
-    private static void putUserAsset(PersistSparseMerkleTree merkle, List<LeafItem> leafs, Long userId, String secretKey, BigDecimal balance) {
-        System.out.printf("add user asset: %d = %s\n", userId, balance.toPlainString());
+        Path output = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("proof-");
+        Path input = args.length > 0 ? Path.of(args[0]) : writeSampleUsers(output.resolve("users.csv"));
+        Path tmp = output.resolve("tmp");
+        Files.createDirectories(tmp);
+        System.out.printf("read users from %s, write proofs to %s\n", input, output);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // 1. 按地址首字节分区写入临时文件:
+            BigDecimal[] total = { BigDecimal.ZERO };
+            long[] users = { 0 };
+            BufferedWriter[] partitions = openWriters(tmp, "partition", PARTITIONS);
+            try {
+                streamUsers(input, executor, (batch) -> {
+                    for (UserLeafs user : batch) {
+                        for (int i = 0; i < user.leafs.size(); i++) {
+                            LeafItem leaf = user.leafs.get(i);
+                            write(partitions[partitionOf(leaf.address)], user.userId + "," + user.balance.toPlainString() + "," + i + ","
+                                    + HexFormat.of().formatHex(leaf.address) + "," + leaf.balance + "\n");
+                        }
+                        total[0] = total[0].add(user.balance);
+                    }
+                    users[0] += batch.size();
+                    System.out.printf("partitioned %d users\n", users[0]);
+                });
+            } finally {
+                closeWriters(partitions);
+            }
+
+            // 2. 逐个分区构建默克尔树, 按地址顺序生成CSV:
+            // 空树的证明提供每层的默认哈希:
+            MerkleProof empty = new PersistSparseMerkleTree(new MemoryTreeStore(), null).getProof(MIN_ADDRESS);
+            byte[][] partitionHashes = new byte[PARTITIONS][];
+            BufferedWriter[] buckets = openWriters(tmp, "bucket", BUCKETS);
+            try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("leafs.csv"))) {
+                writer.write("address,balance\n");
+                for (int p = 0; p < PARTITIONS; p++) {
+                    partitionHashes[p] = buildPartition(partitionFile(tmp, "partition", p), writer, buckets);
+                }
+            } finally {
+                closeWriters(buckets);
+            }
+
+            // 3. 由分区哈希计算顶部8层, levels[depth]为该深度的节点哈希, null表示默认哈希:
+            byte[][][] levels = new byte[PARTITION_BITS + 1][][];
+            levels[PARTITION_BITS] = partitionHashes;
+            for (int depth = PARTITION_BITS - 1; depth >= 0; depth--) {
+                byte[][] children = levels[depth + 1];
+                byte[] defaultHash = empty.getSibling(depth + 1);
+                levels[depth] = new byte[children.length / 2][];
+                for (int i = 0; i < levels[depth].length; i++) {
+                    byte[] left = children[i * 2];
+                    byte[] right = children[i * 2 + 1];
+                    if (left != null || right != null) {
+                        levels[depth][i] = keccak(left != null ? left : defaultHash, right != null ? right : defaultHash);
+                    }
+                }
+            }
+            byte[] root = levels[0][0] != null ? levels[0][0] : empty.calculateMerkleRoot();
+            String rootHex = HexFormat.of().formatHex(root);
+
+            // 4. 生成每个用户的证明:
+            for (int b = 0; b < BUCKETS; b++) {
+                writeBucketProofs(output, partitionFile(tmp, "bucket", b), levels, rootHex);
+            }
+            Files.delete(tmp);
+            System.out.printf("users = %d, total = %s, merkle root = %s\n", users[0], total[0].toPlainString(), rootHex);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Build tree of a partition, write its leafs ordered by address, append its
+     * leafs with siblings below depth 8 to buckets, and return the hash of
+     * partition node at depth 8, or null if partition is empty.
+     */
+    static byte[] buildPartition(Path file, BufferedWriter leafsWriter, BufferedWriter[] buckets) throws IOException {
+        List<String[]> items = new ArrayList<>();
+        List<byte[]> addresses = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // userId,balance,index,address,leafBalance:
+                String[] item = line.split(",");
+                items.add(item);
+                addresses.add(HexFormat.of().parseHex(item[3]));
+                values.add(item[4].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Files.delete(file);
+        if (items.isEmpty()) {
+            return null;
+        }
+        // 分区树在处理完后丢弃:
+        var psmt = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.lazyHashing(true));
+        psmt.update(addresses, values);
+        psmt.commit();
+        Iterator<LeafEntry> it = psmt.scan(MIN_ADDRESS, MAX_ADDRESS);
+        while (it.hasNext()) {
+            LeafEntry leaf = it.next();
+            leafsWriter.write("0x" + leaf.address() + "," + new String(leaf.dataValue(), StandardCharsets.UTF_8) + "\n");
+        }
+        byte[] partitionHash = null;
+        for (int i = 0; i < items.size(); i++) {
+            String[] item = items.get(i);
+            MerkleProof proof = psmt.getProof(addresses.get(i));
+            StringBuilder sb = new StringBuilder(2048);
+            sb.append(String.join(",", item)).append(',');
+            // 深度8以下的兄弟节点, 默认哈希用空字符串表示:
+            byte[][] siblings = proof.siblings();
+            for (int h = PARTITION_BITS; h < siblings.length; h++) {
+                sb.append(h == PARTITION_BITS ? "" : " ");
+                sb.append(siblings[h] == null ? "" : HexFormat.of().formatHex(siblings[h]));
+            }
+            sb.append('\n');
+            buckets[(int) (Long.parseLong(item[0]) % BUCKETS)].write(sb.toString());
+            if (partitionHash == null) {
+                partitionHash = partitionHash(proof);
+            }
+        }
+        return partitionHash;
+    }
+
+    /**
+     * Calculate hash of partition node at depth 8 by the proof of a leaf in
+     * partition.
+     */
+    static byte[] partitionHash(MerkleProof proof) {
+        byte[] address = HexFormat.of().parseHex(proof.address().toString());
+        byte[] hash = keccak(proof.dataValue());
+        for (int height = proof.siblings().length; height > PARTITION_BITS; height--) {
+            byte[] sibling = proof.getSibling(height);
+            int bit = (address[(height - 1) / 8] >> (7 - (height - 1) % 8)) & 1;
+            hash = bit == 0 ? keccak(hash, sibling) : keccak(sibling, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Write proofs of users in a bucket. Siblings of the top levels are filled
+     * by the partition nodes.
+     */
+    static void writeBucketProofs(Path output, Path file, byte[][][] levels, String rootHex) throws IOException {
+        // userId -> leafs of user:
+        Map<Long, List<String[]>> users = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] item = line.split(",");
+                users.computeIfAbsent(Long.parseLong(item[0]), (k) -> new ArrayList<>()).add(item);
+            }
+        }
+        Files.delete(file);
+        for (List<String[]> items : users.values()) {
+            items.sort(Comparator.comparingInt((String[] item) -> Integer.parseInt(item[2])));
+            writeUserProof(output, levels, rootHex, items);
+        }
+    }
+
+    static void writeUserProof(Path output, byte[][][] levels, String rootHex, List<String[]> items) {
+        long userId = Long.parseLong(items.get(0)[0]);
+        Path dir = output.resolve("proofs").resolve(String.valueOf(userId % 1000));
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\n  \"userId\": ").append(userId);
+        sb.append(",\n  \"balance\": \"").append(items.get(0)[1]);
+        sb.append("\",\n  \"root\": \"").append(rootHex);
+        sb.append("\",\n  \"leafs\": [");
+        for (int i = 0; i < items.size(); i++) {
+            String[] item = items.get(i);
+            int partition = Integer.parseInt(item[3].substring(0, 2), 16);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\n      \"address\": \"0x").append(item[3]);
+            sb.append("\",\n      \"balance\": \"").append(item[4]);
+            // 默认哈希用null表示:
+            sb.append("\",\n      \"siblings\": [");
+            for (int h = 1; h <= PARTITION_BITS; h++) {
+                byte[] sibling = levels[h][(partition >> (PARTITION_BITS - h)) ^ 1];
+                sb.append(h == 1 ? "" : ", ");
+                sb.append(sibling == null ? "null" : "\"" + HexFormat.of().formatHex(sibling) + "\"");
+            }
+            for (String sibling : item[5].split(" ", -1)) {
+                sb.append(", ");
+                sb.append(sibling.isEmpty() ? "null" : "\"" + sibling + "\"");
+            }
+            sb.append("]\n    }");
+        }
+        sb.append("\n  ]\n}\n");
+        try {
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve(userId + ".json"), sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read users in batches, derive leafs of each batch in parallel, and consume
+     * batches in the order of input.
+     */
+    static void streamUsers(Path input, ExecutorService executor, Consumer<List<UserLeafs>> consumer) throws IOException {
+        Deque<CompletableFuture<List<UserLeafs>>> pending = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(input)) {
+            List<String> lines = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                    continue; // skip header or empty line
+                }
+                lines.add(line);
+                if (lines.size() == BATCH_SIZE) {
+                    pending.add(deriveBatch(lines, executor));
+                    lines = new ArrayList<>(BATCH_SIZE);
+                    if (pending.size() >= MAX_PENDING_BATCHES) {
+                        consumer.accept(pending.poll().join());
+                    }
+                }
+            }
+            if (!lines.isEmpty()) {
+                pending.add(deriveBatch(lines, executor));
+            }
+        }
+        while (!pending.isEmpty()) {
+            consumer.accept(pending.poll().join());
+        }
+    }
+
+    static CompletableFuture<List<UserLeafs>> deriveBatch(List<String> lines, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<UserLeafs> batch = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                int n = line.indexOf(',');
+                if (n <= 0) {
+                    throw new IllegalArgumentException("Invalid line: " + line);
+                }
+                long userId = Long.parseLong(line.substring(0, n).strip());
+                BigDecimal balance = new BigDecimal(line.substring(n + 1).strip());
+                batch.add(deriveUserLeafs(userId, balance));
+            }
+            return batch;
+        }, executor);
+    }
+
+    static UserLeafs deriveUserLeafs(long userId, BigDecimal balance) {
+        String secretKey = "random-" + userId + SNAPSHOT_TIME;
         // 用户ID+随机数 -> 确定性地址:
         byte[] address = userHash(userId, secretKey);
-        // 随机分割用户资产为若干份:
-        List<BigDecimal> parts = randomSplit(balance);
+        // 随机分割用户资产为若干份, 随机数由地址确定, 保证可重复生成:
+        Random random = new Random(ByteBuffer.wrap(address).getLong());
+        List<BigDecimal> parts = randomSplit(random, balance);
+        List<LeafItem> leafs = new ArrayList<>(parts.size());
         for (BigDecimal part : parts) {
-            LeafItem leaf = new LeafItem(HexFormat.of().formatHex(address), part.toPlainString());
-            System.out.printf("  set %s: %s\n", leaf.address, leaf.balance);
-            merkle.update(address, leaf.balance.getBytes());
+            leafs.add(new LeafItem(address, part.toPlainString()));
             // 下一个确定性地址:
             address = nextAddress(address, secretKey);
-            leafs.add(leaf);
+        }
+        return new UserLeafs(userId, balance, leafs);
+    }
+
+    static int partitionOf(byte[] address) {
+        return address[0] & 0xff;
+    }
+
+    static Path partitionFile(Path tmp, String prefix, int index) {
+        return tmp.resolve(prefix + "-" + index + ".csv");
+    }
+
+    static BufferedWriter[] openWriters(Path tmp, String prefix, int n) throws IOException {
+        BufferedWriter[] writers = new BufferedWriter[n];
+        for (int i = 0; i < n; i++) {
+            writers[i] = Files.newBufferedWriter(partitionFile(tmp, prefix, i));
+        }
+        return writers;
+    }
+
+    static void closeWriters(BufferedWriter[] writers) throws IOException {
+        for (BufferedWriter writer : writers) {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    static void write(BufferedWriter writer, String line) {
+        try {
+            writer.write(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    static byte[] keccak(byte[]... inputs) {
+        Keccak.DigestKeccak kecc = new Keccak.Digest256();
+        for (byte[] input : inputs) {
+            kecc.update(input);
+        }
+        return kecc.digest();
+    }
+
+    static Path writeSampleUsers(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        // 用户ID -> 资产余额:
+        Files.writeString(file, """
+                userId,balance
+                12345,12.34
+                23456,23.45
+                34567,34.56
+                45678,45.67
+                56789,567.89
+                """);
+        return file;
+    }
+
     // 按不同资产规模分割为N份:
-    private static List<BigDecimal> randomSplit(BigDecimal balance) {
+    private static List<BigDecimal> randomSplit(Random random, BigDecimal balance) {
         List<BigDecimal> list = new ArrayList<>();
         int split = 0;
         if (balance.compareTo(BD_1000) >= 0) {
@@ -95,7 +410,7 @@ public class Proof {
         }
         BigDecimal left = balance;
         while (list.size() < split) {
-            BigDecimal r = randomBD(left);
+            BigDecimal r = randomBD(random, left);
             list.add(r);
             left = left.subtract(r);
         }
@@ -103,7 +418,7 @@ public class Proof {
         return list;
     }
 
-    private static BigDecimal randomBD(BigDecimal max) {
+    private static BigDecimal randomBD(Random random, BigDecimal max) {
         double d = max.doubleValue() / 4;
         return new BigDecimal(random.nextDouble(d, d * 2)).setScale(8, RoundingMode.DOWN);
     }
@@ -123,16 +438,35 @@ public class Proof {
         return Arrays.copyOfRange(kecc.digest(), 12, 32);
     }
 
+    private static final byte[] MIN_ADDRESS = new byte[20];
+    private static final byte[] MAX_ADDRESS = new byte[20];
+
+    static {
+        Arrays.fill(MAX_ADDRESS, (byte) 0xff);
+    }
+
     private static final BigDecimal BD_10 = new BigDecimal("10");
     private static final BigDecimal BD_100 = new BigDecimal("100");
     private static final BigDecimal BD_1000 = new BigDecimal("1000");
 }
 
+final class UserLeafs {
+    final long userId;
+    final BigDecimal balance;
+    final List<LeafItem> leafs;
+
+    public UserLeafs(long userId, BigDecimal balance, List<LeafItem> leafs) {
+        this.userId = userId;
+        this.balance = balance;
+        this.leafs = leafs;
+    }
+}
+
 final class LeafItem {
-    final String address;
+    final byte[] address;
     final String balance;
 
-    public LeafItem(String address, String balance) {
+    public LeafItem(byte[] address, String balance) {
         this.address = address;
         this.balance = balance;
     }
@@ -22,7 +22,7 @@ public class State {
             psmt.update(address2, "addr-2".getBytes());
             // addr-1:
             System.out.printf("%s = %s\n", address1, new String(psmt.getLeafData(address1)));
-            snapshot = store.copy();
+            snapshot = store.snapshot();
             historyRoot = psmt.getMerkleRoot();
             // 3de46f9a...
             System.out.printf("currnt root = %40x\n", new BigInteger(1, psmt.getMerkleRoot()));
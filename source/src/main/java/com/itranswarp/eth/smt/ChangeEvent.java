@@ -0,0 +1,25 @@
+package com.itranswarp.eth.smt;
+
+import java.util.List;
+
+/**
+ * An immutable event published after each committed version of sparse merkle
+ * tree, with changed leafs in the order of first update and nodes written to
+ * store.
+ */
+public record ChangeEvent(long number, byte[] rootHash, List<LeafChange> leafChanges, List<PersistNode> nodes) {
+
+    /**
+     * Construct a change event with unmodifiable copies of lists.
+     */
+    public ChangeEvent {
+        leafChanges = List.copyOf(leafChanges);
+        nodes = List.copyOf(nodes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChangeEvent [number=%s, rootHash=%s, leafChanges=%s, nodes=%s]", number, SmtUtils.toHexString(rootHash), leafChanges.size(),
+                nodes.size());
+    }
+}
@@ -0,0 +1,128 @@
+package com.itranswarp.eth.smt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A subscription of change events backed by a bounded ring buffer. Tree never
+ * waits for consumer: when the buffer is full, an event is dropped by the
+ * overflow policy and counted as dropped, so consumer can detect the gap by
+ * event number and resync by diff of roots.
+ */
+public class ChangeSubscription implements AutoCloseable {
+
+    /**
+     * Policy when buffer is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Drop the oldest event in buffer to keep the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop the new event.
+         */
+        DROP_NEWEST;
+    }
+
+    private final List<ChangeSubscription> subscriptions;
+    private final ChangeEvent[] buffer;
+    private final OverflowPolicy policy;
+
+    /**
+     * Index of the next event to poll, and index of the next event to offer.
+     */
+    private long head = 0;
+    private long tail = 0;
+    private long dropped = 0;
+
+    ChangeSubscription(List<ChangeSubscription> subscriptions, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.subscriptions = subscriptions;
+        this.buffer = new ChangeEvent[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Offer event without waiting, called by tree after commit.
+     */
+    synchronized void offer(ChangeEvent event) {
+        if (this.tail - this.head == this.buffer.length) {
+            this.dropped++;
+            if (this.policy == OverflowPolicy.DROP_NEWEST) {
+                return;
+            }
+            this.buffer[(int) (this.head % this.buffer.length)] = null;
+            this.head++;
+        }
+        this.buffer[(int) (this.tail % this.buffer.length)] = event;
+        this.tail++;
+        notifyAll();
+    }
+
+    /**
+     * Poll the next event.
+     * 
+     * @return Change event, or null if no event.
+     */
+    public synchronized ChangeEvent poll() {
+        if (this.head == this.tail) {
+            return null;
+        }
+        int index = (int) (this.head % this.buffer.length);
+        ChangeEvent event = this.buffer[index];
+        this.buffer[index] = null;
+        this.head++;
+        return event;
+    }
+
+    /**
+     * Poll the next event, waiting up to the timeout if no event.
+     * 
+     * @param timeout Timeout.
+     * @param unit    Time unit of timeout.
+     * @return Change event, or null if timeout.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized ChangeEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.head == this.tail) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return poll();
+    }
+
+    /**
+     * Get number of events in buffer.
+     * 
+     * @return Number of events.
+     */
+    public synchronized int size() {
+        return (int) (this.tail - this.head);
+    }
+
+    /**
+     * Get number of dropped events because buffer is full.
+     * 
+     * @return Number of dropped events.
+     */
+    public synchronized long getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * Stop receiving events. Events in buffer can still be polled.
+     */
+    @Override
+    public void close() {
+        this.subscriptions.remove(this);
+    }
+}
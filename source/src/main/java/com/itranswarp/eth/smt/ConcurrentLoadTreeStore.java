@@ -0,0 +1,83 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A tree store which loads nodes of a batch concurrently from base store.
+ * 
+ * Tree loads all missing children of a node, and of the next level when
+ * rehashing a batch, by one {@link #loadAll(List, long)}. For a slow store
+ * with high latency of each load, a cold update waits about one round trip per
+ * level instead of one round trip per child. Base store must support
+ * concurrent loads.
+ */
+public class ConcurrentLoadTreeStore implements TreeStore {
+
+    private final TreeStore base;
+    private final Executor executor;
+
+    /**
+     * Construct a concurrent load tree store.
+     * 
+     * @param base     Base tree store.
+     * @param executor Executor to run loads, which should have enough threads
+     *                 for a batch of 16 or more loads.
+     */
+    public ConcurrentLoadTreeStore(TreeStore base, Executor executor) {
+        this.base = base;
+        this.executor = executor;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        return this.base.load(topPath, currentNumber);
+    }
+
+    @Override
+    public List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        if (topPaths.size() <= 1) {
+            return this.base.loadAll(topPaths, currentNumber);
+        }
+        // start all loads, then join them in order:
+        List<CompletableFuture<Node>> futures = new ArrayList<>(topPaths.size());
+        for (NibbleString topPath : topPaths) {
+            futures.add(CompletableFuture.supplyAsync(() -> this.base.load(topPath, currentNumber), this.executor));
+        }
+        List<Node> nodes = new ArrayList<>(topPaths.size());
+        try {
+            for (CompletableFuture<Node> future : futures) {
+                nodes.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+        return nodes;
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        return this.base.loadRoot(hash);
+    }
+
+    @Override
+    public byte[] loadValue(byte[] dataHash) {
+        return this.base.loadValue(dataHash);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return this.base.isThreadSafe();
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        this.base.save(pnodes);
+    }
+}
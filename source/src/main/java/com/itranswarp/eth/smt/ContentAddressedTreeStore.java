@@ -0,0 +1,172 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory tree store which stores node bodies by content.
+ * 
+ * A node body contains path, node hash and data value, and is keyed by path and
+ * node hash. The index of (topPath, number) only holds references to node
+ * bodies, so identical nodes which recur across versions (e.g. a value reverts,
+ * or a node is re-persisted only because its top level changed) are stored
+ * once. Storage grows with distinct content, not with update count.
+ * 
+ * Top hash is not stored but calculated from node hash when loading.
+ */
+public class ContentAddressedTreeStore implements TreeStore {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    final Map<NodeKey, NodeBody> bodyMap = new HashMap<>();
+    final Map<NibbleString, List<NodeRef>> topPathMap = new HashMap<>();
+    final Map<HashKey, NodeRef> rootMap = new HashMap<>();
+
+    private long refCount = 0;
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        final long start = System.nanoTime();
+        final MetricsListener metrics = Metrics.listener;
+        List<NodeRef> refs = this.topPathMap.get(topPath);
+        if (refs != null) {
+            // refs are appended in order of number, so search from the newest:
+            for (int i = refs.size() - 1; i >= 0; i--) {
+                NodeRef ref = refs.get(i);
+                if (ref.number <= currentNumber) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("loaded node {} from store at {}", topPath, currentNumber);
+                    }
+                    Node node = ref.toNode();
+                    metrics.onLoad(true);
+                    metrics.onLatency(MetricsListener.Operation.STORE_LOAD, System.nanoTime() - start);
+                    return node;
+                }
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("loaded NULL node {} from store at {}", topPath, currentNumber);
+        }
+        metrics.onLoad(false);
+        metrics.onLatency(MetricsListener.Operation.STORE_LOAD, System.nanoTime() - start);
+        return null;
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        NodeRef ref = this.rootMap.get(new HashKey(hash));
+        if (ref == null) {
+            throw new IllegalStateException("Root hash not found: " + SmtUtils.toHexString(hash));
+        }
+        return ref.toNode();
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (PersistNode pnode : pnodes) {
+            NodeKey key = new NodeKey(pnode.path(), new HashKey(pnode.nodeHash()));
+            NodeBody body = this.bodyMap.get(key);
+            if (body == null) {
+                body = new NodeBody(pnode.leaf(), pnode.path(), pnode.nodeHash(), pnode.dataValue(), pnode.keyBits());
+                this.bodyMap.put(key, body);
+                bytes += pnode.estimatedSize();
+            } else {
+                // only number and top level of reference:
+                bytes += 8 + 4;
+            }
+            NodeRef ref = new NodeRef(pnode.number(), pnode.topLevel(), body);
+            addTopPathMap(pnode.topPath(), ref);
+            if (pnode.path().isEmpty()) {
+                this.rootMap.put(new HashKey(pnode.nodeHash()), ref);
+            }
+        }
+        final MetricsListener metrics = Metrics.listener;
+        metrics.onSave(pnodes.size(), bytes);
+        metrics.onLatency(MetricsListener.Operation.STORE_SAVE, System.nanoTime() - start);
+    }
+
+    /**
+     * Get number of distinct node bodies.
+     * 
+     * @return Number of node bodies.
+     */
+    public int getBodyCount() {
+        return this.bodyMap.size();
+    }
+
+    /**
+     * Get number of node references in index.
+     * 
+     * @return Number of node references.
+     */
+    public long getRefCount() {
+        return this.refCount;
+    }
+
+    private void addTopPathMap(NibbleString topPath, NodeRef ref) {
+        List<NodeRef> refs = this.topPathMap.get(topPath);
+        if (refs == null) {
+            refs = new ArrayList<>();
+            this.topPathMap.put(topPath, refs);
+        } else {
+            NodeRef latest = refs.get(refs.size() - 1);
+            if (latest.number >= ref.number) {
+                throw new IllegalStateException("Invalid current node at number " + ref.number + ", because last node is at number " + latest.number);
+            }
+        }
+        refs.add(ref);
+        this.refCount++;
+    }
+}
+
+record NodeKey(NibbleString path, HashKey nodeHash) {
+}
+
+class NodeBody {
+
+    final boolean leaf;
+    final NibbleString path;
+    final byte[] nodeHash;
+    final byte[] dataValue;
+    final int keyBits;
+
+    NodeBody(boolean leaf, NibbleString path, byte[] nodeHash, byte[] dataValue, int keyBits) {
+        this.leaf = leaf;
+        this.path = path;
+        this.nodeHash = nodeHash;
+        this.dataValue = dataValue;
+        this.keyBits = keyBits;
+    }
+}
+
+class NodeRef {
+
+    final long number;
+    final int topLevel;
+    final NodeBody body;
+
+    NodeRef(long number, int topLevel, NodeBody body) {
+        this.number = number;
+        this.topLevel = topLevel;
+        this.body = body;
+    }
+
+    Node toNode() {
+        Metrics.listener.onDeserialize();
+        if (this.body.leaf) {
+            return this.body.dataValue == null ? new LeafNode(this.number, this.body.path, this.topLevel, this.body.nodeHash, null)
+                    : new LeafNode(this.number, this.body.path, this.topLevel, this.body.dataValue);
+        }
+        FullNode node = new FullNode(this.number, this.body.path, this.topLevel, this.body.keyBits);
+        node.setNodeHash(this.body.nodeHash);
+        node.setTopHash(SmtUtils.keccakMerkleByRange(this.body.keyBits, node.nodeLevel * 4, this.body.path, this.topLevel, this.body.nodeHash));
+        return node;
+    }
+}
@@ -0,0 +1,227 @@
+package com.itranswarp.eth.smt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metrics listener which counts events and records latency histograms in
+ * memory, for environments without a metrics library.
+ * 
+ * Latency histogram of each operation has 64 buckets, and bucket n counts
+ * latency in [2^n, 2^(n+1)) nanoseconds.
+ */
+public class CountingMetricsListener implements MetricsListener {
+
+    static final int BUCKETS = 64;
+
+    final LongAdder keccaks = new LongAdder();
+    final LongAdder cachedLookups = new LongAdder();
+    final LongAdder missedLookups = new LongAdder();
+    final LongAdder cachedProofs = new LongAdder();
+    final LongAdder missedProofs = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder nullLoads = new LongAdder();
+    final LongAdder deserializes = new LongAdder();
+    final LongAdder savedNodes = new LongAdder();
+    final LongAdder savedBytes = new LongAdder();
+    final LongAdder commits = new LongAdder();
+    final LongAdder committedNodes = new LongAdder();
+    final AtomicLongArray histograms = new AtomicLongArray(Operation.values().length * BUCKETS);
+
+    @Override
+    public void onLatency(Operation operation, long nanos) {
+        int bucket = nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+        this.histograms.incrementAndGet(operation.ordinal() * BUCKETS + bucket);
+    }
+
+    @Override
+    public void onKeccak() {
+        this.keccaks.increment();
+    }
+
+    @Override
+    public void onChildLookup(boolean cached) {
+        if (cached) {
+            this.cachedLookups.increment();
+        } else {
+            this.missedLookups.increment();
+        }
+    }
+
+    @Override
+    public void onProofLookup(boolean cached) {
+        if (cached) {
+            this.cachedProofs.increment();
+        } else {
+            this.missedProofs.increment();
+        }
+    }
+
+    @Override
+    public void onLoad(boolean found) {
+        if (found) {
+            this.loads.increment();
+        } else {
+            this.nullLoads.increment();
+        }
+    }
+
+    @Override
+    public void onDeserialize() {
+        this.deserializes.increment();
+    }
+
+    @Override
+    public void onSave(int nodes, long bytes) {
+        this.savedNodes.add(nodes);
+        this.savedBytes.add(bytes);
+    }
+
+    @Override
+    public void onCommit(long number, int nodes) {
+        this.commits.increment();
+        this.committedNodes.add(nodes);
+    }
+
+    /**
+     * Get count of keccak hashes.
+     * 
+     * @return Count.
+     */
+    public long getKeccakCount() {
+        return this.keccaks.sum();
+    }
+
+    /**
+     * Get count of child lookups which are cached in memory.
+     * 
+     * @return Count.
+     */
+    public long getCacheHitCount() {
+        return this.cachedLookups.sum();
+    }
+
+    /**
+     * Get count of child lookups which are not cached in memory.
+     * 
+     * @return Count.
+     */
+    public long getCacheMissCount() {
+        return this.missedLookups.sum();
+    }
+
+    /**
+     * Get count of proofs found in proof cache.
+     * 
+     * @return Count.
+     */
+    public long getProofCacheHitCount() {
+        return this.cachedProofs.sum();
+    }
+
+    /**
+     * Get count of proofs not found in proof cache.
+     * 
+     * @return Count.
+     */
+    public long getProofCacheMissCount() {
+        return this.missedProofs.sum();
+    }
+
+    /**
+     * Get count of store loads including loads of non-exist nodes.
+     * 
+     * @return Count.
+     */
+    public long getLoadCount() {
+        return this.loads.sum() + this.nullLoads.sum();
+    }
+
+    /**
+     * Get count of deserialized nodes.
+     * 
+     * @return Count.
+     */
+    public long getDeserializeCount() {
+        return this.deserializes.sum();
+    }
+
+    /**
+     * Get count of saved nodes.
+     * 
+     * @return Count.
+     */
+    public long getSavedNodeCount() {
+        return this.savedNodes.sum();
+    }
+
+    /**
+     * Get estimated bytes of saved nodes.
+     * 
+     * @return Bytes.
+     */
+    public long getSavedBytes() {
+        return this.savedBytes.sum();
+    }
+
+    /**
+     * Get count of commits.
+     * 
+     * @return Count.
+     */
+    public long getCommitCount() {
+        return this.commits.sum();
+    }
+
+    /**
+     * Get count of nodes written by commits.
+     * 
+     * @return Count.
+     */
+    public long getCommittedNodeCount() {
+        return this.committedNodes.sum();
+    }
+
+    /**
+     * Get latency histogram of operation.
+     * 
+     * @param operation Operation.
+     * @return 64 buckets, bucket n counts latency in [2^n, 2^(n+1)) nanoseconds.
+     */
+    public long[] getHistogram(Operation operation) {
+        long[] buckets = new long[BUCKETS];
+        int offset = operation.ordinal() * BUCKETS;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = this.histograms.get(offset + i);
+        }
+        return buckets;
+    }
+
+    /**
+     * Get approximate latency at percentile of operation, as the upper bound of
+     * the bucket.
+     * 
+     * @param operation  Operation.
+     * @param percentile Percentile between 0 and 1.
+     * @return Latency in nanoseconds, or 0 if no data.
+     */
+    public long getPercentile(Operation operation, double percentile) {
+        long[] buckets = getHistogram(operation);
+        long total = 0;
+        for (long n : buckets) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets[i];
+            if (count >= target && buckets[i] > 0) {
+                return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,150 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterate changed leafs between two trees in address order.
+ * 
+ * Both trees are walked at the same time by nibble level. A subtree is skipped
+ * if it has the same path and hash on both sides, so the cost is proportional
+ * to the number of changes, not the size of the tree.
+ */
+class DiffIterator implements Iterator<LeafChange> {
+
+    private final TreeStore store;
+    private final NibbleString minAddress;
+    private final NibbleString maxAddress;
+    private final long numberA;
+    private final long numberB;
+    private final Deque<Pair> stack = new ArrayDeque<>();
+
+    /**
+     * Leafs only exist in one side.
+     */
+    private LeafIterator single;
+    private boolean singleFromA;
+
+    private LeafChange nextChange;
+
+    DiffIterator(TreeStore store, FullNode rootA, FullNode rootB) {
+        if (rootA.keyBits != rootB.keyBits) {
+            throw new IllegalArgumentException("Cannot diff trees with different key bits.");
+        }
+        this.store = store;
+        this.minAddress = new NibbleString("0".repeat(rootA.keyBits / 4));
+        this.maxAddress = new NibbleString("f".repeat(rootA.keyBits / 4));
+        this.numberA = rootA.number;
+        this.numberB = rootB.number;
+        this.stack.push(new Pair(0, rootA, rootB));
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.nextChange != null;
+    }
+
+    @Override
+    public LeafChange next() {
+        LeafChange change = this.nextChange;
+        if (change == null) {
+            throw new NoSuchElementException();
+        }
+        advance();
+        return change;
+    }
+
+    private void advance() {
+        this.nextChange = null;
+        while (true) {
+            if (this.single != null) {
+                if (this.single.hasNext()) {
+                    LeafEntry leaf = this.single.next();
+                    this.nextChange = this.singleFromA ? new LeafChange(leaf.address(), leaf.dataValue(), SmtUtils.EMPTY_DATA)
+                            : new LeafChange(leaf.address(), SmtUtils.EMPTY_DATA, leaf.dataValue());
+                    return;
+                }
+                this.single = null;
+            }
+            if (this.stack.isEmpty()) {
+                return;
+            }
+            Pair pair = this.stack.pop();
+            Node a = pair.a;
+            Node b = pair.b;
+            if (a == null && b == null) {
+                continue;
+            }
+            if (a == null) {
+                this.single = new LeafIterator(this.store, this.numberB, b, this.minAddress, this.maxAddress);
+                this.singleFromA = false;
+                continue;
+            }
+            if (b == null) {
+                this.single = new LeafIterator(this.store, this.numberA, a, this.minAddress, this.maxAddress);
+                this.singleFromA = true;
+                continue;
+            }
+            // same path and same node hash means the same top hash at any level:
+            if (a.getPath().equals(b.getPath()) && Arrays.equals(a.getNodeHash(), b.getNodeHash())) {
+                continue;
+            }
+            if (a instanceof LeafNode && b instanceof LeafNode) {
+                LeafNode leafA = (LeafNode) a;
+                LeafNode leafB = (LeafNode) b;
+                int c = leafA.address.compareTo(leafB.address);
+                if (c == 0) {
+                    this.nextChange = new LeafChange(leafA.address, leafA.getDataValue(this.store), leafB.getDataValue(this.store));
+                    return;
+                }
+                // two different leafs, emit the bigger one later:
+                if (c < 0) {
+                    this.stack.push(new Pair(pair.level, null, b));
+                    this.nextChange = new LeafChange(leafA.address, leafA.getDataValue(this.store), SmtUtils.EMPTY_DATA);
+                } else {
+                    this.stack.push(new Pair(pair.level, a, null));
+                    this.nextChange = new LeafChange(leafB.address, SmtUtils.EMPTY_DATA, leafB.getDataValue(this.store));
+                }
+                return;
+            }
+            // expand one nibble level, push in reverse order:
+            for (int i = 15; i >= 0; i--) {
+                Node childA = childAt(a, pair.level, i, this.numberA);
+                Node childB = childAt(b, pair.level, i, this.numberB);
+                if (childA != null || childB != null) {
+                    this.stack.push(new Pair(pair.level + 1, childA, childB));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get node at virtual slot of index at level. A leaf or compressed full node
+     * is kept as is until the level reaches its node level.
+     */
+    private Node childAt(Node node, int level, int index, long number) {
+        if (node instanceof FullNode) {
+            FullNode fullNode = (FullNode) node;
+            if (fullNode.nodeLevel == level) {
+                return fullNode.peekChild(this.store, number, index);
+            }
+        }
+        return node.getPath().valueAt(level) == index ? node : null;
+    }
+
+    static class Pair {
+        final int level;
+        final Node a;
+        final Node b;
+
+        Pair(int level, Node a, Node b) {
+            this.level = level;
+            this.a = a;
+            this.b = b;
+        }
+    }
+}
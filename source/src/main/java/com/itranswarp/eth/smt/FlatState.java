@@ -0,0 +1,190 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flat state kept beside the tree, which maps address to leaf data without
+ * walking the tree.
+ *
+ * A flat state contains a persisted base layer and a stack of in-memory diff
+ * layers, one per version. The oldest diff layers are merged down into the base
+ * layer in background when there are more than maxDiffLayers.
+ */
+public class FlatState implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final FlatStateStore base;
+    private final int maxDiffLayers;
+    private final ExecutorService merger;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Diff layers ordered by number, newest first. Always replaced, never
+     * modified.
+     */
+    private volatile List<DiffLayer> layers = List.of();
+
+    /**
+     * Construct a flat state.
+     *
+     * @param base          Base layer store.
+     * @param maxDiffLayers Max diff layers kept in memory.
+     */
+    public FlatState(FlatStateStore base, int maxDiffLayers) {
+        if (maxDiffLayers < 0) {
+            throw new IllegalArgumentException("Invalid max diff layers: " + maxDiffLayers);
+        }
+        this.base = base;
+        this.maxDiffLayers = maxDiffLayers;
+        this.merger = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "flat-state-merger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Get the latest number of flat state.
+     *
+     * @return Block number.
+     */
+    public long getNumber() {
+        List<DiffLayer> current = this.layers;
+        return current.isEmpty() ? this.base.getNumber() : current.get(0).number;
+    }
+
+    /**
+     * Get leaf data of the latest version.
+     *
+     * @param address Address.
+     * @return Binary data, or empty bytes if not found.
+     */
+    public byte[] get(NibbleString address) {
+        return get(address, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get leaf data at specific version.
+     *
+     * @param address Address.
+     * @param number  Version.
+     * @return Binary data, empty bytes if not found, or null if the version is
+     *         older than the base layer.
+     */
+    public byte[] get(NibbleString address, long number) {
+        this.lock.readLock().lock();
+        try {
+            for (DiffLayer layer : this.layers) {
+                if (layer.number <= number) {
+                    byte[] value = layer.changes.get(address);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+            if (this.base.getNumber() > number) {
+                return null;
+            }
+            byte[] value = this.base.get(address);
+            return value == null ? SmtUtils.EMPTY_DATA : value;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Push changes of a version as a new diff layer.
+     *
+     * @param number  Version.
+     * @param changes Address and binary data.
+     */
+    void commit(long number, Map<NibbleString, byte[]> changes) {
+        int size;
+        this.lock.writeLock().lock();
+        try {
+            List<DiffLayer> current = this.layers;
+            long latest = current.isEmpty() ? this.base.getNumber() : current.get(0).number;
+            if (number <= latest) {
+                throw new IllegalStateException("Invalid number " + number + " for commit, because last number is " + latest);
+            }
+            List<DiffLayer> next = new ArrayList<>(current.size() + 1);
+            next.add(new DiffLayer(number, changes));
+            next.addAll(current);
+            this.layers = next;
+            size = next.size();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        if (size > this.maxDiffLayers) {
+            this.merger.execute(() -> mergeDown(this.maxDiffLayers));
+        }
+    }
+
+    /**
+     * Merge all diff layers into base layer.
+     */
+    public void flush() {
+        try {
+            this.merger.submit(() -> mergeDown(0)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when flush flat state.", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to flush flat state.", e);
+        }
+    }
+
+    /**
+     * Flush all diff layers and stop background merging.
+     */
+    @Override
+    public void close() {
+        flush();
+        this.merger.shutdown();
+        try {
+            this.merger.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void mergeDown(int keepLayers) {
+        while (this.layers.size() > keepLayers) {
+            DiffLayer oldest;
+            this.lock.writeLock().lock();
+            try {
+                List<DiffLayer> current = this.layers;
+                oldest = current.get(current.size() - 1);
+                this.base.merge(oldest.number, oldest.changes);
+                this.layers = new ArrayList<>(current.subList(0, current.size() - 1));
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("merged diff layer {} into base layer", oldest.number);
+            }
+        }
+    }
+}
+
+class DiffLayer {
+
+    final long number;
+    final Map<NibbleString, byte[]> changes;
+
+    DiffLayer(long number, Map<NibbleString, byte[]> changes) {
+        this.number = number;
+        this.changes = changes;
+    }
+}
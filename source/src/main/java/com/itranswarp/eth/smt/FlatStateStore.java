@@ -0,0 +1,34 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Map;
+
+/**
+ * A flat store for persistence of the base layer of flat state, which maps
+ * address to leaf data directly.
+ */
+public interface FlatStateStore {
+
+    /**
+     * Get the number of the state which is stored.
+     *
+     * @return Block number.
+     */
+    long getNumber();
+
+    /**
+     * Get leaf data by address, or null if not found.
+     *
+     * @param address Address.
+     * @return Binary data, or null if not found.
+     */
+    byte[] get(NibbleString address);
+
+    /**
+     * Merge changes of a version into store.
+     *
+     * @param number  Version of changes.
+     * @param changes Address and binary data.
+     */
+    void merge(long number, Map<NibbleString, byte[]> changes);
+
+}
@@ -1,6 +1,7 @@
 package com.itranswarp.eth.smt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -23,40 +24,162 @@ public class FullNode extends Node {
      */
     final int nodeLevel;
 
+    /**
+     * Key bits of tree, which is the height of leaf.
+     */
+    final int keyBits;
+
     /**
      * Path from root to current node level.
      */
     final NibbleString nodePath;
 
     /**
-     * Merkle hash of this node.
+     * Merkle hash of this node as 4 words.
      */
-    byte[] nodeHash;
+    long nodeHash0, nodeHash1, nodeHash2, nodeHash3;
 
     /**
-     * Merkle hash of this node.
+     * Top hash of this node as 4 words.
      */
-    byte[] topHash;
+    long topHash0, topHash1, topHash2, topHash3;
 
     /**
-     * 16 nodes represents 4-depth sub-tree
+     * Top hash is not calculated in lazy mode if false.
      */
-    private Node[] children;
+    boolean hasTopHash;
+
+    /**
+     * Node hash is not calculated in lazy mode.
+     */
+    boolean dirty = false;
 
     /**
-     * 16 boolean value indicate if the child is loaded from store.
+     * Bit i is set if child i is in children.
      */
-    private boolean[] childrenLoaded;
+    private int childMask;
+
+    /**
+     * Bit i is set if child i is loaded from store, even if not exist.
+     */
+    private int loadedMask;
+
+    /**
+     * Children in memory ordered by index, sized by bit count of child mask.
+     */
+    private Node[] children;
 
-    FullNode(long number, NibbleString nodePath, int topLevel) {
+    private static final Node[] EMPTY_CHILDREN = new Node[0];
+
+    FullNode(long number, NibbleString nodePath, int topLevel, int keyBits) {
         this.number = number;
         this.topLevel = topLevel;
         this.nodeLevel = nodePath.length();
         this.nodePath = nodePath;
-        this.nodeHash = TreeInfo.getDefaultHash(this.nodeLevel * 4);
-        this.topHash = TreeInfo.getDefaultHash(this.topLevel * 4);
-        this.children = new Node[16];
-        this.childrenLoaded = new boolean[16];
+        this.keyBits = keyBits;
+        setNodeHash(TreeInfo.getDefaultHash(keyBits, this.nodeLevel * 4));
+        setTopHash(TreeInfo.getDefaultHash(keyBits, this.topLevel * 4));
+        this.children = EMPTY_CHILDREN;
+    }
+
+    private FullNode(FullNode node, NodeOwner owner) {
+        this.number = node.number;
+        this.topLevel = node.topLevel;
+        this.nodeLevel = node.nodeLevel;
+        this.nodePath = node.nodePath;
+        this.keyBits = node.keyBits;
+        this.nodeHash0 = node.nodeHash0;
+        this.nodeHash1 = node.nodeHash1;
+        this.nodeHash2 = node.nodeHash2;
+        this.nodeHash3 = node.nodeHash3;
+        this.topHash0 = node.topHash0;
+        this.topHash1 = node.topHash1;
+        this.topHash2 = node.topHash2;
+        this.topHash3 = node.topHash3;
+        this.hasTopHash = node.hasTopHash;
+        this.dirty = node.dirty;
+        this.childMask = node.childMask;
+        this.loadedMask = node.loadedMask;
+        this.children = node.children.length == 0 ? EMPTY_CHILDREN : node.children.clone();
+        this.owner = owner;
+    }
+
+    @Override
+    FullNode copy(NodeOwner owner) {
+        return new FullNode(this, owner);
+    }
+
+    /**
+     * Get child in memory, or null if not exist or not loaded.
+     */
+    Node child(int index) {
+        int bit = 1 << index;
+        if ((this.childMask & bit) == 0) {
+            return null;
+        }
+        return this.children[Integer.bitCount(this.childMask & (bit - 1))];
+    }
+
+    /**
+     * Set child in memory, and children array is resized if child is added or
+     * removed.
+     */
+    void setChild(int index, Node child) {
+        int bit = 1 << index;
+        int pos = Integer.bitCount(this.childMask & (bit - 1));
+        int size = this.children.length;
+        if ((this.childMask & bit) != 0) {
+            if (child != null) {
+                this.children[pos] = child;
+            } else {
+                Node[] resized = size == 1 ? EMPTY_CHILDREN : new Node[size - 1];
+                System.arraycopy(this.children, 0, resized, 0, pos);
+                System.arraycopy(this.children, pos + 1, resized, pos, size - pos - 1);
+                this.children = resized;
+                this.childMask &= ~bit;
+            }
+        } else if (child != null) {
+            Node[] resized = new Node[size + 1];
+            System.arraycopy(this.children, 0, resized, 0, pos);
+            resized[pos] = child;
+            System.arraycopy(this.children, pos, resized, pos + 1, size - pos);
+            this.children = resized;
+            this.childMask |= bit;
+        }
+    }
+
+    /**
+     * Is child in memory or loaded from store.
+     */
+    private boolean isCached(int index) {
+        return ((this.childMask | this.loadedMask) & (1 << index)) != 0;
+    }
+
+    void setNodeHash(byte[] hash) {
+        this.nodeHash0 = word(hash, 0);
+        this.nodeHash1 = word(hash, 1);
+        this.nodeHash2 = word(hash, 2);
+        this.nodeHash3 = word(hash, 3);
+    }
+
+    /**
+     * Set top hash, or null if top hash is not calculated.
+     */
+    void setTopHash(byte[] hash) {
+        this.hasTopHash = hash != null;
+        if (hash != null) {
+            this.topHash0 = word(hash, 0);
+            this.topHash1 = word(hash, 1);
+            this.topHash2 = word(hash, 2);
+            this.topHash3 = word(hash, 3);
+        }
+    }
+
+    /**
+     * Is this node can be modified, and loaded children can be cached.
+     */
+    boolean isMutable() {
+        return this.owner != null && this.owner.isMutable();
     }
 
     /**
@@ -66,10 +189,14 @@ public class FullNode extends Node {
      * @param topLevel Top level.
      */
     public void updateTopLevel(long number, int topLevel) {
+        updateTopLevel(number, topLevel, false);
+    }
+
+    void updateTopLevel(long number, int topLevel, boolean lazy) {
         assert topLevel <= this.nodeLevel;
         this.number = number;
         this.topLevel = topLevel;
-        this.topHash = SmtUtils.keccakMerkleByRange(this.nodeLevel * 4, this.nodePath.substring(this.topLevel), this.nodeHash);
+        setTopHash(lazy ? null : liftNodeHash());
     }
 
     @Override
@@ -84,7 +211,7 @@ public class FullNode extends Node {
 
     @Override
     public byte[] getNodeHash() {
-        return nodeHash;
+        return toHash(this.nodeHash0, this.nodeHash1, this.nodeHash2, this.nodeHash3);
     }
 
     @Override
@@ -94,7 +221,13 @@ public class FullNode extends Node {
 
     @Override
     public byte[] getTopHash() {
-        return topHash;
+        return this.hasTopHash ? toHash(this.topHash0, this.topHash1, this.topHash2, this.topHash3) : null;
+    }
+
+    @Override
+    void copyTopHash(byte[] dest, int offset) {
+        assert this.hasTopHash : "top hash is not calculated";
+        putHash(dest, offset, this.topHash0, this.topHash1, this.topHash2, this.topHash3);
     }
 
     /**
@@ -112,9 +245,161 @@ public class FullNode extends Node {
             return null; // no such leaf
         }
         if (child instanceof FullNode) {
-            return ((FullNode) child).getLeaf(store, currentNumber, address);
+            FullNode childNode = (FullNode) child;
+            if (!address.startsWith(childNode.nodePath)) {
+                return null; // no such leaf under compressed path
+            }
+            return childNode.getLeaf(store, currentNumber, address);
+        }
+        LeafNode leaf = (LeafNode) child;
+        return leaf.address.equals(address) ? leaf : null;
+    }
+
+    /**
+     * Collect sibling hashes of address under this node.
+     *
+     * @param store         Tree store.
+     * @param currentNumber Current version.
+     * @param address       Address.
+     * @param siblings      Sibling hashes indexed by height - 1, and null is
+     *                      kept for default hash.
+     * @return Leaf node, or null if not found.
+     */
+    public LeafNode getProof(final TreeStore store, final long currentNumber, final NibbleString address, final byte[][] siblings) {
+        return getProof(store, currentNumber, address, siblings, null);
+    }
+
+    /**
+     * Collect sibling hashes of address under this node, and set bit of node
+     * level of each full node on the path in visited[0] if visited is not null.
+     */
+    LeafNode getProof(final TreeStore store, final long currentNumber, final NibbleString address, final byte[][] siblings, final long[] visited) {
+        if (visited != null) {
+            visited[0] |= 1L << this.nodeLevel;
+        }
+        final int childIndex = address.valueAt(this.nodeLevel);
+        collectSiblings(store, currentNumber, childIndex, siblings);
+        final Node child = loadChild(store, currentNumber, childIndex);
+        if (child == null) {
+            return null;
+        }
+        final int childHeight = this.nodeLevel * 4 + 4;
+        if (child instanceof FullNode) {
+            FullNode childNode = (FullNode) child;
+            if (address.startsWith(childNode.nodePath)) {
+                return childNode.getProof(store, currentNumber, address, siblings, visited);
+            }
+            // compressed node is sibling where paths diverge:
+            int pos = MerkleProof.firstDiffBit(address, childNode.nodePath, childHeight);
+            siblings[pos] = MerkleProof.lift(this.keyBits, childNode.nodePath, childNode.nodeLevel * 4, pos + 1, childNode.getNodeHash());
+            return null;
+        }
+        LeafNode leaf = (LeafNode) child;
+        if (leaf.address.equals(address)) {
+            return leaf;
+        }
+        int pos = MerkleProof.firstDiffBit(address, leaf.address, childHeight);
+        siblings[pos] = MerkleProof.lift(this.keyBits, leaf.address, this.keyBits, pos + 1, leaf.getNodeHash());
+        return null;
+    }
+
+    /**
+     * Collect sibling hashes of the 4 levels under this node on the path to
+     * child.
+     *
+     * @param store         Tree store.
+     * @param currentNumber Current version.
+     * @param childIndex    Index of child on the path.
+     * @param siblings      Sibling hashes indexed by height - 1.
+     */
+    void collectSiblings(final TreeStore store, final long currentNumber, final int childIndex, final byte[][] siblings) {
+        // hashes of 4 levels under this node, null if default:
+        byte[][] hashes = new byte[16][];
+        for (int i = 0; i < 16; i++) {
+            Node node = loadChild(store, currentNumber, i);
+            hashes[i] = node == null ? null : node.getTopHash();
+        }
+        int height = this.nodeLevel * 4 + 4;
+        int index = childIndex;
+        for (int n = 16; n >= 2; n = n / 2) {
+            siblings[height - 1] = hashes[index ^ 1];
+            byte[] defaultHash = TreeInfo.getDefaultHash(this.keyBits, height);
+            for (int i = 0; i < n / 2; i++) {
+                byte[] left = hashes[i * 2];
+                byte[] right = hashes[i * 2 + 1];
+                hashes[i] = left == null && right == null ? null
+                        : SmtUtils.keccak(left != null ? left : defaultHash, right != null ? right : defaultHash);
+            }
+            index = index >> 1;
+            height--;
+        }
+    }
+
+    /**
+     * Get leaf nodes of sorted addresses by descending the tree once. Addresses
+     * sharing prefix share the traversal, and nodes to be loaded at the same
+     * level are loaded from store as one batch.
+     * 
+     * @param store         Tree store.
+     * @param currentNumber Current version.
+     * @param addresses     Sorted addresses.
+     * @param results       Leaf nodes for addresses, null if not found.
+     */
+    public void getLeafs(final TreeStore store, final long currentNumber, final NibbleString[] addresses, final LeafNode[] results) {
+        List<Range> ranges = List.of(new Range(this, -1, 0, addresses.length));
+        while (!ranges.isEmpty()) {
+            // group addresses by child of each node:
+            List<Range> childRanges = new ArrayList<>();
+            List<Range> loadRanges = new ArrayList<>();
+            List<NibbleString> loadPaths = new ArrayList<>();
+            for (Range range : ranges) {
+                FullNode node = range.node;
+                int i = range.from;
+                while (i < range.to) {
+                    if (!addresses[i].startsWith(node.nodePath)) {
+                        i++;
+                        continue;
+                    }
+                    int childIndex = addresses[i].valueAt(node.nodeLevel);
+                    int j = i + 1;
+                    while (j < range.to && addresses[j].startsWith(node.nodePath) && addresses[j].valueAt(node.nodeLevel) == childIndex) {
+                        j++;
+                    }
+                    Range childRange = new Range(node, childIndex, i, j);
+                    childRange.child = node.child(childIndex);
+                    childRanges.add(childRange);
+                    if (childRange.child == null && !node.isCached(childIndex)) {
+                        loadRanges.add(childRange);
+                        loadPaths.add(node.nodePath.join(childIndex));
+                    }
+                    i = j;
+                }
+            }
+            // batch load children of this level:
+            if (!loadPaths.isEmpty()) {
+                List<Node> loadedNodes = store.loadAll(loadPaths, currentNumber);
+                for (int n = 0; n < loadRanges.size(); n++) {
+                    Range range = loadRanges.get(n);
+                    range.child = loadedNodes.get(n);
+                    range.node.cacheChild(range.index, range.child);
+                }
+            }
+            List<Range> nextRanges = new ArrayList<>();
+            for (Range range : childRanges) {
+                Node child = range.child;
+                if (child instanceof FullNode) {
+                    nextRanges.add(new Range((FullNode) child, -1, range.from, range.to));
+                } else if (child != null) {
+                    LeafNode leaf = (LeafNode) child;
+                    for (int i = range.from; i < range.to; i++) {
+                        if (addresses[i].equals(leaf.address)) {
+                            results[i] = leaf;
+                        }
+                    }
+                }
+            }
+            ranges = nextRanges;
         }
-        return (LeafNode) child;
     }
 
     /**
@@ -127,140 +412,380 @@ public class FullNode extends Node {
      * @param dataValue     Binary value.
      */
     public void update(final List<Node> collector, final TreeStore store, final long currentNumber, final NibbleString address, final byte[] dataValue) {
+        update(collector, store, currentNumber, address, dataValue, false);
+    }
+
+    /**
+     * Update nodes, and only mark nodes dirty without hashing if lazy.
+     */
+    void update(final List<Node> collector, final TreeStore store, final long currentNumber, final NibbleString address, final byte[] dataValue,
+            final boolean lazy) {
         this.number = currentNumber;
-        NibbleString prefix = NibbleString.sharedPrefix(this.nodePath, address);
-        assert prefix.length() >= this.nodeLevel
-                : "wrong prefix " + prefix + " for address " + address + " with node path " + this.nodePath + " and node level " + this.nodeLevel;
+        assert address.startsWith(this.nodePath) : "wrong address " + address + " with node path " + this.nodePath;
+        assert this.isMutable() : "update immutable node " + this;
         int childIndex = address.valueAt(this.nodeLevel);
         Node child = loadChild(store, currentNumber, childIndex);
+        if (child != null && child.owner != this.owner) {
+            // copy shared child before modify:
+            child = child.copy(this.owner);
+            this.setChild(childIndex, child);
+        }
+        Node updated = updateChild(collector, store, currentNumber, child, address, dataValue, lazy);
+        if (updated != child) {
+            this.setChild(childIndex, updated);
+        }
+        this.updateHash(store, currentNumber, lazy);
+        collector.add(this);
+    }
+
+    /**
+     * Update root by one of concurrent writers in lazy mode. Caller must hold
+     * the stripe lock of child index, so the subtree of child is modified only
+     * by caller, and fields of this node are modified under the monitor of this
+     * node. Loading child from store is done without holding the monitor.
+     */
+    void updateConcurrently(final List<Node> collector, final TreeStore store, final long currentNumber, final NibbleString address,
+            final byte[] dataValue) {
+        assert this.isMutable() : "update immutable node " + this;
+        final int childIndex = address.valueAt(this.nodeLevel);
+        Node child;
+        boolean cached;
+        synchronized (this) {
+            child = child(childIndex);
+            cached = isCached(childIndex);
+        }
+        Metrics.listener.onChildLookup(cached);
+        if (!cached) {
+            child = store.load(this.nodePath.join(childIndex), currentNumber);
+            synchronized (this) {
+                cacheChild(childIndex, child);
+            }
+        }
+        if (child != null && child.owner != this.owner) {
+            // copy shared child before modify:
+            child = child.copy(this.owner);
+            synchronized (this) {
+                this.setChild(childIndex, child);
+            }
+        }
+        final List<Node> childCollector = new ArrayList<>();
+        Node updated = updateChild(childCollector, store, currentNumber, child, address, dataValue, true);
+        synchronized (this) {
+            this.number = currentNumber;
+            if (updated != child) {
+                this.setChild(childIndex, updated);
+            }
+            this.updateHash(store, currentNumber, true);
+            collector.addAll(childCollector);
+            collector.add(this);
+        }
+    }
+
+    /**
+     * Update child by address, and return the updated child, which is a new leaf
+     * or a split node if child is replaced.
+     */
+    private Node updateChild(final List<Node> collector, final TreeStore store, final long currentNumber, final Node child, final NibbleString address,
+            final byte[] dataValue, final boolean lazy) {
         if (child == null) {
             // insert new leaf:
-            LeafNode childLeaf = new LeafNode(currentNumber, address, this.nodeLevel + 1, dataValue);
-            this.children[childIndex] = childLeaf;
+            LeafNode childLeaf = new LeafNode(currentNumber, address, this.nodeLevel + 1, dataValue, lazy);
+            childLeaf.owner = this.owner;
             collector.add(childLeaf);
-            this.updateHash(store, currentNumber);
-            collector.add(this);
-        } else if (child instanceof FullNode) {
+            return childLeaf;
+        }
+        if (child instanceof FullNode) {
             // child is a full node:
             final FullNode existNode = (FullNode) child;
             final NibbleString existNodePath = existNode.nodePath;
             if (address.startsWith(existNode.nodePath)) {
-                existNode.update(collector, store, currentNumber, address, dataValue);
-                this.updateHash(store, currentNumber);
-                collector.add(this);
-            } else {
-                // existNode = current child, now insert a splitNode to build:
-                // current child -> splitNode -> existNode
-                final NibbleString sharedPrefix = NibbleString.sharedPrefix(address, existNodePath);
-                final int splitNodeLevel = sharedPrefix.length();
-                existNode.updateTopLevel(currentNumber, splitNodeLevel + 1);
-                collector.add(existNode);
-                final FullNode splitNode = new FullNode(currentNumber, sharedPrefix, this.nodeLevel + 1);
-                // move exist node to split node child:
-                splitNode.children[existNodePath.valueAt(splitNodeLevel)] = existNode;
-                // add new:
-                splitNode.update(collector, store, currentNumber, address, dataValue);
-                // set split node as current child:
-                this.children[childIndex] = splitNode;
-                this.updateHash(store, currentNumber);
-                collector.add(this);
-            }
-        } else {
-            // child is a leaf node:
-            final LeafNode existLeaf = (LeafNode) child;
-            final NibbleString existLeafAddress = existLeaf.address;
-            if (address.equals(existLeafAddress)) {
-                // leaf node with same address:
-                existLeaf.update(currentNumber, existLeaf.topLevel, dataValue);
-                collector.add(existLeaf);
-                this.updateHash(store, currentNumber);
-                collector.add(this);
-            } else {
-                // leaf node with different address:
-                final NibbleString sharedPrefix = NibbleString.sharedPrefix(address, existLeafAddress);
-                final int splitNodeLevel = sharedPrefix.length();
-                existLeaf.update(currentNumber, splitNodeLevel + 1, existLeaf.getDataValue());
-                collector.add(existLeaf);
-                final FullNode splitNode = new FullNode(currentNumber, sharedPrefix, this.nodeLevel + 1);
-                // move exist node to split node child:
-                splitNode.children[existLeafAddress.valueAt(splitNodeLevel)] = existLeaf;
-                // add new:
-                splitNode.update(collector, store, currentNumber, address, dataValue);
-                // set split node as current child:
-                this.children[childIndex] = splitNode;
-                this.updateHash(store, currentNumber);
-                collector.add(this);
+                existNode.update(collector, store, currentNumber, address, dataValue, lazy);
+                return existNode;
             }
+            // existNode = current child, now insert a splitNode to build:
+            // current child -> splitNode -> existNode
+            final NibbleString sharedPrefix = NibbleString.sharedPrefix(address, existNodePath);
+            final int splitNodeLevel = sharedPrefix.length();
+            existNode.updateTopLevel(currentNumber, splitNodeLevel + 1, lazy);
+            collector.add(existNode);
+            final FullNode splitNode = new FullNode(currentNumber, sharedPrefix, this.nodeLevel + 1, this.keyBits);
+            splitNode.owner = this.owner;
+            // move exist node to split node child:
+            splitNode.setChild(existNodePath.valueAt(splitNodeLevel), existNode);
+            // add new:
+            splitNode.update(collector, store, currentNumber, address, dataValue, lazy);
+            return splitNode;
         }
+        // child is a leaf node:
+        final LeafNode existLeaf = (LeafNode) child;
+        final NibbleString existLeafAddress = existLeaf.address;
+        if (address.equals(existLeafAddress)) {
+            // leaf node with same address:
+            existLeaf.update(currentNumber, existLeaf.topLevel, dataValue, lazy);
+            collector.add(existLeaf);
+            return existLeaf;
+        }
+        // leaf node with different address:
+        final NibbleString sharedPrefix = NibbleString.sharedPrefix(address, existLeafAddress);
+        final int splitNodeLevel = sharedPrefix.length();
+        existLeaf.updateTopLevel(currentNumber, splitNodeLevel + 1, lazy);
+        collector.add(existLeaf);
+        final FullNode splitNode = new FullNode(currentNumber, sharedPrefix, this.nodeLevel + 1, this.keyBits);
+        splitNode.owner = this.owner;
+        // move exist node to split node child:
+        splitNode.setChild(existLeafAddress.valueAt(splitNodeLevel), existLeaf);
+        // add new:
+        splitNode.update(collector, store, currentNumber, address, dataValue, lazy);
+        return splitNode;
+    }
+
+    /**
+     * Get top hash of child, or null if child not exist.
+     */
+    byte[] getChildTopHash(TreeStore store, long currentNumber, int childIndex) {
+        Node child = loadChild(store, currentNumber, childIndex);
+        return child == null ? null : child.getTopHash();
     }
 
     private Node loadChild(TreeStore store, long currentNumber, int childIndex) {
-        Node child = this.children[childIndex];
-        if (child == null && !this.childrenLoaded[childIndex]) {
+        Node child = child(childIndex);
+        boolean cached = isCached(childIndex);
+        Metrics.listener.onChildLookup(cached);
+        if (!cached) {
             // try load latest child node from store:
             NibbleString childPath = this.nodePath.join(childIndex);
-            Node loadedNode = store.load(childPath, currentNumber);
-            if (loadedNode != null) {
-                child = loadedNode;
-                this.children[childIndex] = child;
+            child = store.load(childPath, currentNumber);
+            cacheChild(childIndex, child);
+        }
+        return child;
+    }
+
+    /**
+     * Cache loaded child, or do nothing if this node is shared as immutable.
+     */
+    void cacheChild(int childIndex, Node child) {
+        if (isMutable()) {
+            if (child != null) {
+                child.owner = this.owner;
             }
-            this.childrenLoaded[childIndex] = true;
+            setChild(childIndex, child);
+            this.loadedMask |= 1 << childIndex;
+        }
+    }
+
+    /**
+     * Load all missing children of this node by one batch. If this node is
+     * dirty, missing children of its dirty full node children are loaded in the
+     * same batch, since they are loaded next when rehashing.
+     */
+    private void loadMissingChildren(TreeStore store, long currentNumber) {
+        List<FullNode> loadNodes = new ArrayList<>();
+        List<Integer> loadIndexes = new ArrayList<>();
+        List<NibbleString> loadPaths = new ArrayList<>();
+        collectMissingChildren(loadNodes, loadIndexes, loadPaths, true);
+        if (this.dirty) {
+            for (Node child : this.children) {
+                if (child instanceof FullNode childNode && childNode.dirty) {
+                    childNode.collectMissingChildren(loadNodes, loadIndexes, loadPaths, false);
+                }
+            }
+        }
+        if (loadPaths.isEmpty()) {
+            return;
+        }
+        List<Node> loadedNodes = store.loadAll(loadPaths, currentNumber);
+        for (int n = 0; n < loadPaths.size(); n++) {
+            loadNodes.get(n).cacheChild(loadIndexes.get(n), loadedNodes.get(n));
+        }
+    }
+
+    void collectMissingChildren(List<FullNode> loadNodes, List<Integer> loadIndexes, List<NibbleString> loadPaths, boolean lookup) {
+        for (int i = 0; i < 16; i++) {
+            boolean cached = isCached(i);
+            if (lookup) {
+                Metrics.listener.onChildLookup(cached);
+            }
+            if (!cached) {
+                loadNodes.add(this);
+                loadIndexes.add(i);
+                loadPaths.add(this.nodePath.join(i));
+            }
+        }
+    }
+
+    /**
+     * Get child node without caching it in this node if it is loaded from store.
+     * 
+     * @param store         Tree store.
+     * @param currentNumber Current version.
+     * @param childIndex    Child index.
+     * @return Child node, or null if not exist.
+     */
+    Node peekChild(TreeStore store, long currentNumber, int childIndex) {
+        Node child = child(childIndex);
+        if (child == null && !isCached(childIndex)) {
+            child = store.load(this.nodePath.join(childIndex), currentNumber);
         }
         return child;
     }
 
-    private void updateHash(TreeStore store, long currentNumber) {
-        int childHeight = this.nodeLevel * 4 + 4;
-        byte[][] top1Hashes = new byte[8][];
-        for (int i = 0; i < 8; i++) {
-            int child1Index = i * 2;
-            int child2Index = child1Index + 1;
-            Node child1 = loadChild(store, currentNumber, child1Index);
-            Node child2 = loadChild(store, currentNumber, child2Index);
-            if (child1 == null && child2 == null) {
-                top1Hashes[i] = null;
-            } else {
-                byte[] left = child1 == null ? TreeInfo.getDefaultHash(childHeight) : child1.getTopHash();
-                byte[] right = child2 == null ? TreeInfo.getDefaultHash(childHeight) : child2.getTopHash();
-                top1Hashes[i] = SmtUtils.keccak(left, right);
+    private void updateHash(TreeStore store, long currentNumber, boolean lazy) {
+        if (lazy) {
+            this.dirty = true;
+            this.hasTopHash = false;
+            return;
+        }
+        updateHash(store, currentNumber);
+    }
+
+    /**
+     * Calculate hashes of dirty nodes under this node from bottom to top. Only
+     * nodes in memory can be dirty.
+     * 
+     * @param store         Tree store.
+     * @param currentNumber Current version.
+     */
+    void rehash(TreeStore store, long currentNumber) {
+        if (this.dirty) {
+            loadMissingChildren(store, currentNumber);
+            for (Node child : this.children) {
+                if (child instanceof FullNode) {
+                    ((FullNode) child).rehash(store, currentNumber);
+                } else if (child != null) {
+                    ((LeafNode) child).rehash();
+                }
             }
+            // missing children are already loaded:
+            updateLoadedHash();
+            this.dirty = false;
+        } else if (!this.hasTopHash) {
+            setTopHash(liftNodeHash());
         }
+    }
 
-        childHeight--;
-        byte[][] top2Hashes = top1Hashes; // reuse top1-hash array as top2
-        for (int i = 0; i < 4; i++) {
-            byte[] left = top1Hashes[i * 2];
-            byte[] right = top1Hashes[i * 2 + 1];
-            if (left == null && right == null) {
-                top2Hashes[i] = null;
-            } else {
-                top2Hashes[i] = SmtUtils.keccak(left != null ? left : TreeInfo.getDefaultHash(childHeight),
-                        right != null ? right : TreeInfo.getDefaultHash(childHeight));
+    private void updateHash(TreeStore store, long currentNumber) {
+        loadMissingChildren(store, currentNumber);
+        updateLoadedHash();
+    }
+
+    /**
+     * Update node hash and top hash when all children are loaded.
+     */
+    private void updateLoadedHash() {
+        assert this.isMutable() : "update hash of immutable node " + this;
+        // copy top hashes of children to buffer without allocating arrays:
+        final byte[] childTopHashes = CHILD_TOP_HASHES.get();
+        for (int i = 0, pos = 0; i < 16; i++) {
+            if ((this.childMask & (1 << i)) != 0) {
+                this.children[pos++].copyTopHash(childTopHashes, i * 32);
             }
         }
+        setNodeHash(hashChildren(this.keyBits, this.nodeLevel, childTopHashes, this.childMask));
+        setTopHash(liftNodeHash());
+    }
 
-        childHeight--;
-        byte[][] top3Hashes = top1Hashes; // reuse top1-hash array as top3
-        for (int i = 0; i < 2; i++) {
-            byte[] left = top2Hashes[i * 2];
-            byte[] right = top2Hashes[i * 2 + 1];
-            if (left == null && right == null) {
-                top3Hashes[i] = null;
-            } else {
-                top3Hashes[i] = SmtUtils.keccak(left != null ? left : TreeInfo.getDefaultHash(childHeight),
-                        right != null ? right : TreeInfo.getDefaultHash(childHeight));
+    /**
+     * Lift node hash to top hash in buffer of current thread.
+     */
+    private byte[] liftNodeHash() {
+        return SmtUtils.keccakMerkleByRange(this.keyBits, this.nodeLevel * 4, this.nodePath, this.topLevel, this.nodeHash0, this.nodeHash1,
+                this.nodeHash2, this.nodeHash3);
+    }
+
+    /**
+     * Calculate node hash of a full node by top hashes of its 16 children.
+     * 
+     * @param keyBits        Key bits of tree.
+     * @param nodeLevel      Node level of full node.
+     * @param childTopHashes 16 top hashes of children, null if child not exist.
+     * @return Node hash.
+     */
+    static byte[] hashChildren(int keyBits, int nodeLevel, byte[][] childTopHashes) {
+        final byte[] hashes = new byte[16 * 32];
+        int mask = 0;
+        for (int i = 0; i < 16; i++) {
+            if (childTopHashes[i] != null) {
+                System.arraycopy(childTopHashes[i], 0, hashes, i * 32, 32);
+                mask |= 1 << i;
             }
         }
+        return hashChildren(keyBits, nodeLevel, hashes, mask);
+    }
 
+    /**
+     * Calculate node hash of a full node by top hashes of its children.
+     * 
+     * @param keyBits   Key bits of tree.
+     * @param nodeLevel Node level of full node.
+     * @param hashes    16 top hashes of children stored one after another.
+     * @param mask      Bit i is set if child i exists.
+     * @return Node hash.
+     */
+    static byte[] hashChildren(int keyBits, int nodeLevel, byte[] hashes, int mask) {
+        int childHeight = nodeLevel * 4 + 4;
+        // hash of level 16 -> 8 is stored in buffer[i * 32], and present[i]
+        // indicates if the hash is non-default. Pairs of each level are
+        // gathered into input and hashed as a batch:
+        final HashChildrenBuffer buf = HASH_CHILDREN_BUFFER.get();
+        final byte[] buffer = buf.buffer;
+        final byte[] input = buf.input;
+        final boolean[] present = buf.present;
+        byte[] defaultHash = TreeInfo.getDefaultHash(keyBits, childHeight);
+        int count = 0;
+        for (int i = 0; i < 8; i++) {
+            boolean left = (mask & (1 << (i * 2))) != 0;
+            boolean right = (mask & (1 << (i * 2 + 1))) != 0;
+            present[i] = left || right;
+            if (present[i]) {
+                System.arraycopy(left ? hashes : defaultHash, left ? i * 64 : 0, input, count * 64, 32);
+                System.arraycopy(right ? hashes : defaultHash, right ? i * 64 + 32 : 0, input, count * 64 + 32, 32);
+                count++;
+            }
+        }
+        scatter(input, buffer, present, 8, count);
         childHeight--;
-        byte[] top3HashLeft = top3Hashes[0];
-        byte[] top3HashRight = top3Hashes[1];
-        this.nodeHash = SmtUtils.keccak(top3HashLeft != null ? top3HashLeft : TreeInfo.getDefaultHash(childHeight),
-                top3HashRight != null ? top3HashRight : TreeInfo.getDefaultHash(childHeight));
+        // 8 -> 4 -> 2 -> 1:
+        for (int n = 4; n >= 1; n = n / 2) {
+            defaultHash = TreeInfo.getDefaultHash(keyBits, childHeight);
+            count = 0;
+            for (int i = 0; i < n; i++) {
+                boolean left = present[i * 2];
+                boolean right = present[i * 2 + 1];
+                present[i] = left || right;
+                if (present[i]) {
+                    System.arraycopy(left ? buffer : defaultHash, left ? i * 64 : 0, input, count * 64, 32);
+                    System.arraycopy(right ? buffer : defaultHash, right ? i * 64 + 32 : 0, input, count * 64 + 32, 32);
+                    count++;
+                }
+            }
+            scatter(input, buffer, present, n, count);
+            childHeight--;
+        }
+        return present[0] ? Arrays.copyOf(buffer, 32) : TreeInfo.getDefaultHash(keyBits, childHeight);
+    }
 
-        this.topHash = SmtUtils.keccakMerkleByRange(this.nodeLevel * 4, this.nodePath.substring(this.topLevel), this.nodeHash);
+    /**
+     * Hash gathered pairs in place, and move each hash to its position in
+     * buffer.
+     */
+    private static void scatter(byte[] input, byte[] buffer, boolean[] present, int n, int count) {
+        if (count == 0) {
+            return;
+        }
+        SmtUtils.keccak64Batch(input, 0, input, 0, count);
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (present[i]) {
+                System.arraycopy(input, k * 32, buffer, i * 32, 32);
+                k++;
+            }
+        }
     }
 
+    private static final ThreadLocal<byte[]> CHILD_TOP_HASHES = ThreadLocal.withInitial(() -> new byte[16 * 32]);
+
+    private static final ThreadLocal<HashChildrenBuffer> HASH_CHILDREN_BUFFER = ThreadLocal.withInitial(HashChildrenBuffer::new);
+
     @Override
     public void print(int indent, boolean[] isLast) {
         StringBuilder sb = new StringBuilder(256);
@@ -275,10 +800,10 @@ public class FullNode extends Node {
         if (this.children != null) {
             List<Node> subs = new ArrayList<>();
             for (int i = 0; i < 16; i++) {
-                Node node = this.children[i];
+                Node node = child(i);
                 if (node != null) {
                     subs.add(node);
-                } else if (!this.childrenLoaded[i]) {
+                } else if (!isCached(i)) {
                     subs.add(null);
                 }
             }
@@ -304,6 +829,37 @@ public class FullNode extends Node {
     @Override
     public String toString() {
         return String.format("FullNode(number=%s, nodePath=%s, %s ~ %s, nodeHash=%s, topHash=%s)", this.number, this.nodePath, this.topLevel, this.nodeLevel,
-                SmtUtils.toHexString(this.nodeHash).substring(0, 8), SmtUtils.toHexString(this.topHash).substring(0, 8));
+                SmtUtils.toHexString(getNodeHash()).substring(0, 8), this.hasTopHash ? SmtUtils.toHexString(getTopHash()).substring(0, 8) : "null");
     }
 }
+
+/**
+ * Sorted addresses in [from, to) under a full node, or under the child of index
+ * if index is not -1.
+ */
+class Range {
+
+    final FullNode node;
+    final int index;
+    final int from;
+    final int to;
+
+    /**
+     * Child of index, or null if not exist.
+     */
+    Node child;
+
+    Range(FullNode node, int index, int from, int to) {
+        this.node = node;
+        this.index = index;
+        this.from = from;
+        this.to = to;
+    }
+}
+
+class HashChildrenBuffer {
+
+    final byte[] buffer = new byte[8 * 32];
+    final byte[] input = new byte[8 * 64];
+    final boolean[] present = new boolean[8];
+}
@@ -0,0 +1,27 @@
+package com.itranswarp.eth.smt;
+
+import org.bouncycastle.crypto.digests.KeccakDigest;
+
+/**
+ * Hash engine by BouncyCastle's Keccak digest, which is reused by current
+ * thread.
+ */
+class GenericHashEngine implements HashEngine {
+
+    private static final ThreadLocal<KeccakDigest> DIGEST = ThreadLocal.withInitial(() -> new KeccakDigest(256));
+
+    @Override
+    public void keccak(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        KeccakDigest digest = DIGEST.get();
+        digest.update(input, offset, length);
+        digest.doFinal(output, outOffset);
+    }
+
+    @Override
+    public void keccak64(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outOffset) {
+        KeccakDigest digest = DIGEST.get();
+        digest.update(left, leftOffset, 32);
+        digest.update(right, rightOffset, 32);
+        digest.doFinal(output, outOffset);
+    }
+}
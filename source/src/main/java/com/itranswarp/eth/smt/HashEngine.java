@@ -0,0 +1,51 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Keccak-256 hash engine used by tree. Implementations must be thread-safe.
+ */
+public interface HashEngine {
+
+    /**
+     * Hash input with any length and write 32-bytes output.
+     *
+     * @param input     The input.
+     * @param offset    Offset of input.
+     * @param length    Length of input.
+     * @param output    The output buffer.
+     * @param outOffset Offset of output.
+     */
+    void keccak(byte[] input, int offset, int length, byte[] output, int outOffset);
+
+    /**
+     * Hash two sequential 32-bytes inputs and write 32-bytes output. Output may
+     * overlap inputs.
+     *
+     * @param left        The first input.
+     * @param leftOffset  Offset of the first input.
+     * @param right       The second input.
+     * @param rightOffset Offset of the second input.
+     * @param output      The output buffer.
+     * @param outOffset   Offset of output.
+     */
+    void keccak64(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outOffset);
+
+    /**
+     * Hash independent 64-bytes messages stored one after another, and write
+     * 32-bytes outputs one after another. Output may overlap input if output
+     * offset is not greater than input offset. The default implementation
+     * hashes messages one by one.
+     *
+     * @param input     The input of messages.
+     * @param inOffset  Offset of the first message.
+     * @param output    The output buffer.
+     * @param outOffset Offset of the first output.
+     * @param count     Number of messages.
+     */
+    default void keccak64Batch(byte[] input, int inOffset, byte[] output, int outOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            int offset = inOffset + i * 64;
+            keccak64(input, offset, input, offset + 32, output, outOffset + i * 32);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Holder of the global hash engine which tree, nodes and default hashes use.
+ */
+public final class HashEngines {
+
+    /**
+     * Generic engine by BouncyCastle's Keccak digest.
+     */
+    public static final HashEngine GENERIC = new GenericHashEngine();
+
+    /**
+     * Engine specialized for 64-bytes input, and generic for other inputs.
+     */
+    public static final HashEngine KECCAK64 = new Keccak64HashEngine(GENERIC);
+
+    /**
+     * Engine which hashes batch of messages by multiple lanes of Vector API if
+     * module jdk.incubator.vector is available, otherwise the same as KECCAK64.
+     */
+    public static final HashEngine DEFAULT = createDefault();
+
+    static volatile HashEngine engine = DEFAULT;
+
+    private static HashEngine createDefault() {
+        // vector engine can be loaded only if module is added by --add-modules:
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return new VectorHashEngine(KECCAK64);
+            } catch (LinkageError e) {
+                // fall back to scalar engine
+            }
+        }
+        return KECCAK64;
+    }
+
+    private HashEngines() {
+    }
+
+    /**
+     * Set global hash engine. All engines must produce the same hash.
+     * 
+     * @param engine Hash engine, or null to reset as default.
+     */
+    public static void setEngine(HashEngine engine) {
+        HashEngines.engine = engine == null ? DEFAULT : engine;
+    }
+
+    /**
+     * Get global hash engine.
+     * 
+     * @return Hash engine.
+     */
+    public static HashEngine getEngine() {
+        return engine;
+    }
+}
@@ -0,0 +1,38 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Arrays;
+
+/**
+ * Hash as key of map, which compares by content.
+ */
+final class HashKey {
+
+    final byte[] hash;
+
+    HashKey(byte[] hash) {
+        this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+        // hash is already uniformly distributed:
+        byte[] h = this.hash;
+        return h.length < 4 ? Arrays.hashCode(h) : ((h[0] & 0xff) << 24) | ((h[1] & 0xff) << 16) | ((h[2] & 0xff) << 8) | (h[3] & 0xff);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof HashKey) {
+            return Arrays.equals(this.hash, ((HashKey) o).hash);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return SmtUtils.toHexString(this.hash);
+    }
+}
@@ -0,0 +1,171 @@
+package com.itranswarp.eth.smt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Hash engine specialized for 64-bytes input, which fits in one block of
+ * Keccak-256 (rate = 136 bytes). The sponge state is kept in 25 local longs,
+ * and absorbing, padding and squeezing are done without any object.
+ * 
+ * Input with other length is hashed by the fallback engine.
+ */
+class Keccak64HashEngine implements HashEngine {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long[] ROUND_CONSTANTS = { 0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+            0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L, 0x000000000000008aL, 0x0000000000000088L,
+            0x0000000080008009L, 0x000000008000000aL, 0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+            0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L, 0x8000000000008080L,
+            0x0000000080000001L, 0x8000000080008008L };
+
+    private final HashEngine fallback;
+
+    Keccak64HashEngine(HashEngine fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void keccak(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        if (length == 64) {
+            keccak64(input, offset, input, offset + 32, output, outOffset);
+        } else {
+            this.fallback.keccak(input, offset, length, output, outOffset);
+        }
+    }
+
+    @Override
+    public void keccak64(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outOffset) {
+        // absorb 8 lanes of input:
+        long a00 = (long) LONG_LE.get(left, leftOffset);
+        long a01 = (long) LONG_LE.get(left, leftOffset + 8);
+        long a02 = (long) LONG_LE.get(left, leftOffset + 16);
+        long a03 = (long) LONG_LE.get(left, leftOffset + 24);
+        long a04 = (long) LONG_LE.get(right, rightOffset);
+        long a05 = (long) LONG_LE.get(right, rightOffset + 8);
+        long a06 = (long) LONG_LE.get(right, rightOffset + 16);
+        long a07 = (long) LONG_LE.get(right, rightOffset + 24);
+        // keccak padding: 0x01 after input and 0x80 at the last byte of block:
+        long a08 = 0x01L;
+        long a09 = 0, a10 = 0, a11 = 0, a12 = 0, a13 = 0, a14 = 0, a15 = 0;
+        long a16 = 0x8000000000000000L;
+        long a17 = 0, a18 = 0, a19 = 0, a20 = 0, a21 = 0, a22 = 0, a23 = 0, a24 = 0;
+
+        for (int i = 0; i < 24; i++) {
+            // theta:
+            long c0 = a00 ^ a05 ^ a10 ^ a15 ^ a20;
+            long c1 = a01 ^ a06 ^ a11 ^ a16 ^ a21;
+            long c2 = a02 ^ a07 ^ a12 ^ a17 ^ a22;
+            long c3 = a03 ^ a08 ^ a13 ^ a18 ^ a23;
+            long c4 = a04 ^ a09 ^ a14 ^ a19 ^ a24;
+            long d0 = Long.rotateLeft(c1, 1) ^ c4;
+            long d1 = Long.rotateLeft(c2, 1) ^ c0;
+            long d2 = Long.rotateLeft(c3, 1) ^ c1;
+            long d3 = Long.rotateLeft(c4, 1) ^ c2;
+            long d4 = Long.rotateLeft(c0, 1) ^ c3;
+            a00 ^= d0;
+            a05 ^= d0;
+            a10 ^= d0;
+            a15 ^= d0;
+            a20 ^= d0;
+            a01 ^= d1;
+            a06 ^= d1;
+            a11 ^= d1;
+            a16 ^= d1;
+            a21 ^= d1;
+            a02 ^= d2;
+            a07 ^= d2;
+            a12 ^= d2;
+            a17 ^= d2;
+            a22 ^= d2;
+            a03 ^= d3;
+            a08 ^= d3;
+            a13 ^= d3;
+            a18 ^= d3;
+            a23 ^= d3;
+            a04 ^= d4;
+            a09 ^= d4;
+            a14 ^= d4;
+            a19 ^= d4;
+            a24 ^= d4;
+
+            // rho and pi:
+            c1 = Long.rotateLeft(a01, 1);
+            a01 = Long.rotateLeft(a06, 44);
+            a06 = Long.rotateLeft(a09, 20);
+            a09 = Long.rotateLeft(a22, 61);
+            a22 = Long.rotateLeft(a14, 39);
+            a14 = Long.rotateLeft(a20, 18);
+            a20 = Long.rotateLeft(a02, 62);
+            a02 = Long.rotateLeft(a12, 43);
+            a12 = Long.rotateLeft(a13, 25);
+            a13 = Long.rotateLeft(a19, 8);
+            a19 = Long.rotateLeft(a23, 56);
+            a23 = Long.rotateLeft(a15, 41);
+            a15 = Long.rotateLeft(a04, 27);
+            a04 = Long.rotateLeft(a24, 14);
+            a24 = Long.rotateLeft(a21, 2);
+            a21 = Long.rotateLeft(a08, 55);
+            a08 = Long.rotateLeft(a16, 45);
+            a16 = Long.rotateLeft(a05, 36);
+            a05 = Long.rotateLeft(a03, 28);
+            a03 = Long.rotateLeft(a18, 21);
+            a18 = Long.rotateLeft(a17, 15);
+            a17 = Long.rotateLeft(a11, 10);
+            a11 = Long.rotateLeft(a07, 6);
+            a07 = Long.rotateLeft(a10, 3);
+            a10 = c1;
+
+            // chi:
+            c0 = a00 ^ (~a01 & a02);
+            c1 = a01 ^ (~a02 & a03);
+            a02 ^= ~a03 & a04;
+            a03 ^= ~a04 & a00;
+            a04 ^= ~a00 & a01;
+            a00 = c0;
+            a01 = c1;
+
+            c0 = a05 ^ (~a06 & a07);
+            c1 = a06 ^ (~a07 & a08);
+            a07 ^= ~a08 & a09;
+            a08 ^= ~a09 & a05;
+            a09 ^= ~a05 & a06;
+            a05 = c0;
+            a06 = c1;
+
+            c0 = a10 ^ (~a11 & a12);
+            c1 = a11 ^ (~a12 & a13);
+            a12 ^= ~a13 & a14;
+            a13 ^= ~a14 & a10;
+            a14 ^= ~a10 & a11;
+            a10 = c0;
+            a11 = c1;
+
+            c0 = a15 ^ (~a16 & a17);
+            c1 = a16 ^ (~a17 & a18);
+            a17 ^= ~a18 & a19;
+            a18 ^= ~a19 & a15;
+            a19 ^= ~a15 & a16;
+            a15 = c0;
+            a16 = c1;
+
+            c0 = a20 ^ (~a21 & a22);
+            c1 = a21 ^ (~a22 & a23);
+            a22 ^= ~a23 & a24;
+            a23 ^= ~a24 & a20;
+            a24 ^= ~a20 & a21;
+            a20 = c0;
+            a21 = c1;
+
+            // iota:
+            a00 ^= ROUND_CONSTANTS[i];
+        }
+        // squeeze 4 lanes:
+        LONG_LE.set(output, outOffset, a00);
+        LONG_LE.set(output, outOffset + 8, a01);
+        LONG_LE.set(output, outOffset + 16, a02);
+        LONG_LE.set(output, outOffset + 24, a03);
+    }
+}
@@ -0,0 +1,13 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * A changed leaf between two versions of sparse merkle tree. Old value or new
+ * value is empty bytes if the leaf does not exist in that version.
+ */
+public record LeafChange(NibbleString address, byte[] oldValue, byte[] newValue) {
+
+    @Override
+    public String toString() {
+        return String.format("LeafChange [address=%s, oldValue=%s, newValue=%s]", address, SmtUtils.toHexString(oldValue), SmtUtils.toHexString(newValue));
+    }
+}
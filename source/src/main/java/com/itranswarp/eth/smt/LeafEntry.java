@@ -0,0 +1,12 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * A leaf of sparse merkle tree with its address and data.
+ */
+public record LeafEntry(NibbleString address, byte[] dataValue) {
+
+    @Override
+    public String toString() {
+        return String.format("LeafEntry [address=%s, dataValue=%s]", address, SmtUtils.toHexString(dataValue));
+    }
+}
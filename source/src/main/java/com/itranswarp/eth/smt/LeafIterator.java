@@ -0,0 +1,137 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterate leafs in address order by in-order DFS.
+ * 
+ * Children of a full node are loaded together when the node is visited, but
+ * they are not cached in the node, so visited subtrees are released behind the
+ * cursor and memory is bounded by the depth of tree.
+ */
+class LeafIterator implements Iterator<LeafEntry> {
+
+    private final TreeStore store;
+    private final long number;
+    private final NibbleString fromAddress;
+    private final NibbleString toAddress;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    private LeafNode nextLeaf;
+
+    /**
+     * Iterate leafs under node within range [fromAddress, toAddress].
+     * 
+     * @param store       Tree store.
+     * @param number      Version to load children.
+     * @param node        Start node.
+     * @param fromAddress From address (inclusive).
+     * @param toAddress   To address (inclusive).
+     */
+    LeafIterator(TreeStore store, long number, Node node, NibbleString fromAddress, NibbleString toAddress) {
+        this.store = store;
+        this.number = number;
+        this.fromAddress = fromAddress;
+        this.toAddress = toAddress;
+        push(node);
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.nextLeaf != null;
+    }
+
+    @Override
+    public LeafEntry next() {
+        LeafNode leaf = this.nextLeaf;
+        if (leaf == null) {
+            throw new NoSuchElementException();
+        }
+        advance();
+        return new LeafEntry(leaf.address, leaf.getDataValue(this.store));
+    }
+
+    private void advance() {
+        this.nextLeaf = null;
+        while (!this.stack.isEmpty()) {
+            Frame frame = this.stack.peek();
+            if (frame.index >= 16) {
+                this.stack.pop();
+                continue;
+            }
+            Node child = frame.children[frame.index];
+            frame.children[frame.index] = null; // release visited subtree
+            frame.index++;
+            if (child instanceof LeafNode) {
+                this.nextLeaf = (LeafNode) child;
+                return;
+            }
+            if (child != null) {
+                push(child);
+            }
+        }
+    }
+
+    private void push(Node node) {
+        if (!inRange(node.getPath())) {
+            return;
+        }
+        if (node instanceof LeafNode) {
+            // leaf start node is treated as a frame with single child:
+            Frame frame = new Frame();
+            frame.children[0] = node;
+            this.stack.push(frame);
+            return;
+        }
+        FullNode fullNode = (FullNode) node;
+        NibbleString path = fullNode.nodePath;
+        Frame frame = new Frame();
+        // read ahead all children in range:
+        for (int i = 0; i < 16; i++) {
+            if (inRange(path, i)) {
+                Node child = fullNode.peekChild(this.store, this.number, i);
+                if (child != null && inRange(child.getPath())) {
+                    frame.children[i] = child;
+                }
+            }
+        }
+        this.stack.push(frame);
+    }
+
+    private boolean inRange(NibbleString path, int childIndex) {
+        int n = path.length();
+        int c = comparePrefix(path, this.fromAddress);
+        if (c < 0 || (c == 0 && childIndex < this.fromAddress.valueAt(n))) {
+            return false;
+        }
+        c = comparePrefix(path, this.toAddress);
+        return c < 0 || (c == 0 && childIndex <= this.toAddress.valueAt(n));
+    }
+
+    private boolean inRange(NibbleString path) {
+        return comparePrefix(path, this.fromAddress) >= 0 && comparePrefix(path, this.toAddress) <= 0;
+    }
+
+    /**
+     * Compare prefix with the same length part of address.
+     */
+    static int comparePrefix(NibbleString prefix, NibbleString address) {
+        int n = prefix.length();
+        for (int i = 0; i < n; i++) {
+            int c = prefix.valueAt(i) - address.valueAt(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    static class Frame {
+        final Node[] children = new Node[16];
+        int index = 0;
+    }
+}
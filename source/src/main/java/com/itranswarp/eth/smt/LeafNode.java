@@ -17,12 +17,20 @@ public class LeafNode extends Node {
      */
     int topLevel;
 
-    byte[] topHash;
+    /**
+     * Top hash as 4 words.
+     */
+    long topHash0, topHash1, topHash2, topHash3;
+
+    /**
+     * Data hash as 4 words.
+     */
+    long dataHash0, dataHash1, dataHash2, dataHash3;
 
     /**
-     * data hash of this node.
+     * Hashes are not calculated in lazy mode if false.
      */
-    byte[] dataHash;
+    boolean hasTopHash, hasDataHash;
 
     /**
      * data of this node.
@@ -35,16 +43,60 @@ public class LeafNode extends Node {
     }
 
     LeafNode(long number, NibbleString address, int topLevel, byte[] dataValue) {
-        assert address != null && address.length() == 40 : "invalid address: " + address;
+        this(number, address, topLevel, dataValue, false);
+    }
+
+    /**
+     * Construct leaf node by data hash, and data value is null if it is stored
+     * out of line.
+     */
+    LeafNode(long number, NibbleString address, int topLevel, byte[] dataHash, byte[] dataValue) {
+        this.number = number;
+        this.address = address;
+        setDataHash(dataHash);
+        this.dataValue = dataValue;
+        this.topLevel = topLevel;
+        setTopHash(liftDataHash());
+    }
+
+    /**
+     * Construct leaf node, and hashes are not calculated if lazy.
+     */
+    LeafNode(long number, NibbleString address, int topLevel, byte[] dataValue, boolean lazy) {
+        assert address != null && TreeInfo.isValidKeyBits(address.length() * 4) : "invalid address: " + address;
         assert dataValue != null && dataValue.length > 0 && dataValue.length % 32 == 0
                 : "invalid value: " + (dataValue == null ? "null" : SmtUtils.toHexString(dataValue));
         this.number = number;
         this.address = address;
-        this.dataHash = SmtUtils.keccak(dataValue);
         this.dataValue = dataValue;
-
         this.topLevel = topLevel;
-        this.topHash = SmtUtils.keccakMerkleByRange(160, address.substring(topLevel), this.dataHash);
+        if (!lazy) {
+            setDataHash(SmtUtils.keccak(dataValue));
+            setTopHash(liftDataHash());
+        }
+    }
+
+    private LeafNode(LeafNode node, NodeOwner owner) {
+        this.number = node.number;
+        this.address = node.address;
+        this.topLevel = node.topLevel;
+        this.topHash0 = node.topHash0;
+        this.topHash1 = node.topHash1;
+        this.topHash2 = node.topHash2;
+        this.topHash3 = node.topHash3;
+        this.dataHash0 = node.dataHash0;
+        this.dataHash1 = node.dataHash1;
+        this.dataHash2 = node.dataHash2;
+        this.dataHash3 = node.dataHash3;
+        this.hasTopHash = node.hasTopHash;
+        this.hasDataHash = node.hasDataHash;
+        this.dataValue = node.dataValue;
+        this.owner = owner;
+    }
+
+    @Override
+    LeafNode copy(NodeOwner owner) {
+        return new LeafNode(this, owner);
     }
 
     @Override
@@ -59,12 +111,44 @@ public class LeafNode extends Node {
 
     @Override
     public byte[] getTopHash() {
-        return this.topHash;
+        return this.hasTopHash ? toHash(this.topHash0, this.topHash1, this.topHash2, this.topHash3) : null;
+    }
+
+    @Override
+    void copyTopHash(byte[] dest, int offset) {
+        assert this.hasTopHash : "top hash is not calculated";
+        putHash(dest, offset, this.topHash0, this.topHash1, this.topHash2, this.topHash3);
     }
 
     @Override
     public byte[] getNodeHash() {
-        return this.dataHash;
+        return this.hasDataHash ? toHash(this.dataHash0, this.dataHash1, this.dataHash2, this.dataHash3) : null;
+    }
+
+    /**
+     * Set data hash, or null if data hash is not calculated.
+     */
+    private void setDataHash(byte[] hash) {
+        this.hasDataHash = hash != null;
+        if (hash != null) {
+            this.dataHash0 = word(hash, 0);
+            this.dataHash1 = word(hash, 1);
+            this.dataHash2 = word(hash, 2);
+            this.dataHash3 = word(hash, 3);
+        }
+    }
+
+    /**
+     * Set top hash, or null if top hash is not calculated.
+     */
+    private void setTopHash(byte[] hash) {
+        this.hasTopHash = hash != null;
+        if (hash != null) {
+            this.topHash0 = word(hash, 0);
+            this.topHash1 = word(hash, 1);
+            this.topHash2 = word(hash, 2);
+            this.topHash3 = word(hash, 3);
+        }
     }
 
     /**
@@ -76,6 +160,25 @@ public class LeafNode extends Node {
         return this.dataValue;
     }
 
+    /**
+     * Get data of leaf node, and load value from store if it is stored out of
+     * line.
+     * 
+     * @param store Tree store.
+     * @return Binary data.
+     */
+    byte[] getDataValue(TreeStore store) {
+        byte[] value = this.dataValue;
+        if (value == null) {
+            byte[] dataHash = getNodeHash();
+            value = store.loadValue(dataHash);
+            if (value == null) {
+                throw new IllegalStateException("Value not found: " + SmtUtils.toHexString(dataHash));
+            }
+        }
+        return value;
+    }
+
     /**
      * Update leaf node's number, data value and data hash.
      * 
@@ -84,11 +187,66 @@ public class LeafNode extends Node {
      * @param dataValue Binary data.
      */
     public void update(long number, int topLevel, byte[] dataValue) {
+        update(number, topLevel, dataValue, false);
+    }
+
+    void update(long number, int topLevel, byte[] dataValue, boolean lazy) {
         this.number = number;
         this.dataValue = dataValue;
-        this.dataHash = SmtUtils.keccak(dataValue);
         this.topLevel = topLevel;
-        this.topHash = SmtUtils.keccakMerkleByRange(160, address.substring(topLevel), this.dataHash);
+        if (lazy) {
+            this.hasDataHash = false;
+            this.hasTopHash = false;
+        } else {
+            setDataHash(SmtUtils.keccak(dataValue));
+            setTopHash(liftDataHash());
+        }
+    }
+
+    /**
+     * Update leaf node's number and top level without changing data value.
+     * 
+     * @param number   Version.
+     * @param topLevel Top level.
+     */
+    public void updateTopLevel(long number, int topLevel) {
+        updateTopLevel(number, topLevel, false);
+    }
+
+    void updateTopLevel(long number, int topLevel, boolean lazy) {
+        this.number = number;
+        this.topLevel = topLevel;
+        setTopHash(lazy ? null : liftDataHash());
+    }
+
+    /**
+     * Get key bits of tree which is the height of leaf.
+     * 
+     * @return Key bits.
+     */
+    int getKeyBits() {
+        return this.address.length() * 4;
+    }
+
+    /**
+     * Lift data hash to top hash in buffer of current thread.
+     */
+    private byte[] liftDataHash() {
+        int keyBits = getKeyBits();
+        return SmtUtils.keccakMerkleByRange(keyBits, keyBits, this.address, this.topLevel, this.dataHash0, this.dataHash1, this.dataHash2,
+                this.dataHash3);
+    }
+
+    /**
+     * Calculate hashes which are not calculated in lazy mode.
+     */
+    void rehash() {
+        if (!this.hasDataHash) {
+            setDataHash(SmtUtils.keccak(this.dataValue));
+        }
+        if (!this.hasTopHash) {
+            setTopHash(liftDataHash());
+        }
     }
 
     @Override
@@ -104,11 +262,12 @@ public class LeafNode extends Node {
 
     @Override
     public String toString() {
-        String data = SmtUtils.toHexString(this.dataValue);
+        String data = this.dataValue == null ? "(out of line)" : SmtUtils.toHexString(this.dataValue);
         if (data.length() > 8) {
             data = data.substring(0, 8) + "...";
         }
-        return String.format("LeafNode(number=%s, nodePath=%s, %s -> %s, topHash=%s, dataHash=%s, dataValue=%s)", this.number, this.address, this.topLevel, 40,
-                SmtUtils.toHexString(this.topHash).substring(0, 8), SmtUtils.toHexString(this.dataHash).substring(0, 8), data);
+        return String.format("LeafNode(number=%s, nodePath=%s, %s -> %s, topHash=%s, dataHash=%s, dataValue=%s)", this.number, this.address, this.topLevel, this.address.length(),
+                this.hasTopHash ? SmtUtils.toHexString(getTopHash()).substring(0, 8) : "null",
+                this.hasDataHash ? SmtUtils.toHexString(getNodeHash()).substring(0, 8) : "null", data);
     }
 }
@@ -0,0 +1,42 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory flat state store used for test.
+ */
+public class MemoryFlatStateStore implements FlatStateStore {
+
+    private final Map<NibbleString, byte[]> values = new ConcurrentHashMap<>();
+
+    private volatile long number = 0;
+
+    @Override
+    public long getNumber() {
+        return this.number;
+    }
+
+    @Override
+    public byte[] get(NibbleString address) {
+        return this.values.get(address);
+    }
+
+    @Override
+    public void merge(long number, Map<NibbleString, byte[]> changes) {
+        if (number <= this.number) {
+            throw new IllegalStateException("Invalid number " + number + " for merge, because last number is " + this.number);
+        }
+        this.values.putAll(changes);
+        this.number = number;
+    }
+
+    /**
+     * Get number of stored addresses.
+     *
+     * @return Size of store.
+     */
+    public int size() {
+        return this.values.size();
+    }
+}
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,15 +28,60 @@ import org.slf4j.LoggerFactory;
  * dataValue: leaf node's data, or null if non-leaf node.
  * 
  * Primary key: number, path and topHash.
+ * 
+ * A snapshot shares all nodes with its parent store and reads nodes of parent
+ * no newer than the fence number, so taking a snapshot is O(1) and both stores
+ * can keep accepting writes.
  */
 public class MemoryTreeStore implements TreeStore {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Nodes of each top path ordered by number, oldest first.
+     */
     Map<NibbleString, List<PersistNode>> topPathMap = new HashMap<>();
-    Map<String, PersistNode> rootMap = new HashMap<>();
+    Map<HashKey, PersistNode> rootMap = new HashMap<>();
     Map<NumberAndAddress, byte[]> leafMap = new HashMap<>();
 
+    /**
+     * Parent store of snapshot, or null if not a snapshot.
+     */
+    final MemoryTreeStore parent;
+
+    /**
+     * Nodes of parent newer than fence number are invisible.
+     */
+    final long fenceNumber;
+
+    /**
+     * Max number of nodes saved in this store.
+     */
+    long maxNumber = -1;
+
+    /**
+     * Construct an empty memory tree store.
+     */
+    public MemoryTreeStore() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    private MemoryTreeStore(MemoryTreeStore parent, long fenceNumber) {
+        this.parent = parent;
+        this.fenceNumber = fenceNumber;
+    }
+
+    /**
+     * Take a snapshot in O(1). The snapshot contains all nodes of this store at
+     * present, and writes to this store after snapshot are invisible to the
+     * snapshot, and vice versa.
+     * 
+     * @return Snapshot of memory tree store.
+     */
+    public MemoryTreeStore snapshot() {
+        return new MemoryTreeStore(this, latestNumber());
+    }
+
     /**
      * Make a copy of memory tree store.
      * 
@@ -45,57 +89,127 @@ public class MemoryTreeStore implements TreeStore {
      */
     public MemoryTreeStore copy() {
         MemoryTreeStore copy = new MemoryTreeStore();
-        copy.rootMap.putAll(this.rootMap);
-        copy.leafMap.putAll(this.leafMap);
+        copyTo(copy, Long.MAX_VALUE);
+        return copy;
+    }
+
+    private void copyTo(MemoryTreeStore target, long limit) {
+        if (this.parent != null) {
+            this.parent.copyTo(target, Math.min(limit, this.fenceNumber));
+        }
         for (NibbleString key : this.topPathMap.keySet()) {
-            List<PersistNode> value = this.topPathMap.get(key);
-            List<PersistNode> valueCopy = new ArrayList<>();
-            valueCopy.addAll(value);
-            copy.topPathMap.put(key, valueCopy);
+            List<PersistNode> valueCopy = target.topPathMap.computeIfAbsent(key, k -> new ArrayList<>());
+            for (PersistNode pnode : this.topPathMap.get(key)) {
+                if (pnode.number() <= limit) {
+                    valueCopy.add(pnode);
+                }
+            }
         }
-        return copy;
+        this.rootMap.forEach((key, pnode) -> {
+            if (pnode.number() <= limit) {
+                target.rootMap.put(key, pnode);
+            }
+        });
+        this.leafMap.forEach((key, value) -> {
+            if (key.number <= limit) {
+                target.leafMap.put(key, value);
+            }
+        });
+        target.maxNumber = Math.max(target.maxNumber, Math.min(limit, this.maxNumber));
     }
 
-    @Override
-    public Node load(NibbleString topPath, long currentNumber) {
+    private long latestNumber() {
+        return this.parent == null ? this.maxNumber : Math.max(this.maxNumber, this.fenceNumber);
+    }
+
+    /**
+     * Find the latest node of top path no newer than number.
+     */
+    private PersistNode find(NibbleString topPath, long currentNumber) {
         List<PersistNode> pnodes = topPathMap.get(topPath);
         if (pnodes != null) {
-            for (PersistNode pnode : pnodes) {
+            for (int i = pnodes.size() - 1; i >= 0; i--) {
+                PersistNode pnode = pnodes.get(i);
                 if (pnode.number() <= currentNumber) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("loaded node {} from store at {}", topPath, currentNumber);
-                    }
-                    return pnode.deserialize();
+                    return pnode;
+                }
+            }
+        }
+        return this.parent == null ? null : this.parent.find(topPath, Math.min(currentNumber, this.fenceNumber));
+    }
+
+    /**
+     * Find root node by hash no newer than number.
+     */
+    private PersistNode findRoot(HashKey hash, long currentNumber) {
+        PersistNode pnode = rootMap.get(hash);
+        if (pnode != null && pnode.number() > currentNumber) {
+            // root of same hash may be saved again later:
+            pnode = null;
+            List<PersistNode> roots = topPathMap.get(NibbleString.EMPTY);
+            for (int i = roots.size() - 1; i >= 0; i--) {
+                PersistNode root = roots.get(i);
+                if (root.number() <= currentNumber && hash.equals(new HashKey(root.nodeHash()))) {
+                    pnode = root;
+                    break;
                 }
             }
         }
+        if (pnode == null && this.parent != null) {
+            pnode = this.parent.findRoot(hash, Math.min(currentNumber, this.fenceNumber));
+        }
+        return pnode;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        final long start = System.nanoTime();
+        final MetricsListener metrics = Metrics.listener;
+        PersistNode pnode = find(topPath, currentNumber);
+        if (pnode != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("loaded node {} from store at {}", topPath, currentNumber);
+            }
+            Node node = pnode.deserialize();
+            metrics.onLoad(true);
+            metrics.onLatency(MetricsListener.Operation.STORE_LOAD, System.nanoTime() - start);
+            return node;
+        }
         if (logger.isDebugEnabled()) {
             logger.debug("loaded NULL node {} from store at {}", topPath, currentNumber);
         }
+        metrics.onLoad(false);
+        metrics.onLatency(MetricsListener.Operation.STORE_LOAD, System.nanoTime() - start);
         return null;
     }
 
     @Override
     public Node loadRoot(byte[] hash) {
-        String rootHash = SmtUtils.toHexString(hash);
-        PersistNode pnode = rootMap.get(rootHash);
+        PersistNode pnode = findRoot(new HashKey(hash), Long.MAX_VALUE);
         if (pnode == null) {
-            throw new IllegalStateException("Root hash not found: " + rootHash);
+            throw new IllegalStateException("Root hash not found: " + SmtUtils.toHexString(hash));
         }
         return pnode.deserialize();
     }
 
     @Override
     public void save(List<PersistNode> pnodes) {
+        final long start = System.nanoTime();
+        long bytes = 0;
         for (PersistNode pnode : pnodes) {
             addTopPathMap(pnode.topPath(), pnode);
             if (pnode.path().length() == 0) {
-                this.rootMap.put(SmtUtils.toHexString(pnode.nodeHash()), pnode);
+                this.rootMap.put(new HashKey(pnode.nodeHash()), pnode);
             }
             if (pnode.leaf()) {
                 addLeafMap(pnode.number(), pnode.path(), pnode.dataValue());
             }
+            bytes += pnode.estimatedSize();
+            this.maxNumber = Math.max(this.maxNumber, pnode.number());
         }
+        final MetricsListener metrics = Metrics.listener;
+        metrics.onSave(pnodes.size(), bytes);
+        metrics.onLatency(MetricsListener.Operation.STORE_SAVE, System.nanoTime() - start);
     }
 
     /**
@@ -118,16 +232,20 @@ public class MemoryTreeStore implements TreeStore {
             logger.debug("add top path: {} = {}", topPath, pnode);
         }
         List<PersistNode> pnodes = topPathMap.get(topPath);
+        PersistNode latest = null;
         if (pnodes == null) {
             pnodes = new ArrayList<>();
             topPathMap.put(topPath, pnodes);
-        } else {
-            PersistNode latest = pnodes.get(0);
-            if (latest.number() >= pnode.number()) {
-                throw new IllegalStateException("Invalid current node: " + pnode + ", because last node is " + latest);
+            if (this.parent != null) {
+                latest = this.parent.find(topPath, this.fenceNumber);
             }
+        } else {
+            latest = pnodes.get(pnodes.size() - 1);
+        }
+        if (latest != null && latest.number() >= pnode.number()) {
+            throw new IllegalStateException("Invalid current node: " + pnode + ", because last node is " + latest);
         }
-        pnodes.add(0, pnode);
+        pnodes.add(pnode);
     }
 
     private void addLeafMap(long number, NibbleString address, byte[] dataValue) {
@@ -152,7 +270,7 @@ class NumberAndAddress {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + Objects.hash(number);
+        result = prime * result + Long.hashCode(number);
         result = prime * result + address.hashCode();
         return result;
     }
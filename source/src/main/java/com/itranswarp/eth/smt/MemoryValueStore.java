@@ -0,0 +1,36 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory value store used for test.
+ */
+public class MemoryValueStore implements ValueStore {
+
+    private final Map<HashKey, byte[]> values = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(byte[] hash) {
+        return this.values.get(new HashKey(hash));
+    }
+
+    @Override
+    public boolean contains(byte[] hash) {
+        return this.values.containsKey(new HashKey(hash));
+    }
+
+    @Override
+    public void put(byte[] hash, byte[] value) {
+        this.values.put(new HashKey(hash), value);
+    }
+
+    /**
+     * Get number of stored values.
+     *
+     * @return Size of store.
+     */
+    public int size() {
+        return this.values.size();
+    }
+}
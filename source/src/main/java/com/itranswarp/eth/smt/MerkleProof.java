@@ -0,0 +1,88 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Arrays;
+
+/**
+ * Merkle proof of an address, which contains leaf data and sibling hashes from
+ * the leaf to the root. The number of siblings is the key bits of tree, which
+ * is 160 for address.
+ *
+ * @param address   Address, or hashed key in secure key mode.
+ * @param dataValue Leaf data, or empty bytes if address not exist.
+ * @param siblings  Sibling hashes indexed by height - 1, null if it is the
+ *                  default hash of that height.
+ */
+public record MerkleProof(NibbleString address, byte[] dataValue, byte[][] siblings) {
+
+    /**
+     * Get sibling hash of the node on the path at given height.
+     *
+     * @param height Height from 1 to key bits.
+     * @return Sibling hash.
+     */
+    public byte[] getSibling(int height) {
+        byte[] sibling = this.siblings[height - 1];
+        return sibling == null ? TreeInfo.getDefaultHash(this.siblings.length, height) : sibling;
+    }
+
+    /**
+     * Calculate root hash by leaf data and siblings.
+     *
+     * @return Root hash.
+     */
+    public byte[] calculateMerkleRoot() {
+        byte[] hash = SmtUtils.keccak(this.dataValue);
+        for (int height = this.siblings.length; height > 0; height--) {
+            byte[] sibling = getSibling(height);
+            hash = bitAt(this.address, height - 1) == 0 ? SmtUtils.keccak(hash, sibling) : SmtUtils.keccak(sibling, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Verify the proof against root hash.
+     *
+     * @param rootHash Root hash.
+     * @return True if proof is valid.
+     */
+    public boolean verify(byte[] rootHash) {
+        return Arrays.equals(rootHash, calculateMerkleRoot());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MerkleProof [address=%s, dataValue=%s]", address, SmtUtils.toHexString(dataValue));
+    }
+
+    /**
+     * Get bit of path at position, where 0 is the highest bit.
+     */
+    static int bitAt(NibbleString path, int pos) {
+        return (path.valueAt(pos >> 2) >> (3 - (pos & 3))) & 1;
+    }
+
+    /**
+     * Lift node hash at fromHeight to toHeight along its path with default
+     * siblings.
+     */
+    static byte[] lift(int keyBits, NibbleString path, int fromHeight, int toHeight, byte[] hash) {
+        for (int height = fromHeight; height > toHeight; height--) {
+            byte[] defaultHash = TreeInfo.getDefaultHash(keyBits, height);
+            hash = bitAt(path, height - 1) == 0 ? SmtUtils.keccak(hash, defaultHash) : SmtUtils.keccak(defaultHash, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Find first different bit of two paths, from bit position begin.
+     */
+    static int firstDiffBit(NibbleString p1, NibbleString p2, int begin) {
+        int end = Math.min(p1.length(), p2.length()) * 4;
+        for (int pos = begin; pos < end; pos++) {
+            if (bitAt(p1, pos) != bitAt(p2, pos)) {
+                return pos;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,31 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Holder of the global metrics listener which tree, nodes, hashing and stores
+ * report to.
+ */
+public final class Metrics {
+
+    static volatile MetricsListener listener = MetricsListener.NOOP;
+
+    private Metrics() {
+    }
+
+    /**
+     * Set global metrics listener.
+     * 
+     * @param listener Metrics listener, or null to reset as no-op.
+     */
+    public static void setListener(MetricsListener listener) {
+        Metrics.listener = listener == null ? MetricsListener.NOOP : listener;
+    }
+
+    /**
+     * Get global metrics listener.
+     * 
+     * @return Metrics listener.
+     */
+    public static MetricsListener getListener() {
+        return listener;
+    }
+}
@@ -0,0 +1,112 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Listener to receive metrics of tree and store operations. All methods are
+ * no-op by default, so an implementation only overrides what it needs.
+ * 
+ * Methods may be called from multiple threads and on hot paths, so an
+ * implementation must be thread-safe and cheap.
+ */
+public interface MetricsListener {
+
+    /**
+     * Listener which does nothing.
+     */
+    MetricsListener NOOP = new MetricsListener() {
+    };
+
+    /**
+     * Operations with latency reported.
+     */
+    enum Operation {
+
+        /**
+         * Update one or more addresses and commit.
+         */
+        UPDATE,
+
+        /**
+         * Get leaf data of single address.
+         */
+        GET_LEAF,
+
+        /**
+         * Get leaf data of multiple addresses.
+         */
+        GET_LEAFS,
+
+        /**
+         * Load a node from store.
+         */
+        STORE_LOAD,
+
+        /**
+         * Save nodes into store.
+         */
+        STORE_SAVE;
+    }
+
+    /**
+     * Called when an operation is done.
+     * 
+     * @param operation Operation.
+     * @param nanos     Latency in nanoseconds.
+     */
+    default void onLatency(Operation operation, long nanos) {
+    }
+
+    /**
+     * Called when a keccak hash is calculated.
+     */
+    default void onKeccak() {
+    }
+
+    /**
+     * Called when a full node looks up a child which may be cached in memory.
+     * 
+     * @param cached True if child is in memory, false if child must be loaded
+     *               from store.
+     */
+    default void onChildLookup(boolean cached) {
+    }
+
+    /**
+     * Called when a proof is looked up in proof cache.
+     * 
+     * @param cached True if proof is cached.
+     */
+    default void onProofLookup(boolean cached) {
+    }
+
+    /**
+     * Called when a node is loaded from store.
+     * 
+     * @param found True if node exists.
+     */
+    default void onLoad(boolean found) {
+    }
+
+    /**
+     * Called when a node is deserialized.
+     */
+    default void onDeserialize() {
+    }
+
+    /**
+     * Called when nodes are saved into store.
+     * 
+     * @param nodes Number of nodes.
+     * @param bytes Estimated bytes of nodes.
+     */
+    default void onSave(int nodes, long bytes) {
+    }
+
+    /**
+     * Called when a version is committed by tree.
+     * 
+     * @param number Version.
+     * @param nodes  Number of nodes written.
+     */
+    default void onCommit(long number, int nodes) {
+    }
+}
@@ -4,15 +4,16 @@ import java.util.Arrays;
 import java.util.Objects;
 
 /**
- * Immutable half-byte-string. Each element is in range of 0 ~ 0xf.
+ * Immutable half-byte-string. Each element is in range of 0 ~ 0xf, and stored
+ * in one byte. Substrings share the array of original string.
  */
-public final class NibbleString {
+public final class NibbleString implements Comparable<NibbleString> {
 
-    private static final int[] EMPTY_ARRAY = new int[0];
+    private static final byte[] EMPTY_ARRAY = new byte[0];
     private static final String HEX_STRING = "0123456789abcdef";
     private static final char[] HEX_CHARS = HEX_STRING.toCharArray();
 
-    private final int[] value;
+    private final byte[] value;
     private final int offset;
     private final int count;
     private int hash;
@@ -38,13 +39,13 @@ public final class NibbleString {
             this.count = 0;
         } else {
             int len = hexString.length();
-            int[] val = new int[len];
+            byte[] val = new byte[len];
             for (int i = 0; i < len; i++) {
                 char ch = hexString.charAt(i);
                 if (ch >= '0' && ch <= '9') {
-                    val[i] = ch - '0';
+                    val[i] = (byte) (ch - '0');
                 } else if (ch >= 'a' && ch <= 'f') {
-                    val[i] = ch + 10 - 'a';
+                    val[i] = (byte) (ch + 10 - 'a');
                 } else {
                     throw new IllegalArgumentException("Invalid hex string char: " + ch);
                 }
@@ -71,12 +72,12 @@ public final class NibbleString {
             this.count = 0;
         } else {
             int len = original.length;
-            int[] val = new int[len << 1];
+            byte[] val = new byte[len << 1];
             for (int i = 0; i < len; i++) {
                 int offset = i << 1;
                 byte b = original[i];
-                val[offset] = (b & 0xf0) >>> 4;
-                val[offset + 1] = b & 0x0f;
+                val[offset] = (byte) ((b & 0xf0) >>> 4);
+                val[offset + 1] = (byte) (b & 0x0f);
             }
             this.value = val;
             this.offset = 0;
@@ -94,13 +95,13 @@ public final class NibbleString {
         if (next < 0 || next > 15) {
             throw new IllegalArgumentException("Next nibble must between 0 ~ 15.");
         }
-        int[] copy = new int[this.count + 1];
+        byte[] copy = new byte[this.count + 1];
         System.arraycopy(this.value, this.offset, copy, 0, this.count);
-        copy[this.count] = next;
+        copy[this.count] = (byte) next;
         return new NibbleString(copy, 0, this.count + 1);
     }
 
-    private NibbleString(int[] original, int offset, int count) {
+    private NibbleString(byte[] original, int offset, int count) {
         this.value = original;
         this.offset = offset;
         this.count = count;
@@ -177,6 +178,15 @@ public final class NibbleString {
         return h;
     }
 
+    /**
+     * Compare two nibble strings lexicographically. A prefix is less than the
+     * longer string.
+     */
+    @Override
+    public int compareTo(NibbleString o) {
+        return Arrays.compare(this.value, this.offset, this.offset + this.count, o.value, o.offset, o.offset + o.count);
+    }
+
     @Override
     public String toString() {
         if (this.count == 0) {
@@ -222,9 +232,9 @@ public final class NibbleString {
      *         index <code>toffset</code>; <code>false</code> otherwise.
      */
     public boolean startsWith(NibbleString prefix, int toffset) {
-        int ta[] = this.value;
+        byte ta[] = this.value;
         int to = this.offset + toffset;
-        int pa[] = prefix.value;
+        byte pa[] = prefix.value;
         int po = prefix.offset;
         int pc = prefix.count;
         // Note: toffset might be near -1>>>1.
@@ -1,10 +1,20 @@
 package com.itranswarp.eth.smt;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * Node for sparse merkle tree.
  */
 public abstract class Node {
 
+    /**
+     * Owner of this node. A node can be modified only by the tree which holds
+     * the owner, and it is shared as immutable once owner is frozen.
+     */
+    NodeOwner owner;
+
     /**
      * Get node's last updated block number.
      * 
@@ -41,6 +51,14 @@ public abstract class Node {
      */
     public abstract byte[] getNodeHash();
 
+    /**
+     * Copy node's top hash to buffer without allocating hash array.
+     * 
+     * @param dest   Destination buffer.
+     * @param offset Offset of destination.
+     */
+    abstract void copyTopHash(byte[] dest, int offset);
+
     /**
      * For debug only.
      * 
@@ -48,4 +66,47 @@ public abstract class Node {
      * @param isLast Is last node.
      */
     public abstract void print(int indent, boolean[] isLast);
+
+    /**
+     * Copy node for modification, and children are shared.
+     * 
+     * @param owner New owner.
+     * @return Copied node.
+     */
+    abstract Node copy(NodeOwner owner);
+
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Get the word at index of 32-bytes hash. Hashes are held as 4 long fields
+     * by nodes to save an array object per hash.
+     */
+    static long word(byte[] hash, int index) {
+        return (long) LONG_BE.get(hash, index * 8);
+    }
+
+    static void putHash(byte[] dest, int offset, long w0, long w1, long w2, long w3) {
+        LONG_BE.set(dest, offset, w0);
+        LONG_BE.set(dest, offset + 8, w1);
+        LONG_BE.set(dest, offset + 16, w2);
+        LONG_BE.set(dest, offset + 24, w3);
+    }
+
+    static byte[] toHash(long w0, long w1, long w2, long w3) {
+        byte[] hash = new byte[32];
+        putHash(hash, 0, w0, w1, w2, w3);
+        return hash;
+    }
+}
+
+/**
+ * Owner of mutable nodes.
+ */
+final class NodeOwner {
+
+    volatile boolean frozen = false;
+
+    boolean isMutable() {
+        return !this.frozen;
+    }
 }
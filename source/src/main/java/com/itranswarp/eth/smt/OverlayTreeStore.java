@@ -0,0 +1,86 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A tree store which keeps saved nodes in memory and reads base store no newer
+ * than the fence number. It is used by a branch of tree, and saved nodes are
+ * written to base store only when the branch is merged.
+ */
+class OverlayTreeStore implements TreeStore {
+
+    final TreeStore base;
+    final long fenceNumber;
+
+    /**
+     * Nodes of each top path ordered by number, oldest first.
+     */
+    final Map<NibbleString, List<PersistNode>> topPathMap = new HashMap<>();
+    final Map<HashKey, PersistNode> rootMap = new HashMap<>();
+
+    /**
+     * Saved batches in order.
+     */
+    final List<List<PersistNode>> batches = new ArrayList<>();
+
+    OverlayTreeStore(TreeStore base, long fenceNumber) {
+        this.base = base;
+        this.fenceNumber = fenceNumber;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        List<PersistNode> pnodes = this.topPathMap.get(topPath);
+        if (pnodes != null) {
+            for (int i = pnodes.size() - 1; i >= 0; i--) {
+                PersistNode pnode = pnodes.get(i);
+                if (pnode.number() <= currentNumber) {
+                    return pnode.deserialize();
+                }
+            }
+        }
+        return this.base.load(topPath, Math.min(currentNumber, this.fenceNumber));
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        PersistNode pnode = this.rootMap.get(new HashKey(hash));
+        if (pnode != null) {
+            return pnode.deserialize();
+        }
+        Node root = this.base.loadRoot(hash);
+        if (root.getNumber() > this.fenceNumber) {
+            throw new IllegalStateException("Root hash not found: " + SmtUtils.toHexString(hash));
+        }
+        return root;
+    }
+
+    @Override
+    public byte[] loadValue(byte[] dataHash) {
+        return this.base.loadValue(dataHash);
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        for (PersistNode pnode : pnodes) {
+            List<PersistNode> list = this.topPathMap.get(pnode.topPath());
+            if (list == null) {
+                list = new ArrayList<>();
+                this.topPathMap.put(pnode.topPath(), list);
+            } else {
+                PersistNode latest = list.get(list.size() - 1);
+                if (latest.number() >= pnode.number()) {
+                    throw new IllegalStateException("Invalid current node: " + pnode + ", because last node is " + latest);
+                }
+            }
+            list.add(pnode);
+            if (pnode.path().isEmpty()) {
+                this.rootMap.put(new HashKey(pnode.nodeHash()), pnode);
+            }
+        }
+        this.batches.add(new ArrayList<>(pnodes));
+    }
+}
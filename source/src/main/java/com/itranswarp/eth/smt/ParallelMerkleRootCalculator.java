@@ -0,0 +1,463 @@
+package com.itranswarp.eth.smt;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calculate merkle root of a full set of leafs independently from the tree,
+ * which is used to audit the root of a persist tree.
+ *
+ * Each 160-bits address is stored as primitive key (long hi, long mid, int lo)
+ * and each leaf hash is stored in paged byte arrays. Keys are sorted once, then
+ * siblings which are always adjacent are merged level by level in parallel
+ * chunks, and the merged hash is written back in place.
+ *
+ * Update is not thread-safe.
+ */
+public class ParallelMerkleRootCalculator {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final int PAGE_BITS = 16;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Min leafs of a chunk processed by a task.
+     */
+    static final int MIN_CHUNK = 4096;
+
+    /**
+     * Number of pairs hashed as a batch when merging a chunk.
+     */
+    static final int MERGE_BATCH = 64;
+
+    private final int parallelism;
+
+    private int size = 0;
+    private long[] hi;
+    private long[] mid;
+    private int[] lo;
+    private byte[][] pages;
+
+    /**
+     * Construct a calculator.
+     *
+     * @param parallelism  Number of threads to calculate.
+     * @param expectedSize Expected number of leafs.
+     */
+    public ParallelMerkleRootCalculator(int parallelism, int expectedSize) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        int capacity = Math.max(16, expectedSize);
+        this.parallelism = parallelism;
+        this.hi = new long[capacity];
+        this.mid = new long[capacity];
+        this.lo = new int[capacity];
+        this.pages = new byte[0][];
+    }
+
+    /**
+     * Construct a calculator with parallelism of available processors.
+     */
+    public ParallelMerkleRootCalculator() {
+        this(Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    /**
+     * Get number of updates.
+     *
+     * @return Number of updates.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Update an address with binary data.
+     *
+     * @param address   Address like 0x1234...abcd. All lowercase.
+     * @param dataValue Binary value.
+     */
+    public void update(String address, byte[] dataValue) {
+        if (!SmtUtils.isValidAddress(address)) {
+            throw new IllegalArgumentException("Invalid address: " + address);
+        }
+        update(SmtUtils.fromHexString(address.substring(2)), dataValue);
+    }
+
+    /**
+     * Update an address with binary data. Later update overrides the previous
+     * update of the same address.
+     *
+     * @param address   20-bytes address.
+     * @param dataValue Binary value.
+     */
+    public void update(byte[] address, byte[] dataValue) {
+        if (address.length != 20) {
+            throw new IllegalArgumentException("Invalid address length: " + address.length);
+        }
+        int index = this.size;
+        if (index == this.hi.length) {
+            int capacity = index + (index >> 1);
+            if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+            }
+            if (capacity == index) {
+                throw new IllegalStateException("Too many leafs: " + index);
+            }
+            this.hi = Arrays.copyOf(this.hi, capacity);
+            this.mid = Arrays.copyOf(this.mid, capacity);
+            this.lo = Arrays.copyOf(this.lo, capacity);
+        }
+        if ((index >> PAGE_BITS) == this.pages.length) {
+            this.pages = Arrays.copyOf(this.pages, this.pages.length + 1);
+            this.pages[this.pages.length - 1] = new byte[PAGE_SIZE * 32];
+        }
+        this.hi[index] = readLong(address, 0);
+        this.mid[index] = readLong(address, 8);
+        this.lo[index] = (int) readLong(address, 12);
+        byte[] dataHash = SmtUtils.keccak(dataValue);
+        System.arraycopy(dataHash, 0, this.pages[index >> PAGE_BITS], (index & PAGE_MASK) * 32, 32);
+        this.size++;
+    }
+
+    /**
+     * Calculate root hash. All updates are consumed and the calculator should
+     * not be used again.
+     *
+     * @return Root hash.
+     */
+    public byte[] calculateMerkleRoot() {
+        if (this.size == 0) {
+            return TreeInfo.getDefaultHash(0);
+        }
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            long start = System.currentTimeMillis();
+            int n = sortAndDedup(pool);
+            if (logger.isDebugEnabled()) {
+                logger.debug("sorted {} updates into {} leafs in {} ms.", this.size, n, System.currentTimeMillis() - start);
+            }
+            int[] bounds = new int[this.parallelism * 4 + 2];
+            int[] counts = new int[bounds.length];
+            for (int height = TreeInfo.DEFAULT_KEY_BITS; height > 0; height--) {
+                n = mergeLevel(pool, height, n, bounds, counts);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("calculated merkle root in {} ms.", System.currentTimeMillis() - start);
+            }
+            return Arrays.copyOf(this.pages[0], 32);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Sort leafs by address and keep the last update of each address.
+     *
+     * @return Number of leafs.
+     */
+    private int sortAndDedup(ForkJoinPool pool) {
+        final int total = this.size;
+        int[] order = new int[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        pool.invoke(new SortTask(order, new int[total], 0, total));
+        // gather by sorted order, the stable sort keeps last update at the end
+        // of equal keys:
+        long[] sortedHi = new long[total];
+        long[] sortedMid = new long[total];
+        int[] sortedLo = new int[total];
+        byte[][] sortedPages = new byte[this.pages.length][];
+        int n = 0;
+        for (int i = 0; i < total; i++) {
+            int index = order[i];
+            if (i + 1 < total && compareKey(index, order[i + 1]) == 0) {
+                continue;
+            }
+            if ((n & PAGE_MASK) == 0) {
+                sortedPages[n >> PAGE_BITS] = new byte[PAGE_SIZE * 32];
+            }
+            sortedHi[n] = this.hi[index];
+            sortedMid[n] = this.mid[index];
+            sortedLo[n] = this.lo[index];
+            System.arraycopy(this.pages[index >> PAGE_BITS], (index & PAGE_MASK) * 32, sortedPages[n >> PAGE_BITS], (n & PAGE_MASK) * 32, 32);
+            n++;
+        }
+        this.hi = sortedHi;
+        this.mid = sortedMid;
+        this.lo = sortedLo;
+        this.pages = sortedPages;
+        return n;
+    }
+
+    /**
+     * Merge nodes at height into parent nodes at height - 1. Each parent node is
+     * written at the position of its first child in the same chunk, then chunks
+     * are compacted.
+     *
+     * @return Number of parent nodes.
+     */
+    private int mergeLevel(ForkJoinPool pool, int height, int n, int[] bounds, int[] counts) {
+        final int prefixBits = height - 1;
+        // split into chunks, and never split two siblings:
+        int chunks = Math.max(1, Math.min(bounds.length - 1, n / MIN_CHUNK));
+        bounds[0] = 0;
+        for (int c = 1; c < chunks; c++) {
+            int bound = Math.max(bounds[c - 1], (int) ((long) n * c / chunks));
+            if (bound > 0 && bound < n && samePrefix(bound - 1, bound, prefixBits)) {
+                bound++;
+            }
+            bounds[c] = bound;
+        }
+        bounds[chunks] = n;
+        if (chunks == 1) {
+            counts[0] = mergeChunk(height, 0, n);
+        } else {
+            pool.invoke(new MergeTask(height, bounds, counts, 0, chunks));
+        }
+        // compact:
+        int next = counts[0];
+        for (int c = 1; c < chunks; c++) {
+            int from = bounds[c];
+            int count = counts[c];
+            if (from != next) {
+                System.arraycopy(this.hi, from, this.hi, next, count);
+                System.arraycopy(this.mid, from, this.mid, next, count);
+                System.arraycopy(this.lo, from, this.lo, next, count);
+                for (int i = 0; i < count; i++) {
+                    copyHash(from + i, next + i);
+                }
+            }
+            next += count;
+        }
+        return next;
+    }
+
+    private int mergeChunk(int height, int from, int to) {
+        final int prefixBits = height - 1;
+        final byte[] defaultHash = TreeInfo.getDefaultHash(height);
+        // pairs are gathered and hashed as a batch, then written to out. Since
+        // out is never greater than i, writing a batch never overwrites a hash
+        // not yet gathered:
+        final byte[] batch = new byte[MERGE_BATCH * 64];
+        int out = from;
+        int i = from;
+        int count = 0;
+        while (i < to) {
+            byte[] page = this.pages[i >> PAGE_BITS];
+            int offset = (i & PAGE_MASK) * 32;
+            int batchOffset = count * 64;
+            if (i + 1 < to && samePrefix(i, i + 1, prefixBits)) {
+                // left and right:
+                System.arraycopy(page, offset, batch, batchOffset, 32);
+                copyHashTo(i + 1, batch, batchOffset + 32);
+                moveKey(i, out);
+                i += 2;
+            } else {
+                if (bitAt(i, prefixBits) == 0) {
+                    System.arraycopy(page, offset, batch, batchOffset, 32);
+                    System.arraycopy(defaultHash, 0, batch, batchOffset + 32, 32);
+                } else {
+                    System.arraycopy(defaultHash, 0, batch, batchOffset, 32);
+                    System.arraycopy(page, offset, batch, batchOffset + 32, 32);
+                }
+                moveKey(i, out);
+                i++;
+            }
+            out++;
+            count++;
+            if (count == MERGE_BATCH) {
+                flushBatch(batch, out - count, count);
+                count = 0;
+            }
+        }
+        flushBatch(batch, out - count, count);
+        return out - from;
+    }
+
+    private void flushBatch(byte[] batch, int out, int count) {
+        if (count == 0) {
+            return;
+        }
+        SmtUtils.keccak64Batch(batch, 0, batch, 0, count);
+        for (int k = 0; k < count; k++) {
+            int index = out + k;
+            System.arraycopy(batch, k * 32, this.pages[index >> PAGE_BITS], (index & PAGE_MASK) * 32, 32);
+        }
+    }
+
+    private void copyHashTo(int from, byte[] dest, int destOffset) {
+        System.arraycopy(this.pages[from >> PAGE_BITS], (from & PAGE_MASK) * 32, dest, destOffset, 32);
+    }
+
+    private void moveKey(int from, int to) {
+        if (from != to) {
+            this.hi[to] = this.hi[from];
+            this.mid[to] = this.mid[from];
+            this.lo[to] = this.lo[from];
+        }
+    }
+
+    private void copyHash(int from, int to) {
+        System.arraycopy(this.pages[from >> PAGE_BITS], (from & PAGE_MASK) * 32, this.pages[to >> PAGE_BITS], (to & PAGE_MASK) * 32, 32);
+    }
+
+    /**
+     * Get the bit at position of address, where 0 is the highest bit.
+     */
+    int bitAt(int index, int pos) {
+        if (pos < 64) {
+            return (int) (this.hi[index] >>> (63 - pos)) & 1;
+        }
+        if (pos < 128) {
+            return (int) (this.mid[index] >>> (127 - pos)) & 1;
+        }
+        return (this.lo[index] >>> (159 - pos)) & 1;
+    }
+
+    /**
+     * Test if two addresses have the same highest bits.
+     */
+    boolean samePrefix(int a, int b, int bits) {
+        if (bits <= 64) {
+            return bits == 0 || (this.hi[a] ^ this.hi[b]) >>> (64 - bits) == 0;
+        }
+        if (this.hi[a] != this.hi[b]) {
+            return false;
+        }
+        if (bits <= 128) {
+            return (this.mid[a] ^ this.mid[b]) >>> (128 - bits) == 0;
+        }
+        if (this.mid[a] != this.mid[b]) {
+            return false;
+        }
+        return (this.lo[a] ^ this.lo[b]) >>> (160 - bits) == 0;
+    }
+
+    int compareKey(int a, int b) {
+        int cmp = Long.compareUnsigned(this.hi[a], this.hi[b]);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(this.mid[a], this.mid[b]);
+            if (cmp == 0) {
+                cmp = Integer.compareUnsigned(this.lo[a], this.lo[b]);
+            }
+        }
+        return cmp;
+    }
+
+    static long readLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Stable merge sort of leaf indexes by address.
+     */
+    class SortTask extends RecursiveAction {
+
+        static final int THRESHOLD = 8192;
+
+        final int[] order;
+        final int[] buffer;
+        final int from;
+        final int to;
+
+        SortTask(int[] order, int[] buffer, int from, int to) {
+            this.order = order;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                sequentialSort(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SortTask(order, buffer, from, middle), new SortTask(order, buffer, middle, to));
+            merge(from, middle, to);
+        }
+
+        void sequentialSort(int start, int end) {
+            if (end - start <= 32) {
+                // insertion sort:
+                for (int i = start + 1; i < end; i++) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while (j >= start && compareKey(order[j], value) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = value;
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            sequentialSort(start, middle);
+            sequentialSort(middle, end);
+            merge(start, middle, end);
+        }
+
+        void merge(int start, int middle, int end) {
+            if (compareKey(order[middle - 1], order[middle]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, start, buffer, start, end - start);
+            int i = start;
+            int j = middle;
+            int k = start;
+            while (i < middle && j < end) {
+                order[k++] = compareKey(buffer[i], buffer[j]) <= 0 ? buffer[i++] : buffer[j++];
+            }
+            while (i < middle) {
+                order[k++] = buffer[i++];
+            }
+            while (j < end) {
+                order[k++] = buffer[j++];
+            }
+        }
+    }
+
+    /**
+     * Merge chunks of a level.
+     */
+    class MergeTask extends RecursiveAction {
+
+        final int height;
+        final int[] bounds;
+        final int[] counts;
+        final int fromChunk;
+        final int toChunk;
+
+        MergeTask(int height, int[] bounds, int[] counts, int fromChunk, int toChunk) {
+            this.height = height;
+            this.bounds = bounds;
+            this.counts = counts;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                counts[fromChunk] = mergeChunk(height, bounds[fromChunk], bounds[fromChunk + 1]);
+                return;
+            }
+            int middle = (fromChunk + toChunk) >>> 1;
+            invokeAll(new MergeTask(height, bounds, counts, fromChunk, middle), new MergeTask(height, bounds, counts, middle, toChunk));
+        }
+    }
+}
@@ -5,7 +5,15 @@ import java.util.Arrays;
 /**
  * A PersistNode is ready to store or restore to a Node.
  */
-public record PersistNode(long number, boolean leaf, NibbleString topPath, NibbleString path, int topLevel, byte[] topHash, byte[] nodeHash, byte[] dataValue) {
+public record PersistNode(long number, boolean leaf, NibbleString topPath, NibbleString path, int topLevel, byte[] topHash, byte[] nodeHash, byte[] dataValue,
+        int keyBits) {
+
+    /**
+     * Construct a persist node of tree with default key bits.
+     */
+    public PersistNode(long number, boolean leaf, NibbleString topPath, NibbleString path, int topLevel, byte[] topHash, byte[] nodeHash, byte[] dataValue) {
+        this(number, leaf, topPath, path, topLevel, topHash, nodeHash, dataValue, TreeInfo.DEFAULT_KEY_BITS);
+    }
 
     /**
      * Serialize a node.
@@ -27,15 +35,16 @@ public record PersistNode(long number, boolean leaf, NibbleString topPath, Nibbl
         if (node.topLevel < node.nodeLevel) {
             topPath = node.nodePath.substring(0, node.topLevel);
         }
-        return new PersistNode(node.getNumber(), false, topPath, node.nodePath, node.getTopLevel(), node.getTopHash(), node.getNodeHash(), null);
+        return new PersistNode(node.getNumber(), false, topPath, node.nodePath, node.getTopLevel(), node.getTopHash(), node.getNodeHash(), null, node.keyBits);
     }
 
     private static PersistNode serializeLeafNode(LeafNode node) {
         NibbleString topPath = node.address;
-        if (node.topLevel < 40) {
+        if (node.topLevel < node.address.length()) {
             topPath = node.address.substring(0, node.topLevel);
         }
-        return new PersistNode(node.getNumber(), true, topPath, node.address, node.getTopLevel(), node.getTopHash(), node.getNodeHash(), node.getDataValue());
+        return new PersistNode(node.getNumber(), true, topPath, node.address, node.getTopLevel(), node.getTopHash(), node.getNodeHash(), node.getDataValue(),
+                node.getKeyBits());
     }
 
     /**
@@ -44,21 +53,38 @@ public record PersistNode(long number, boolean leaf, NibbleString topPath, Nibbl
      * @return Node.
      */
     public Node deserialize() {
-        boolean isLeaf = this.path.length() == 40;
-        if (isLeaf) {
-            LeafNode node = new LeafNode(this.number, this.path, this.topLevel, this.dataValue);
-            if (!Arrays.equals(this.topHash, node.topHash)) {
+        Metrics.listener.onDeserialize();
+        if (this.leaf) {
+            // value stored out of line is loaded only when asked:
+            LeafNode node = this.dataValue == null ? new LeafNode(this.number, this.path, this.topLevel, this.nodeHash, null)
+                    : new LeafNode(this.number, this.path, this.topLevel, this.dataValue);
+            if (!Arrays.equals(this.topHash, node.getTopHash())) {
                 throw new IllegalStateException("Top hash unmatched after deserialize.");
             }
             return node;
         } else {
-            FullNode node = new FullNode(this.number, this.path, this.topLevel);
-            node.topHash = this.topHash;
-            node.nodeHash = this.nodeHash;
+            FullNode node = new FullNode(this.number, this.path, this.topLevel, this.keyBits);
+            node.setNodeHash(this.nodeHash);
+            node.setTopHash(this.topHash);
             return node;
         }
     }
 
+    /**
+     * Estimate size in bytes when stored with nibbles packed into bytes.
+     * 
+     * @return Estimated bytes.
+     */
+    public int estimatedSize() {
+        // number, leaf, key bits, top level, top hash and node hash:
+        int size = 8 + 1 + 1 + 4 + 32 + 32;
+        size += (this.topPath.length() + 1) / 2 + (this.path.length() + 1) / 2;
+        if (this.dataValue != null) {
+            size += this.dataValue.length;
+        }
+        return size;
+    }
+
     @Override
     public String toString() {
         String data = "null";
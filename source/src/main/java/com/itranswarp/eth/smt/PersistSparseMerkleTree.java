@@ -1,7 +1,20 @@
 package com.itranswarp.eth.smt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,10 +24,72 @@ import org.slf4j.LoggerFactory;
  */
 public class PersistSparseMerkleTree {
 
+    /**
+     * Number of nodes loaded as a batch when warming up.
+     */
+    static final int WARM_UP_BATCH = 256;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final TreeStore store;
-    private final FullNode root;
+    private FullNode root;
+
+    /**
+     * Owner of nodes which can be modified by this tree. Nodes owned by a
+     * frozen owner are shared with branches and copied before modification.
+     */
+    private NodeOwner owner = new NodeOwner();
+    private final FlatState flatState;
+    private final TreeOptions options;
+
+    /**
+     * True if there are updates not committed in lazy mode. The root is at the
+     * pending number which is not saved yet.
+     */
+    private boolean pending = false;
+
+    /**
+     * Pending changes of flat state in lazy mode.
+     */
+    private Map<NibbleString, byte[]> pendingChanges = null;
+
+    /**
+     * Pending leaf changes for subscriptions in lazy mode.
+     */
+    private Map<NibbleString, LeafChange> pendingLeafChanges = null;
+
+    /**
+     * Subscriptions of change events.
+     */
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Changed nodes of current update, reused to avoid allocation.
+     */
+    private final List<Node> collector = new ArrayList<>();
+
+    /**
+     * Last committed root which is frozen for reads without lock in concurrent
+     * writers mode, or null if not in concurrent writers mode.
+     */
+    private volatile FullNode committedRoot = null;
+
+    /**
+     * Locks of subtrees striped by the first nibble of path in concurrent
+     * writers mode.
+     */
+    private final ReentrantLock[] stripeLocks;
+
+    /**
+     * Updates hold read lock and commit holds write lock in concurrent writers
+     * mode.
+     */
+    private final ReentrantReadWriteLock commitLock;
+
+    /**
+     * Cache of proofs of committed versions, or null if disabled.
+     */
+    private final ProofCache proofCache;
 
     /**
      * Construct a sparse-merkle-tree.
@@ -23,27 +98,171 @@ public class PersistSparseMerkleTree {
      * @param rootHash Root hash.
      */
     public PersistSparseMerkleTree(TreeStore store, byte[] rootHash) {
-        this.store = store;
+        this(store, rootHash, null);
+    }
+
+    /**
+     * Construct a sparse-merkle-tree with flat state for fast reading.
+     * 
+     * @param store     Tree store.
+     * @param rootHash  Root hash.
+     * @param flatState Flat state which must be at the same number of root, or
+     *                  null if no flat state.
+     */
+    public PersistSparseMerkleTree(TreeStore store, byte[] rootHash, FlatState flatState) {
+        this(store, rootHash, flatState, TreeOptions.DEFAULT);
+    }
+
+    /**
+     * Construct a sparse-merkle-tree with options.
+     * 
+     * @param store     Tree store.
+     * @param rootHash  Root hash.
+     * @param flatState Flat state which must be at the same number of root, or
+     *                  null if no flat state.
+     * @param options   Tree options.
+     */
+    public PersistSparseMerkleTree(TreeStore store, byte[] rootHash, FlatState flatState, TreeOptions options) {
+        // readers and writers load nodes while commit is saving in concurrent writers mode:
+        this.store = options.concurrentWriters && !store.isThreadSafe() ? new SynchronizedTreeStore(store) : store;
+        this.flatState = flatState;
+        this.options = options;
         if (rootHash == null) {
-            this.root = new FullNode(0, NibbleString.EMPTY, 0);
+            this.root = new FullNode(0, NibbleString.EMPTY, 0, options.keyBits);
+            this.root.owner = this.owner;
             this.store.save(List.of(PersistNode.serialize(this.root)));
             if (logger.isDebugEnabled()) {
                 logger.debug("init empty tree: {}", SmtUtils.toHexString(this.getMerkleRoot()));
             }
         } else {
             this.root = (FullNode) this.store.loadRoot(rootHash);
+            if (this.root.keyBits != options.keyBits) {
+                throw new IllegalStateException("Tree with " + this.root.keyBits + " key bits does not match options: " + options);
+            }
+            this.root.owner = this.owner;
             if (logger.isDebugEnabled()) {
                 logger.debug("init tree with root: {}", SmtUtils.toHexString(rootHash));
             }
         }
+        if (flatState != null && flatState.getNumber() != this.root.number) {
+            throw new IllegalStateException("Flat state at number " + flatState.getNumber() + " does not match tree at number " + this.root.number);
+        }
+        this.proofCache = options.proofCacheSize > 0 ? new ProofCache(options.proofCacheSize) : null;
+        if (options.concurrentWriters) {
+            if (!options.lazyHashing) {
+                throw new IllegalArgumentException("Concurrent writers mode requires lazy hashing.");
+            }
+            this.stripeLocks = new ReentrantLock[16];
+            for (int i = 0; i < 16; i++) {
+                this.stripeLocks[i] = new ReentrantLock();
+            }
+            this.commitLock = new ReentrantReadWriteLock();
+            freezeRoot();
+        } else {
+            this.stripeLocks = null;
+            this.commitLock = null;
+        }
+    }
+
+    /**
+     * Construct a branch of tree which shares all nodes with parent.
+     */
+    private PersistSparseMerkleTree(PersistSparseMerkleTree parent) {
+        this.store = new OverlayTreeStore(parent.store, parent.getNumber());
+        this.flatState = null;
+        this.options = parent.options;
+        this.root = parent.root;
+        this.stripeLocks = null;
+        this.commitLock = null;
+        this.proofCache = null;
     }
 
     /**
-     * Get root hash.
+     * Fork a branch of this tree in O(1). The branch shares all nodes with this
+     * tree, and updates of both trees copy only the nodes on the modified path.
+     * Updates of branch are kept in memory until it is merged by
+     * {@link #merge(PersistSparseMerkleTree)}, or discarded by simply dropping
+     * the branch.
+     * 
+     * @return A new branch.
+     */
+    public PersistSparseMerkleTree fork() {
+        checkNotConcurrent();
+        checkNotPending();
+        // all current nodes become immutable:
+        this.owner.frozen = true;
+        this.owner = new NodeOwner();
+        return new PersistSparseMerkleTree(this);
+    }
+
+    /**
+     * Merge a branch which is forked from the current version of this tree. All
+     * versions of the branch are saved to store, and this tree moves to the root
+     * of branch. The branch should not be used after merged.
+     * 
+     * @param branch Branch forked by this tree.
+     */
+    public void merge(PersistSparseMerkleTree branch) {
+        checkNotConcurrent();
+        if (!(branch.store instanceof OverlayTreeStore overlay) || overlay.base != this.store) {
+            throw new IllegalArgumentException("Not a branch of this tree.");
+        }
+        checkNotPending();
+        branch.checkNotPending();
+        if (overlay.fenceNumber != getNumber()) {
+            throw new IllegalStateException("Cannot merge branch forked at number " + overlay.fenceNumber + " because tree is at number " + getNumber());
+        }
+        byte[] prevRoot = this.root.getTopHash();
+        for (List<PersistNode> pnodes : overlay.batches) {
+            this.store.save(pnodes);
+            if (!this.subscriptions.isEmpty()) {
+                // leaf changes of branch are found by diff of roots:
+                byte[] rootHash = null;
+                for (PersistNode pnode : pnodes) {
+                    if (!pnode.leaf() && pnode.path().isEmpty()) {
+                        rootHash = pnode.nodeHash();
+                    }
+                }
+                List<LeafChange> leafChanges = new ArrayList<>();
+                diff(prevRoot, rootHash).forEachRemaining(leafChanges::add);
+                publish(new ChangeEvent(pnodes.get(0).number(), rootHash, leafChanges, pnodes));
+                prevRoot = rootHash;
+            }
+            if (this.flatState != null) {
+                Map<NibbleString, byte[]> changes = new HashMap<>();
+                for (PersistNode pnode : pnodes) {
+                    // leaf without value is loaded from store and only moved by a split:
+                    if (pnode.leaf() && pnode.dataValue() != null) {
+                        changes.put(pnode.path(), pnode.dataValue());
+                    }
+                }
+                this.flatState.commit(pnodes.get(0).number(), changes);
+            }
+        }
+        overlay.batches.clear();
+        branch.owner.frozen = true;
+        branch.owner = new NodeOwner();
+        this.owner.frozen = true;
+        this.owner = new NodeOwner();
+        this.root = branch.root;
+        if (this.proofCache != null) {
+            // versions of branch are not promoted:
+            this.proofCache.clear();
+        }
+    }
+
+    /**
+     * Get root hash. In concurrent writers mode, it is the root hash of the last
+     * committed version.
      * 
      * @return Root hash.
      */
     public byte[] getMerkleRoot() {
+        final FullNode committed = this.committedRoot;
+        if (committed != null) {
+            return committed.getTopHash();
+        }
+        rehashPending();
         return this.root.getTopHash();
     }
 
@@ -53,16 +272,113 @@ public class PersistSparseMerkleTree {
      * @return Root node.
      */
     public Node getRootNode() {
-        return this.root;
+        return readRoot();
     }
 
     /**
-     * Get number as version.
+     * Get number as version. Pending updates in lazy mode are not counted until
+     * committed.
      * 
      * @return Root version.
      */
     public long getNumber() {
-        return this.root.getNumber();
+        final FullNode committed = this.committedRoot;
+        if (committed != null) {
+            return committed.getNumber();
+        }
+        return this.pending ? this.root.getNumber() - 1 : this.root.getNumber();
+    }
+
+    /**
+     * Is there any update not committed in lazy mode.
+     * 
+     * @return True if has pending updates.
+     */
+    public boolean hasPending() {
+        return this.pending;
+    }
+
+    /**
+     * Subscribe change events published after each committed version. Events
+     * are delivered by a bounded ring buffer, and the tree never waits for
+     * consumer.
+     * 
+     * @param capacity Capacity of ring buffer.
+     * @param policy   Policy when buffer is full.
+     * @return Subscription.
+     */
+    public ChangeSubscription subscribe(int capacity, ChangeSubscription.OverflowPolicy policy) {
+        if (this.pending) {
+            throw new IllegalStateException("Cannot subscribe tree with pending updates.");
+        }
+        ChangeSubscription subscription = new ChangeSubscription(this.subscriptions, capacity, policy);
+        this.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Warm up by loading nodes of the top nibble levels from store, so requests
+     * after startup do not pay cold loads through the upper levels. Nodes of
+     * each level are loaded concurrently by executor in batches, and warm-up
+     * stops when all levels are loaded or the byte budget is used up. It should
+     * be called before the tree serves requests.
+     * 
+     * @param levels     Nibble levels under root to load. A full node is
+     *                   expanded only if its node level is less than levels.
+     * @param byteBudget Max estimated bytes of loaded nodes.
+     * @param executor   Executor to run loads.
+     * @param listener   Listener of progress, or null.
+     * @return Number of loaded nodes.
+     */
+    public long warmUp(int levels, long byteBudget, Executor executor, WarmUpListener listener) {
+        final long number = this.root.number;
+        final ConcurrentLoadTreeStore loader = new ConcurrentLoadTreeStore(this.store, executor);
+        long nodes = 0;
+        long bytes = 0;
+        List<FullNode> frontier = List.of(this.root);
+        int level = 0;
+        warmUp: while (!frontier.isEmpty()) {
+            level++;
+            List<FullNode> loadNodes = new ArrayList<>();
+            List<Integer> loadIndexes = new ArrayList<>();
+            List<NibbleString> loadPaths = new ArrayList<>();
+            List<FullNode> next = new ArrayList<>();
+            for (FullNode node : frontier) {
+                node.collectMissingChildren(loadNodes, loadIndexes, loadPaths, false);
+                // children already in memory are expanded as well:
+                for (int i = 0; i < 16; i++) {
+                    if (node.child(i) instanceof FullNode child && child.nodeLevel < levels) {
+                        next.add(child);
+                    }
+                }
+            }
+            for (int from = 0; from < loadPaths.size(); from += WARM_UP_BATCH) {
+                if (bytes >= byteBudget) {
+                    break warmUp;
+                }
+                int to = Math.min(from + WARM_UP_BATCH, loadPaths.size());
+                List<Node> loaded = loader.loadAll(loadPaths.subList(from, to), number);
+                for (int n = from; n < to; n++) {
+                    Node child = loaded.get(n - from);
+                    loadNodes.get(n).cacheChild(loadIndexes.get(n), child);
+                    if (child != null) {
+                        nodes++;
+                        bytes += PersistNode.serialize(child).estimatedSize();
+                        if (child instanceof FullNode childNode && childNode.nodeLevel < levels) {
+                            next.add(childNode);
+                        }
+                    }
+                }
+                if (listener != null) {
+                    listener.onProgress(level, nodes, bytes);
+                }
+            }
+            frontier = next;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("warm up {} nodes, {} bytes.", nodes, bytes);
+        }
+        return nodes;
     }
 
     /**
@@ -82,8 +398,175 @@ public class PersistSparseMerkleTree {
      * @return Binary data.
      */
     public byte[] getLeafData(byte[] address) {
-        LeafNode leaf = this.root.getLeaf(this.store, this.root.number, SmtUtils.addressToPath(address));
-        return leaf == null ? SmtUtils.EMPTY_DATA : leaf.dataValue;
+        final long start = System.nanoTime();
+        NibbleString path = toPath(address);
+        byte[] value;
+        if (this.flatState != null && (this.committedRoot != null || !this.pending)) {
+            value = this.flatState.get(path);
+        } else {
+            final FullNode root = readRoot();
+            LeafNode leaf = root.getLeaf(this.store, root.number, path);
+            value = leaf == null ? SmtUtils.EMPTY_DATA : leaf.getDataValue(this.store);
+        }
+        Metrics.listener.onLatency(MetricsListener.Operation.GET_LEAF, System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Get leaf data of multiple addresses. Addresses are sorted and the tree is
+     * descended once, with nodes of the same level loaded as batch.
+     * 
+     * @param addresses Addresses.
+     * @return Binary data list with the same order of addresses.
+     */
+    public List<byte[]> getLeafData(Collection<byte[]> addresses) {
+        final long start = System.nanoTime();
+        final int size = addresses.size();
+        final NibbleString[] paths = new NibbleString[size];
+        int n = 0;
+        for (byte[] address : addresses) {
+            paths[n] = toPath(address);
+            n++;
+        }
+        final byte[][] values = new byte[size][];
+        if (this.flatState != null && (this.committedRoot != null || !this.pending)) {
+            for (int i = 0; i < size; i++) {
+                values[i] = this.flatState.get(paths[i]);
+            }
+            Metrics.listener.onLatency(MetricsListener.Operation.GET_LEAFS, System.nanoTime() - start);
+            return Arrays.asList(values);
+        }
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> paths[i1].compareTo(paths[i2]));
+        NibbleString[] sortedPaths = new NibbleString[size];
+        for (int i = 0; i < size; i++) {
+            sortedPaths[i] = paths[order[i]];
+        }
+        LeafNode[] leafs = new LeafNode[size];
+        final FullNode root = readRoot();
+        root.getLeafs(this.store, root.number, sortedPaths, leafs);
+        for (int i = 0; i < size; i++) {
+            values[order[i]] = leafs[i] == null ? SmtUtils.EMPTY_DATA : leafs[i].getDataValue(this.store);
+        }
+        Metrics.listener.onLatency(MetricsListener.Operation.GET_LEAFS, System.nanoTime() - start);
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Get leaf data by address at history version. Recent versions are read from
+     * flat state if possible, otherwise read from tree store.
+     * 
+     * @param address Address.
+     * @param number  History version.
+     * @return Binary data.
+     */
+    public byte[] getLeafData(byte[] address, long number) {
+        if (number < 0 || number > getNumber()) {
+            throw new IllegalArgumentException("Invalid number: " + number);
+        }
+        NibbleString path = toPath(address);
+        if (this.flatState != null) {
+            byte[] value = this.flatState.get(path, number);
+            if (value != null) {
+                return value;
+            }
+        }
+        final FullNode root = readRoot();
+        if (number == root.number) {
+            LeafNode leaf = root.getLeaf(this.store, number, path);
+            return leaf == null ? SmtUtils.EMPTY_DATA : leaf.getDataValue(this.store);
+        }
+        FullNode historyRoot = (FullNode) this.store.load(NibbleString.EMPTY, number);
+        LeafNode leaf = historyRoot.getLeaf(this.store, number, path);
+        return leaf == null ? SmtUtils.EMPTY_DATA : leaf.getDataValue(this.store);
+    }
+
+    /**
+     * Get merkle proof of address.
+     * 
+     * @param address Address like 0x1234...abcd. All lowercase.
+     * @return Merkle proof.
+     */
+    public MerkleProof getProof(String address) {
+        return getProof(SmtUtils.fromHexString(address.substring(2)));
+    }
+
+    /**
+     * Get merkle proof of address. The proof of an address which is not exist
+     * contains empty data. If proof cache is enabled, proofs of committed
+     * versions are cached and shared, and must not be modified.
+     * 
+     * @param address Address.
+     * @return Merkle proof.
+     */
+    public MerkleProof getProof(byte[] address) {
+        rehashPending();
+        final FullNode root = readRoot();
+        NibbleString path = toPath(address);
+        // proof of pending updates is not cached because the version is not
+        // sealed yet:
+        final boolean cacheable = this.proofCache != null && (this.committedRoot != null || !this.pending);
+        if (cacheable) {
+            MerkleProof cached = this.proofCache.get(path, root.number);
+            Metrics.listener.onProofLookup(cached != null);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[][] siblings = new byte[this.options.keyBits][];
+        long[] visited = cacheable ? new long[1] : null;
+        LeafNode leaf = root.getProof(this.store, root.number, path, siblings, visited);
+        MerkleProof proof = new MerkleProof(path, leaf == null ? SmtUtils.EMPTY_DATA : leaf.getDataValue(this.store), siblings);
+        if (cacheable) {
+            this.proofCache.put(path, root.number, proof, visited[0]);
+        }
+        return proof;
+    }
+
+    /**
+     * Scan leafs in address order within range [fromAddress, toAddress]. Leafs
+     * are loaded lazily while iterating, and memory is bounded even for a full
+     * tree scan.
+     * 
+     * @param fromAddress From address like 0x1234...abcd (inclusive).
+     * @param toAddress   To address like 0x1234...abcd (inclusive).
+     * @return Iterator of leafs.
+     */
+    public Iterator<LeafEntry> scan(String fromAddress, String toAddress) {
+        return scan(SmtUtils.fromHexString(fromAddress.substring(2)), SmtUtils.fromHexString(toAddress.substring(2)));
+    }
+
+    /**
+     * Scan leafs in address order within range [fromAddress, toAddress]. Leafs
+     * are loaded lazily while iterating, and memory is bounded even for a full
+     * tree scan. In secure key mode, the range and addresses of leafs are hashed
+     * keys.
+     * 
+     * @param fromAddress From address (inclusive).
+     * @param toAddress   To address (inclusive).
+     * @return Iterator of leafs.
+     */
+    public Iterator<LeafEntry> scan(byte[] fromAddress, byte[] toAddress) {
+        final int keyBits = this.options.keyBits;
+        final FullNode root = readRoot();
+        return new LeafIterator(this.store, root.number, root, SmtUtils.keyToPath(fromAddress, keyBits), SmtUtils.keyToPath(toAddress, keyBits));
+    }
+
+    /**
+     * Get changed leafs between two roots in address order. The cost is
+     * proportional to the number of changes, not the size of the tree.
+     * 
+     * @param rootA Root hash of old tree.
+     * @param rootB Root hash of new tree.
+     * @return Iterator of changed leafs.
+     */
+    public Iterator<LeafChange> diff(byte[] rootA, byte[] rootB) {
+        FullNode nodeA = (FullNode) this.store.loadRoot(rootA);
+        FullNode nodeB = (FullNode) this.store.loadRoot(rootB);
+        return new DiffIterator(this.store, nodeA, nodeB);
     }
 
     /**
@@ -115,10 +598,7 @@ public class PersistSparseMerkleTree {
      * @param dataValue Binary data.
      */
     public void update(byte[] address, byte[] dataValue) {
-        long number = getNumber() + 1;
-        List<Node> collector = new ArrayList<>();
-        this.root.update(collector, this.store, number, SmtUtils.addressToPath(address), dataValue);
-        this.batchStore(collector);
+        doUpdate(new NibbleString[] { toPath(address) }, new byte[][] { dataValue });
     }
 
     /**
@@ -130,33 +610,320 @@ public class PersistSparseMerkleTree {
      * @param dataValue2 Binary data.
      */
     public void update(byte[] address1, byte[] dataValue1, byte[] address2, byte[] dataValue2) {
-        long number = getNumber() + 1;
-        List<Node> collector = new ArrayList<>();
-        this.root.update(collector, this.store, number, SmtUtils.addressToPath(address1), dataValue1);
-        this.root.update(collector, this.store, number, SmtUtils.addressToPath(address2), dataValue2);
-        this.batchStore(collector);
+        doUpdate(new NibbleString[] { toPath(address1), toPath(address2) }, new byte[][] { dataValue1, dataValue2 });
+    }
+
+    /**
+     * Update addresses with binary data as one version.
+     * 
+     * @param addresses  Addresses.
+     * @param dataValues Binary data of each address.
+     */
+    public void update(List<byte[]> addresses, List<byte[]> dataValues) {
+        if (addresses.size() != dataValues.size()) {
+            throw new IllegalArgumentException("Size of addresses and data values are different.");
+        }
+        if (addresses.isEmpty()) {
+            return;
+        }
+        final int size = addresses.size();
+        NibbleString[] paths = new NibbleString[size];
+        byte[][] values = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            paths[i] = toPath(addresses.get(i));
+            values[i] = dataValues.get(i);
+        }
+        doUpdate(paths, values);
+    }
+
+    /**
+     * Commit pending updates as one version in lazy mode. Dirty nodes are hashed
+     * once and saved to store. Do nothing if there is no pending update.
+     */
+    public void commit() {
+        if (this.commitLock != null) {
+            // wait for running writers, and block new writers until committed:
+            this.commitLock.writeLock().lock();
+            try {
+                if (this.pending) {
+                    commitPending();
+                    freezeRoot();
+                }
+            } finally {
+                this.commitLock.writeLock().unlock();
+            }
+        } else if (this.pending) {
+            commitPending();
+        }
+    }
+
+    private void commitPending() {
+        final long start = System.nanoTime();
+        final long number = this.root.number;
+        List<PersistNode> pnodes;
+        try {
+            this.root.rehash(this.store, number);
+            pnodes = this.batchStore(number, this.collector);
+            promoteProofs(number);
+        } finally {
+            this.collector.clear();
+        }
+        if (this.pendingLeafChanges != null) {
+            publish(new ChangeEvent(number, this.root.getTopHash(), new ArrayList<>(this.pendingLeafChanges.values()), pnodes));
+            this.pendingLeafChanges = null;
+        }
+        if (this.pendingChanges != null) {
+            this.flatState.commit(number, this.pendingChanges);
+            this.pendingChanges = null;
+        }
+        this.pending = false;
+        Metrics.listener.onLatency(MetricsListener.Operation.UPDATE, System.nanoTime() - start);
+    }
+
+    private void doUpdate(NibbleString[] paths, byte[][] dataValues) {
+        final long start = System.nanoTime();
+        if (this.commitLock != null) {
+            doConcurrentUpdate(paths, dataValues);
+            return;
+        }
+        if (this.options.lazyHashing) {
+            // all updates before commit share the same pending number:
+            final long number = this.pending ? this.root.number : this.root.number + 1;
+            ownRoot();
+            if (!this.subscriptions.isEmpty()) {
+                if (this.pendingLeafChanges == null) {
+                    this.pendingLeafChanges = new LinkedHashMap<>();
+                }
+                collectLeafChanges(this.pendingLeafChanges, paths, dataValues);
+            }
+            for (int i = 0; i < paths.length; i++) {
+                this.root.update(this.collector, this.store, number, paths[i], dataValues[i], true);
+            }
+            this.pending = true;
+            if (this.flatState != null) {
+                if (this.pendingChanges == null) {
+                    this.pendingChanges = new HashMap<>();
+                }
+                for (int i = 0; i < paths.length; i++) {
+                    this.pendingChanges.put(paths[i], dataValues[i]);
+                }
+            }
+            return;
+        }
+        final long number = getNumber() + 1;
+        ownRoot();
+        Map<NibbleString, LeafChange> leafChanges = null;
+        if (!this.subscriptions.isEmpty()) {
+            leafChanges = new LinkedHashMap<>();
+            collectLeafChanges(leafChanges, paths, dataValues);
+        }
+        List<PersistNode> pnodes;
+        try {
+            for (int i = 0; i < paths.length; i++) {
+                this.root.update(this.collector, this.store, number, paths[i], dataValues[i]);
+            }
+            pnodes = this.batchStore(number, this.collector);
+            promoteProofs(number);
+        } finally {
+            this.collector.clear();
+        }
+        if (leafChanges != null) {
+            publish(new ChangeEvent(number, this.root.getTopHash(), new ArrayList<>(leafChanges.values()), pnodes));
+        }
+        if (this.flatState != null) {
+            if (paths.length == 1) {
+                this.flatState.commit(number, Map.of(paths[0], dataValues[0]));
+            } else {
+                Map<NibbleString, byte[]> changes = new HashMap<>();
+                for (int i = 0; i < paths.length; i++) {
+                    changes.put(paths[i], dataValues[i]);
+                }
+                this.flatState.commit(number, changes);
+            }
+        }
+        Metrics.listener.onLatency(MetricsListener.Operation.UPDATE, System.nanoTime() - start);
     }
 
-    private void batchStore(List<Node> collector) {
+    /**
+     * Update by one of concurrent writers. Each path is updated under the lock
+     * of its stripe, and only the root is shared by writers of different
+     * stripes. Hashes are calculated when committed.
+     */
+    private void doConcurrentUpdate(NibbleString[] paths, byte[][] dataValues) {
+        this.commitLock.readLock().lock();
+        try {
+            // all updates before commit share the same pending number:
+            final long number = this.committedRoot.number + 1;
+            for (int i = 0; i < paths.length; i++) {
+                final ReentrantLock lock = this.stripeLocks[paths[i].valueAt(0)];
+                lock.lock();
+                try {
+                    this.root.updateConcurrently(this.collector, this.store, number, paths[i], dataValues[i]);
+                    synchronized (this) {
+                        this.pending = true;
+                        if (!this.subscriptions.isEmpty()) {
+                            if (this.pendingLeafChanges == null) {
+                                this.pendingLeafChanges = new LinkedHashMap<>();
+                            }
+                            collectLeafChange(this.pendingLeafChanges, paths[i], dataValues[i]);
+                        }
+                        if (this.flatState != null) {
+                            if (this.pendingChanges == null) {
+                                this.pendingChanges = new HashMap<>();
+                            }
+                            this.pendingChanges.put(paths[i], dataValues[i]);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            this.commitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collect leaf changes before update. Old value is read from tree only at
+     * the first update of an address.
+     */
+    private void collectLeafChanges(Map<NibbleString, LeafChange> leafChanges, NibbleString[] paths, byte[][] dataValues) {
+        for (int i = 0; i < paths.length; i++) {
+            collectLeafChange(leafChanges, paths[i], dataValues[i]);
+        }
+    }
+
+    private void collectLeafChange(Map<NibbleString, LeafChange> leafChanges, NibbleString path, byte[] dataValue) {
+        LeafChange prev = leafChanges.get(path);
+        byte[] oldValue;
+        if (prev != null) {
+            oldValue = prev.oldValue();
+        } else {
+            final FullNode root = readRoot();
+            LeafNode leaf = root.getLeaf(this.store, root.number, path);
+            oldValue = leaf == null ? SmtUtils.EMPTY_DATA : leaf.getDataValue(this.store);
+        }
+        leafChanges.put(path, new LeafChange(path, oldValue, dataValue));
+    }
+
+    private void publish(ChangeEvent event) {
+        for (ChangeSubscription subscription : this.subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Convert key to path, or hashed path in secure key mode.
+     */
+    NibbleString toPath(byte[] key) {
+        if (this.options.secureKey) {
+            return SmtUtils.hashedKeyToPath(key, this.options.keyBits);
+        }
+        return SmtUtils.keyToPath(key, this.options.keyBits);
+    }
+
+    /**
+     * Get top hash of child of root, or null if child not exist.
+     */
+    byte[] getRootChildTopHash(int index) {
+        rehashPending();
+        final FullNode root = readRoot();
+        return root.getChildTopHash(this.store, root.number, index);
+    }
+
+    /**
+     * Calculate hashes of dirty nodes if there are pending updates. Pending
+     * updates are hashed only by commit in concurrent writers mode.
+     */
+    private void rehashPending() {
+        if (this.pending && this.commitLock == null) {
+            this.root.rehash(this.store, this.root.number);
+        }
+    }
+
+    /**
+     * Promote cached proofs to the committed version by changed nodes in
+     * collector.
+     */
+    private void promoteProofs(long number) {
+        if (this.proofCache != null) {
+            this.proofCache.promote(number - 1, number, this.collector, this.store);
+        }
+    }
+
+    /**
+     * Get root to read, which is the last committed root in concurrent writers
+     * mode. Children loaded from the frozen committed root are not cached.
+     */
+    private FullNode readRoot() {
+        final FullNode committed = this.committedRoot;
+        return committed != null ? committed : this.root;
+    }
+
+    /**
+     * Freeze current root as the committed root for readers, and continue
+     * updates on a copy. Nodes of committed root are copied before modified.
+     */
+    private void freezeRoot() {
+        this.owner.frozen = true;
+        this.owner = new NodeOwner();
+        this.committedRoot = this.root;
+        this.root = this.root.copy(this.owner);
+    }
+
+    private void checkNotConcurrent() {
+        if (this.commitLock != null) {
+            throw new IllegalStateException("Cannot fork or merge tree in concurrent writers mode.");
+        }
+    }
+
+    private void checkNotPending() {
+        if (this.pending) {
+            throw new IllegalStateException("Cannot fork or merge tree with pending updates.");
+        }
+    }
+
+    /**
+     * Copy root for modification if it is shared with branch.
+     */
+    private void ownRoot() {
+        if (this.root.owner != this.owner) {
+            this.root = this.root.copy(this.owner);
+        }
+    }
+
+    private List<PersistNode> batchStore(long number, List<Node> collector) {
         // remove duplicate nodes:
-        int index = 0;
-        List<PersistNode> pnodes = new ArrayList<>();
-        for (Node node : collector) {
-            int firstIndex = collector.indexOf(node);
-            if (firstIndex == index) {
-                pnodes.add(PersistNode.serialize(node));
+        List<PersistNode> pnodes = new ArrayList<>(collector.size());
+        if (collector.size() <= 64) {
+            int index = 0;
+            for (Node node : collector) {
+                int firstIndex = collector.indexOf(node);
+                if (firstIndex == index) {
+                    pnodes.add(PersistNode.serialize(node));
+                }
+                index++;
+            }
+        } else {
+            Set<Node> added = Collections.newSetFromMap(new IdentityHashMap<>(collector.size()));
+            for (Node node : collector) {
+                if (added.add(node)) {
+                    pnodes.add(PersistNode.serialize(node));
+                }
             }
-            index++;
         }
         this.store.save(pnodes);
+        Metrics.listener.onCommit(number, pnodes.size());
+        return pnodes;
     }
 
     /**
      * For debug.
      */
     public void print() {
+        rehashPending();
         System.out.println("---- Begin Sparse Merkle Tree " + SmtUtils.toHexString(this.root.getTopHash()) + " ----");
-        boolean[] isLast = new boolean[41];
+        boolean[] isLast = new boolean[this.options.keyBits / 4 + 1];
         isLast[0] = true;
         this.root.print(0, isLast);
         System.out.println("---- End Sparse Merkle Tree ----\n");
@@ -0,0 +1,142 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of merkle proofs keyed by path and version.
+ * 
+ * A proof of address is made of siblings collected by the full nodes on its
+ * path. When a version is committed, cached proofs of the previous version are
+ * promoted to the new version: siblings of a changed full node on the path are
+ * collected again from the node, and the proof is dropped if a changed node
+ * replaces a node on the path, or the leaf itself is changed.
+ */
+class ProofCache {
+
+    record Key(NibbleString path, long number) {
+    }
+
+    /**
+     * Cached proof with the bit of node level of each full node on the path.
+     */
+    record Entry(MerkleProof proof, long visited) {
+    }
+
+    private final LinkedHashMap<Key, Entry> entries;
+
+    ProofCache(int capacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized MerkleProof get(NibbleString path, long number) {
+        Entry entry = this.entries.get(new Key(path, number));
+        return entry == null ? null : entry.proof();
+    }
+
+    synchronized void put(NibbleString path, long number, MerkleProof proof, long visited) {
+        this.entries.put(new Key(path, number), new Entry(proof, visited));
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Promote proofs of previous version to the committed version, and remove
+     * proofs of older versions.
+     * 
+     * @param fromNumber Previous version.
+     * @param toNumber   Committed version.
+     * @param changed    Changed nodes of committed version, which may contain
+     *                   duplicates.
+     * @param store      Tree store.
+     */
+    void promote(long fromNumber, long toNumber, List<Node> changed, TreeStore store) {
+        // changed nodes by top path, which is the path of slot in parent:
+        Map<NibbleString, Node> changedNodes = new HashMap<>(changed.size() * 2);
+        for (Node node : changed) {
+            changedNodes.put(topPath(node), node);
+        }
+        synchronized (this) {
+            List<Key> keys = new ArrayList<>();
+            List<Entry> promoted = new ArrayList<>();
+            Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> e = it.next();
+                long number = e.getKey().number();
+                if (number < toNumber) {
+                    it.remove();
+                    if (number == fromNumber) {
+                        Entry entry = e.getValue();
+                        MerkleProof proof = patch(entry.proof(), entry.visited(), changedNodes, store, toNumber);
+                        if (proof != null) {
+                            keys.add(new Key(e.getKey().path(), toNumber));
+                            promoted.add(new Entry(proof, entry.visited()));
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                this.entries.put(keys.get(i), promoted.get(i));
+            }
+        }
+    }
+
+    /**
+     * Patch proof by changed nodes, or return null if the path is changed.
+     */
+    static MerkleProof patch(MerkleProof proof, long visited, Map<NibbleString, Node> changedNodes, TreeStore store, long number) {
+        final NibbleString path = proof.address();
+        if (!(changedNodes.get(NibbleString.EMPTY) instanceof FullNode root)) {
+            // nothing changed:
+            return proof;
+        }
+        byte[][] siblings = proof.siblings().clone();
+        root.collectSiblings(store, number, path.valueAt(0), siblings);
+        int level = 0;
+        long rest = visited & ~1L;
+        while (true) {
+            // node in the slot of full node at level on the path:
+            Node node = changedNodes.get(path.substring(0, level + 1));
+            if (node == null) {
+                // subtree under slot is not changed:
+                break;
+            }
+            if (rest == 0) {
+                // leaf or node at the end of path is changed:
+                return null;
+            }
+            int nextLevel = Long.numberOfTrailingZeros(rest);
+            if (!(node instanceof FullNode fullNode) || fullNode.nodeLevel != nextLevel || !path.startsWith(fullNode.nodePath)) {
+                // node on the path is replaced:
+                return null;
+            }
+            fullNode.collectSiblings(store, number, path.valueAt(nextLevel), siblings);
+            level = nextLevel;
+            rest &= rest - 1;
+        }
+        return new MerkleProof(path, proof.dataValue(), siblings);
+    }
+
+    private static NibbleString topPath(Node node) {
+        if (node instanceof FullNode fullNode) {
+            return fullNode.topLevel < fullNode.nodeLevel ? fullNode.nodePath.substring(0, fullNode.topLevel) : fullNode.nodePath;
+        }
+        LeafNode leaf = (LeafNode) node;
+        return leaf.topLevel < leaf.address.length() ? leaf.address.substring(0, leaf.topLevel) : leaf.address;
+    }
+}
@@ -0,0 +1,279 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sparse merkle tree partitioned into 16 shards by the first nibble of path.
+ * 
+ * Shard i is a lazy persist tree which holds only addresses starting with
+ * nibble i, so its root has at most one child i which is exactly the child i
+ * of root of the whole tree. Each shard is owned by its own writer thread and
+ * is stored in its own tree store. Updates are routed to writers and applied
+ * concurrently, and the root hash is combined from top hashes of 16 shard
+ * children when committed.
+ * 
+ * This tree is not thread-safe and should be called by one thread, but the
+ * work of each shard is done by its writer thread.
+ */
+public class ShardedSparseMerkleTree implements AutoCloseable {
+
+    static final int SHARDS = 16;
+
+    private final TreeOptions options;
+    private final PersistSparseMerkleTree[] shards = new PersistSparseMerkleTree[SHARDS];
+    private final ExecutorService[] writers = new ExecutorService[SHARDS];
+
+    /**
+     * Top hashes of the only child of each shard root, null if shard is empty.
+     */
+    private final byte[][] childTopHashes = new byte[SHARDS][];
+
+    /**
+     * Bit i is set if shard i has updates not committed.
+     */
+    private int pendingMask = 0;
+
+    /**
+     * Update tasks submitted to writers but not yet joined.
+     */
+    private final List<Future<?>> pendingTasks = new ArrayList<>();
+
+    private long number;
+    private byte[] rootHash;
+
+    /**
+     * Construct a sharded tree.
+     * 
+     * @param stores     16 tree stores of shards.
+     * @param rootHashes 16 root hashes of shards, or null if empty tree.
+     * @param number     Number of root.
+     * @param options    Tree options, and lazy hashing is always enabled for
+     *                   shards.
+     */
+    public ShardedSparseMerkleTree(List<TreeStore> stores, List<byte[]> rootHashes, long number, TreeOptions options) {
+        if (stores.size() != SHARDS || (rootHashes != null && rootHashes.size() != SHARDS)) {
+            throw new IllegalArgumentException("Must have 16 shards.");
+        }
+        this.options = options;
+        this.number = number;
+        TreeOptions shardOptions = options.lazyHashing(true);
+        for (int i = 0; i < SHARDS; i++) {
+            final int index = i;
+            this.shards[i] = new PersistSparseMerkleTree(stores.get(i), rootHashes == null ? null : rootHashes.get(i), null, shardOptions);
+            this.writers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "smt-shard-" + Integer.toHexString(index));
+                t.setDaemon(true);
+                return t;
+            });
+            this.childTopHashes[i] = this.shards[i].getRootChildTopHash(i);
+        }
+        this.rootHash = FullNode.hashChildren(options.keyBits, 0, this.childTopHashes);
+    }
+
+    /**
+     * Get root hash of last commit.
+     * 
+     * @return Root hash.
+     */
+    public byte[] getMerkleRoot() {
+        return this.rootHash;
+    }
+
+    /**
+     * Get number of last commit.
+     * 
+     * @return Root version.
+     */
+    public long getNumber() {
+        return this.number;
+    }
+
+    /**
+     * Get root hashes of 16 shards, which are used to reopen the tree.
+     * 
+     * @return Root hashes of shards.
+     */
+    public List<byte[]> getShardRoots() {
+        checkNotPending();
+        List<byte[]> roots = new ArrayList<>(SHARDS);
+        for (PersistSparseMerkleTree shard : this.shards) {
+            roots.add(shard.getMerkleRoot());
+        }
+        return roots;
+    }
+
+    /**
+     * Update address with binary data. The update is applied by writer of shard
+     * asynchronously, and is visible after commit.
+     * 
+     * @param address   Address.
+     * @param dataValue Binary data.
+     */
+    public void update(byte[] address, byte[] dataValue) {
+        update(List.of(address), List.of(dataValue));
+    }
+
+    /**
+     * Update addresses with binary data. Addresses are grouped by shard and
+     * each group is applied by writer of shard asynchronously.
+     * 
+     * @param addresses  Addresses.
+     * @param dataValues Binary data of each address.
+     */
+    public void update(List<byte[]> addresses, List<byte[]> dataValues) {
+        if (addresses.size() != dataValues.size()) {
+            throw new IllegalArgumentException("Size of addresses and data values are different.");
+        }
+        @SuppressWarnings("unchecked")
+        List<byte[]>[] shardAddresses = new List[SHARDS];
+        @SuppressWarnings("unchecked")
+        List<byte[]>[] shardValues = new List[SHARDS];
+        for (int i = 0; i < addresses.size(); i++) {
+            byte[] address = addresses.get(i);
+            int index = shardOf(address);
+            if (shardAddresses[index] == null) {
+                shardAddresses[index] = new ArrayList<>();
+                shardValues[index] = new ArrayList<>();
+            }
+            shardAddresses[index].add(address);
+            shardValues[index].add(dataValues.get(i));
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            if (shardAddresses[i] != null) {
+                final PersistSparseMerkleTree shard = this.shards[i];
+                final List<byte[]> shardAddressList = shardAddresses[i];
+                final List<byte[]> shardValueList = shardValues[i];
+                this.pendingTasks.add(this.writers[i].submit(() -> shard.update(shardAddressList, shardValueList)));
+                this.pendingMask |= 1 << i;
+            }
+        }
+    }
+
+    /**
+     * Commit all updates as one version. Shards with pending updates are hashed
+     * and saved concurrently, then the root hash is combined.
+     */
+    public void commit() {
+        awaitPendingTasks();
+        if (this.pendingMask == 0) {
+            return;
+        }
+        List<Future<byte[]>> futures = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            if ((this.pendingMask & (1 << i)) != 0) {
+                final int index = i;
+                final PersistSparseMerkleTree shard = this.shards[i];
+                futures.add(this.writers[i].submit(() -> {
+                    shard.commit();
+                    return shard.getRootChildTopHash(index);
+                }));
+                indexes.add(i);
+            }
+        }
+        this.pendingMask = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            this.childTopHashes[indexes.get(i)] = join(futures.get(i));
+        }
+        this.rootHash = FullNode.hashChildren(this.options.keyBits, 0, this.childTopHashes);
+        this.number++;
+    }
+
+    /**
+     * Get leaf data by address of last commit.
+     * 
+     * @param address Address.
+     * @return Binary data.
+     */
+    public byte[] getLeafData(byte[] address) {
+        checkNotPending();
+        return this.shards[shardOf(address)].getLeafData(address);
+    }
+
+    /**
+     * Get merkle proof of address of last commit. Siblings of the top 4 levels
+     * are filled by other shards.
+     * 
+     * @param address Address.
+     * @return Merkle proof.
+     */
+    public MerkleProof getProof(byte[] address) {
+        checkNotPending();
+        final int childIndex = shardOf(address);
+        MerkleProof proof = this.shards[childIndex].getProof(address);
+        byte[][] siblings = proof.siblings().clone();
+        byte[][] hashes = this.childTopHashes.clone();
+        int index = childIndex;
+        int height = 4;
+        for (int n = 16; n >= 2; n = n / 2) {
+            siblings[height - 1] = hashes[index ^ 1];
+            byte[] defaultHash = TreeInfo.getDefaultHash(this.options.keyBits, height);
+            for (int i = 0; i < n / 2; i++) {
+                byte[] left = hashes[i * 2];
+                byte[] right = hashes[i * 2 + 1];
+                hashes[i] = left == null && right == null ? null
+                        : SmtUtils.keccak(left != null ? left : defaultHash, right != null ? right : defaultHash);
+            }
+            index = index >> 1;
+            height--;
+        }
+        return new MerkleProof(proof.address(), proof.dataValue(), siblings);
+    }
+
+    /**
+     * Stop all writers. Updates not committed are discarded.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService writer : this.writers) {
+            writer.shutdown();
+        }
+        try {
+            for (ExecutorService writer : this.writers) {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int shardOf(byte[] address) {
+        return this.shards[0].toPath(address).valueAt(0);
+    }
+
+    private void checkNotPending() {
+        if (this.pendingMask != 0) {
+            throw new IllegalStateException("Cannot read sharded tree with pending updates.");
+        }
+    }
+
+    private void awaitPendingTasks() {
+        try {
+            for (Future<?> future : this.pendingTasks) {
+                join(future);
+            }
+        } finally {
+            this.pendingTasks.clear();
+        }
+    }
+
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when waiting for shard writer.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException("Failed to update shard.", e.getCause());
+        }
+    }
+}
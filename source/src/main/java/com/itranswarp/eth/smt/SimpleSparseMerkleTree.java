@@ -9,8 +9,26 @@ import java.util.Map;
  */
 public class SimpleSparseMerkleTree {
 
+    private final int keyBits;
+
     private Map<BigInteger, LeafData> leafs = new HashMap<>(100000);
 
+    /**
+     * Construct a simple sparse merkle tree with 160-bits address as key.
+     */
+    public SimpleSparseMerkleTree() {
+        this(TreeInfo.DEFAULT_KEY_BITS);
+    }
+
+    /**
+     * Construct a simple sparse merkle tree with key bits.
+     * 
+     * @param keyBits Key bits.
+     */
+    public SimpleSparseMerkleTree(int keyBits) {
+        this.keyBits = keyBits;
+    }
+
     /**
      * Get leaf data by address, or empty bytes if no data.
      * 
@@ -44,13 +62,13 @@ public class SimpleSparseMerkleTree {
      */
     public byte[] calculateMerkleRoot() {
         if (this.leafs.isEmpty()) {
-            return TreeInfo.getDefaultHash(0);
+            return TreeInfo.getDefaultHash(this.keyBits, 0);
         }
         Map<BigInteger, byte[]> results = new HashMap<>(this.leafs.size());
         for (BigInteger key : this.leafs.keySet()) {
             results.put(key, this.leafs.get(key).hash);
         }
-        for (int i = 160; i > 0; i--) {
+        for (int i = this.keyBits; i > 0; i--) {
             Map<BigInteger, byte[]> tops = new HashMap<>(results.size() / 2);
             for (BigInteger index : results.keySet()) {
                 BigInteger leftIndex;
@@ -67,10 +85,10 @@ public class SimpleSparseMerkleTree {
                 byte[] leftHash = results.get(leftIndex);
                 byte[] rightHash = results.get(rightIndex);
                 if (leftHash == null) {
-                    leftHash = TreeInfo.getDefaultHash(i);
+                    leftHash = TreeInfo.getDefaultHash(this.keyBits, i);
                 }
                 if (rightHash == null) {
-                    rightHash = TreeInfo.getDefaultHash(i);
+                    rightHash = TreeInfo.getDefaultHash(this.keyBits, i);
                 }
                 byte[] topHash = SmtUtils.keccak(leftHash, rightHash);
                 BigInteger topIndex = leftIndex.shiftRight(1);
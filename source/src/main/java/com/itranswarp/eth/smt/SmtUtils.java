@@ -3,12 +3,15 @@ package com.itranswarp.eth.smt;
 import java.util.Arrays;
 import java.util.regex.Pattern;
 
-import org.bouncycastle.jcajce.provider.digest.Keccak;
-
 class SmtUtils {
 
     public static final byte[] EMPTY_DATA = new byte[0];
 
+    /**
+     * 32-bytes hash buffer reused by current thread.
+     */
+    private static final ThreadLocal<byte[]> HASH_BUFFER = ThreadLocal.withInitial(() -> new byte[32]);
+
     private static final Pattern ADDR = Pattern.compile("^0x[a-f0-9]{40}$");
 
     public static boolean isValidAddress(String address) {
@@ -23,10 +26,35 @@ class SmtUtils {
     }
 
     public static NibbleString addressToPath(byte[] address) {
-        if (address.length != 20) {
-            throw new IllegalArgumentException("invalid address: " + toHexString(address));
+        return keyToPath(address, TreeInfo.DEFAULT_KEY_BITS);
+    }
+
+    /**
+     * Convert key to path of tree with key bits.
+     * 
+     * @param key     Key bytes.
+     * @param keyBits Key bits of tree.
+     * @return Path of key.
+     */
+    public static NibbleString keyToPath(byte[] key, int keyBits) {
+        if (key.length * 8 != keyBits) {
+            throw new IllegalArgumentException("invalid key: " + toHexString(key));
         }
-        return new NibbleString(address);
+        return new NibbleString(key);
+    }
+
+    /**
+     * Convert key to path by keccak hash of key, and keep the first key bits.
+     * Keys are distributed uniformly in the tree even if they share long
+     * prefixes.
+     * 
+     * @param key     Key bytes with any length.
+     * @param keyBits Key bits of tree.
+     * @return Path of hashed key.
+     */
+    public static NibbleString hashedKeyToPath(byte[] key, int keyBits) {
+        byte[] hash = keccak(key);
+        return new NibbleString(keyBits == 256 ? hash : Arrays.copyOf(hash, keyBits / 8));
     }
 
     /**
@@ -49,9 +77,10 @@ class SmtUtils {
      * @return Hash data.
      */
     public static byte[] keccak(byte[] input) {
-        Keccak.DigestKeccak kecc = new Keccak.Digest256();
-        kecc.update(input);
-        return kecc.digest();
+        Metrics.listener.onKeccak();
+        byte[] output = new byte[32];
+        HashEngines.engine.keccak(input, 0, input.length, output, 0);
+        return output;
     }
 
     /**
@@ -76,10 +105,50 @@ class SmtUtils {
      * @return The output hash.
      */
     public static byte[] keccak(byte[] left, byte[] right) {
-        Keccak.DigestKeccak kecc = new Keccak.Digest256();
-        kecc.update(left);
-        kecc.update(right);
-        return kecc.digest();
+        Metrics.listener.onKeccak();
+        byte[] output = new byte[32];
+        if (left.length == 32 && right.length == 32) {
+            HashEngines.engine.keccak64(left, 0, right, 0, output, 0);
+        } else {
+            byte[] input = Arrays.copyOf(left, left.length + right.length);
+            System.arraycopy(right, 0, input, left.length, right.length);
+            HashEngines.engine.keccak(input, 0, input.length, output, 0);
+        }
+        return output;
+    }
+
+    /**
+     * Do keccak hash by two sequential 32-bytes inputs and write 32-bytes output
+     * into buffer without allocation. Output may overlap inputs.
+     * 
+     * @param left        The first input.
+     * @param leftOffset  Offset of the first input.
+     * @param right       The second input.
+     * @param rightOffset Offset of the second input.
+     * @param output      The output buffer.
+     * @param outOffset   Offset of output.
+     */
+    static void keccak(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outOffset) {
+        Metrics.listener.onKeccak();
+        HashEngines.engine.keccak64(left, leftOffset, right, rightOffset, output, outOffset);
+    }
+
+    /**
+     * Hash independent 64-bytes messages stored one after another as a batch,
+     * which may be hashed in multiple lanes by hash engine.
+     * 
+     * @param input     The input of messages.
+     * @param inOffset  Offset of the first message.
+     * @param output    The output of 32-bytes hashes.
+     * @param outOffset Offset of the first hash, not greater than inOffset if
+     *                  output is the same array of input.
+     * @param count     Number of messages.
+     */
+    static void keccak64Batch(byte[] input, int inOffset, byte[] output, int outOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            Metrics.listener.onKeccak();
+        }
+        HashEngines.engine.keccak64Batch(input, inOffset, output, outOffset, count);
     }
 
     public static String keccakMerkle(String[] leafsHex) {
@@ -129,17 +198,74 @@ class SmtUtils {
     }
 
     public static byte[] keccakMerkleByRange(int leafHeight, NibbleString pathRange, byte[] leafHash) {
-        if (pathRange.isEmpty()) {
+        return keccakMerkleByRange(TreeInfo.DEFAULT_KEY_BITS, leafHeight, pathRange, 0, leafHash);
+    }
+
+    /**
+     * Lift leaf hash to the top of path range, which is path[beginIndex:]. All
+     * intermediate hashes are calculated in buffer of current thread, and only
+     * the result is allocated.
+     * 
+     * @param keyBits    Key bits of tree.
+     * @param leafHeight The height of the leaf.
+     * @param path       The path.
+     * @param beginIndex Begin index of path range.
+     * @param leafHash   The hash of leaf.
+     * @return The merkle root of the path range.
+     */
+    public static byte[] keccakMerkleByRange(int keyBits, int leafHeight, NibbleString path, int beginIndex, byte[] leafHash) {
+        final int endIndex = path.length();
+        if (beginIndex == endIndex) {
             return leafHash;
         }
-        int height = leafHeight;
+        final byte[] buffer = HASH_BUFFER.get();
         byte[] hash = leafHash;
-        for (int i = pathRange.length() - 1; i >= 0; i--) {
-            int index = pathRange.valueAt(i);
-            hash = keccakMerkleOf1Level(height, index, hash);
+        int height = leafHeight;
+        for (int i = endIndex - 1; i >= beginIndex; i--) {
+            int index = path.valueAt(i);
+            for (int n = 0; n < 4; n++) {
+                byte[] defaultHash = TreeInfo.getDefaultHash(keyBits, height - n);
+                if ((index & (1 << n)) == 0) {
+                    keccak(hash, 0, defaultHash, 0, buffer, 0);
+                } else {
+                    keccak(defaultHash, 0, hash, 0, buffer, 0);
+                }
+                hash = buffer;
+            }
+            height -= 4;
+        }
+        return Arrays.copyOf(buffer, 32);
+    }
+
+    /**
+     * Lift leaf hash held as 4 words to the top of path range, which is
+     * path[beginIndex:]. The result is written to buffer of current thread and
+     * returned without allocation, and it is valid until next call on the same
+     * thread.
+     * 
+     * @param keyBits    Key bits of tree.
+     * @param leafHeight The height of the leaf.
+     * @param path       The path.
+     * @param beginIndex Begin index of path range.
+     * @return Buffer holds the merkle root of the path range.
+     */
+    static byte[] keccakMerkleByRange(int keyBits, int leafHeight, NibbleString path, int beginIndex, long w0, long w1, long w2, long w3) {
+        final byte[] buffer = HASH_BUFFER.get();
+        Node.putHash(buffer, 0, w0, w1, w2, w3);
+        int height = leafHeight;
+        for (int i = path.length() - 1; i >= beginIndex; i--) {
+            int index = path.valueAt(i);
+            for (int n = 0; n < 4; n++) {
+                byte[] defaultHash = TreeInfo.getDefaultHash(keyBits, height - n);
+                if ((index & (1 << n)) == 0) {
+                    keccak(buffer, 0, defaultHash, 0, buffer, 0);
+                } else {
+                    keccak(defaultHash, 0, buffer, 0, buffer, 0);
+                }
+            }
             height -= 4;
         }
-        return hash;
+        return buffer;
     }
 
     /**
@@ -0,0 +1,57 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Sync transport which serves nodes from a tree store in process.
+ */
+public class StoreSyncTransport implements SyncTransport {
+
+    private final TreeStore store;
+    private final Executor executor;
+
+    /**
+     * Construct a sync transport.
+     * 
+     * @param store    Tree store to serve nodes.
+     * @param executor Executor to handle requests.
+     */
+    public StoreSyncTransport(TreeStore store, Executor executor) {
+        this.store = store;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<PersistNode> requestRoot(byte[] rootHash) {
+        return CompletableFuture.supplyAsync(() -> serialize(this.store.loadRoot(rootHash)), this.executor);
+    }
+
+    @Override
+    public CompletableFuture<List<PersistNode>> requestChildren(NibbleString path, byte[] nodeHash, long number) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<PersistNode> children = new ArrayList<>(16);
+            for (int i = 0; i < 16; i++) {
+                Node child = this.store.load(path.join(i), number);
+                if (child != null) {
+                    children.add(serialize(child));
+                }
+            }
+            return children;
+        }, this.executor);
+    }
+
+    /**
+     * Serialize node with leaf value which may be stored out of line.
+     */
+    private PersistNode serialize(Node node) {
+        PersistNode pnode = PersistNode.serialize(node);
+        if (node instanceof LeafNode leaf && pnode.dataValue() == null) {
+            pnode = new PersistNode(pnode.number(), true, pnode.topPath(), pnode.path(), pnode.topLevel(), pnode.topHash(), pnode.nodeHash(),
+                    leaf.getDataValue(this.store), pnode.keyBits());
+        }
+        return pnode;
+    }
+}
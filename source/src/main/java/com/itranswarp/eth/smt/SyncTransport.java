@@ -0,0 +1,29 @@
+package com.itranswarp.eth.smt;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport used by tree sync to request nodes from a remote peer.
+ */
+public interface SyncTransport {
+
+    /**
+     * Request root node by root hash.
+     * 
+     * @param rootHash Root hash.
+     * @return Future of root node.
+     */
+    CompletableFuture<PersistNode> requestRoot(byte[] rootHash);
+
+    /**
+     * Request all existing children of a full node at version number.
+     * 
+     * @param path     Node path of full node.
+     * @param nodeHash Node hash of full node.
+     * @param number   Version.
+     * @return Future of children list, without non-exist children.
+     */
+    CompletableFuture<List<PersistNode>> requestChildren(NibbleString path, byte[] nodeHash, long number);
+
+}
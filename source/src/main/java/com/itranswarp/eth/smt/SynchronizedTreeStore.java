@@ -0,0 +1,80 @@
+package com.itranswarp.eth.smt;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A tree store which makes a store not thread-safe safe for concurrent loads
+ * and saves. Loads share a read lock and run in parallel, and a save holds the
+ * write lock, so loads wait only while a batch is saving.
+ */
+public class SynchronizedTreeStore implements TreeStore {
+
+    private final TreeStore base;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Construct a synchronized tree store.
+     * 
+     * @param base Base tree store which supports concurrent loads when no save
+     *             is running.
+     */
+    public SynchronizedTreeStore(TreeStore base) {
+        this.base = base;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        this.lock.readLock().lock();
+        try {
+            return this.base.load(topPath, currentNumber);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        this.lock.readLock().lock();
+        try {
+            return this.base.loadAll(topPaths, currentNumber);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        this.lock.readLock().lock();
+        try {
+            return this.base.loadRoot(hash);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] loadValue(byte[] dataHash) {
+        this.lock.readLock().lock();
+        try {
+            return this.base.loadValue(dataHash);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        this.lock.writeLock().lock();
+        try {
+            this.base.save(pnodes);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+}
@@ -2,20 +2,59 @@ package com.itranswarp.eth.smt;
 
 class TreeInfo {
 
-    public static int HEIGHT = 160;
+    /**
+     * Default key bits of tree, which is the height of 160-bits address.
+     */
+    public static final int DEFAULT_KEY_BITS = 160;
 
+    /**
+     * Max key bits of tree.
+     */
+    public static final int MAX_KEY_BITS = 256;
+
+    /**
+     * Default hashes indexed by depth from leaf, which are shared by trees of
+     * any key bits.
+     */
     private static final byte[][] DEFAULT_HASHES;
 
     static {
-        DEFAULT_HASHES = new byte[HEIGHT + 1][];
-        DEFAULT_HASHES[HEIGHT] = SmtUtils.keccak(new byte[0]);
-        for (int i = HEIGHT - 1; i >= 0; i--) {
-            DEFAULT_HASHES[i] = SmtUtils.keccak(DEFAULT_HASHES[i + 1], DEFAULT_HASHES[i + 1]);
+        DEFAULT_HASHES = new byte[MAX_KEY_BITS + 1][];
+        DEFAULT_HASHES[0] = SmtUtils.keccak(new byte[0]);
+        for (int i = 1; i <= MAX_KEY_BITS; i++) {
+            DEFAULT_HASHES[i] = SmtUtils.keccak(DEFAULT_HASHES[i - 1], DEFAULT_HASHES[i - 1]);
         }
     }
 
+    /**
+     * Get default hash at height of tree with default key bits.
+     *
+     * @param height Height from 0 (root) to 160 (leaf).
+     * @return Default hash.
+     */
     public static byte[] getDefaultHash(int height) {
-        assert height >= 0 && height <= HEIGHT : "invalid height: " + height;
-        return DEFAULT_HASHES[height];
+        return getDefaultHash(DEFAULT_KEY_BITS, height);
+    }
+
+    /**
+     * Get default hash at height of tree with key bits.
+     *
+     * @param keyBits Key bits of tree.
+     * @param height  Height from 0 (root) to key bits (leaf).
+     * @return Default hash.
+     */
+    public static byte[] getDefaultHash(int keyBits, int height) {
+        assert height >= 0 && height <= keyBits && keyBits <= MAX_KEY_BITS : "invalid height: " + height;
+        return DEFAULT_HASHES[keyBits - height];
+    }
+
+    /**
+     * Check if key bits is valid.
+     *
+     * @param keyBits Key bits.
+     * @return True if key bits is multiple of 8 and in range of [8, 256].
+     */
+    public static boolean isValidKeyBits(int keyBits) {
+        return keyBits >= 8 && keyBits <= MAX_KEY_BITS && keyBits % 8 == 0;
     }
 }
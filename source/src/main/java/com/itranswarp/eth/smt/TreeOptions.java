@@ -0,0 +1,153 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Options of persist sparse merkle tree. Options are immutable, and each
+ * setter returns a new copy.
+ */
+public final class TreeOptions {
+
+    /**
+     * Default options.
+     */
+    public static final TreeOptions DEFAULT = new TreeOptions(false, TreeInfo.DEFAULT_KEY_BITS, false, false, 0);
+
+    final boolean lazyHashing;
+    final int keyBits;
+    final boolean secureKey;
+    final boolean concurrentWriters;
+    final int proofCacheSize;
+
+    private TreeOptions(boolean lazyHashing, int keyBits, boolean secureKey, boolean concurrentWriters, int proofCacheSize) {
+        this.lazyHashing = lazyHashing;
+        this.keyBits = keyBits;
+        this.secureKey = secureKey;
+        this.concurrentWriters = concurrentWriters;
+        this.proofCacheSize = proofCacheSize;
+    }
+
+    /**
+     * Set lazy hashing mode. In lazy mode, updates only mark nodes dirty, and
+     * dirty nodes are hashed once when root hash is requested or updates are
+     * committed as one version by {@link PersistSparseMerkleTree#commit()}.
+     *
+     * @param lazyHashing True if use lazy hashing.
+     * @return New options.
+     */
+    public TreeOptions lazyHashing(boolean lazyHashing) {
+        return new TreeOptions(lazyHashing, this.keyBits, this.secureKey, this.concurrentWriters, this.proofCacheSize);
+    }
+
+    /**
+     * Set key bits which is the height of tree. Default to 160 for address. A
+     * tree keyed by 64-bits id has 2.5x fewer levels to hash.
+     *
+     * @param keyBits Key bits, multiple of 8 in range of [8, 256].
+     * @return New options.
+     */
+    public TreeOptions keyBits(int keyBits) {
+        if (!TreeInfo.isValidKeyBits(keyBits)) {
+            throw new IllegalArgumentException("Invalid key bits: " + keyBits);
+        }
+        return new TreeOptions(this.lazyHashing, keyBits, this.secureKey, this.concurrentWriters, this.proofCacheSize);
+    }
+
+    /**
+     * Set secure key mode. In secure key mode, keys are hashed by keccak before
+     * insertion, which keeps tree balanced even if keys share long prefixes.
+     * Keys can have any length, and proofs and scanned leafs use hashed keys.
+     *
+     * @param secureKey True if use secure key.
+     * @return New options.
+     */
+    public TreeOptions secureKey(boolean secureKey) {
+        return new TreeOptions(this.lazyHashing, this.keyBits, secureKey, this.concurrentWriters, this.proofCacheSize);
+    }
+
+    /**
+     * Set concurrent writers mode, which requires lazy hashing. In concurrent
+     * writers mode, updates can be called by multiple threads and are locked by
+     * 16 stripes of the first nibble of path, so writers of different subtrees
+     * run in parallel. Reads never block and see the last committed version.
+     * A tree store which is not thread-safe is wrapped by
+     * {@link SynchronizedTreeStore}.
+     *
+     * Reads of the committed version do not populate the node cache, because
+     * committed nodes are frozen and shared with writers. A node not in memory
+     * is loaded from store by every read until a writer loads the same path
+     * and commits, so a store with its own cache is preferred for read-heavy
+     * workloads.
+     *
+     * @param concurrentWriters True if allow concurrent writers.
+     * @return New options.
+     */
+    public TreeOptions concurrentWriters(boolean concurrentWriters) {
+        return new TreeOptions(this.lazyHashing, this.keyBits, this.secureKey, concurrentWriters, this.proofCacheSize);
+    }
+
+    /**
+     * Set max number of cached proofs. Proofs of the current version are cached
+     * by address, and cached proofs are patched to the next version when
+     * committed unless their paths are changed. Default to 0 which disables
+     * proof cache.
+     *
+     * @param proofCacheSize Max number of cached proofs.
+     * @return New options.
+     */
+    public TreeOptions proofCacheSize(int proofCacheSize) {
+        if (proofCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid proof cache size: " + proofCacheSize);
+        }
+        return new TreeOptions(this.lazyHashing, this.keyBits, this.secureKey, this.concurrentWriters, proofCacheSize);
+    }
+
+    /**
+     * Is lazy hashing mode.
+     *
+     * @return True if lazy hashing.
+     */
+    public boolean isLazyHashing() {
+        return this.lazyHashing;
+    }
+
+    /**
+     * Get key bits.
+     *
+     * @return Key bits.
+     */
+    public int getKeyBits() {
+        return this.keyBits;
+    }
+
+    /**
+     * Is secure key mode.
+     *
+     * @return True if keys are hashed.
+     */
+    public boolean isSecureKey() {
+        return this.secureKey;
+    }
+
+    /**
+     * Is concurrent writers mode.
+     *
+     * @return True if allow concurrent writers.
+     */
+    public boolean isConcurrentWriters() {
+        return this.concurrentWriters;
+    }
+
+    /**
+     * Get max number of cached proofs.
+     *
+     * @return Max number of cached proofs, or 0 if disabled.
+     */
+    public int getProofCacheSize() {
+        return this.proofCacheSize;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeOptions [lazyHashing=" + lazyHashing + ", keyBits=" + keyBits + ", secureKey=" + secureKey + ", concurrentWriters=" + concurrentWriters + ", proofCacheSize="
+                + proofCacheSize + "]";
+    }
+}
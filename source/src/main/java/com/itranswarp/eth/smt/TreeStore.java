@@ -1,9 +1,14 @@
 package com.itranswarp.eth.smt;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A tree store interface for persistence of nodes in sparse merkle tree.
+ * 
+ * A store is called by one thread by default. A tree in concurrent writers
+ * mode loads nodes from readers and writers while a commit is saving, so its
+ * store must be thread-safe, or it is wrapped by {@link SynchronizedTreeStore}.
  */
 public interface TreeStore {
 
@@ -17,6 +22,22 @@ public interface TreeStore {
      */
     Node load(NibbleString topPath, long currentNumber);
 
+    /**
+     * Load latest nodes by their top paths as batch. The default implementation
+     * loads nodes one by one.
+     * 
+     * @param topPaths      Top paths.
+     * @param currentNumber Current version.
+     * @return Nodes with the same order of top paths, null if node not found.
+     */
+    default List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        List<Node> nodes = new ArrayList<>(topPaths.size());
+        for (NibbleString topPath : topPaths) {
+            nodes.add(load(topPath, currentNumber));
+        }
+        return nodes;
+    }
+
     /**
      * Load root node by its hash.
      * 
@@ -26,7 +47,29 @@ public interface TreeStore {
     Node loadRoot(byte[] hash);
 
     /**
-     * Save persistable node as batch.
+     * Load leaf value which is stored out of line by its data hash. The default
+     * implementation stores values inline and returns null.
+     * 
+     * @param dataHash Data hash of leaf.
+     * @return Binary data, or null if not found.
+     */
+    default byte[] loadValue(byte[] dataHash) {
+        return null;
+    }
+
+    /**
+     * Is this store safe for concurrent loads and saves. The default
+     * implementation returns false.
+     * 
+     * @return True if thread-safe.
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Save persistable node as batch. A batch is not required to be saved
+     * atomically, so a crash may leave part of a batch saved.
      * 
      * @param pnodes Node list.
      */
@@ -0,0 +1,245 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sync a tree store to a target root from a remote peer.
+ * 
+ * Sync starts from the root and requests children of full nodes from the peer
+ * with many requests in flight. Every node is verified when it arrives: the top
+ * hash of each child is checked against its node hash, and the node hash of the
+ * parent is checked against the top hashes of all its children. A subtree is
+ * skipped if the local store already has a node with the same top path and top
+ * hash.
+ * 
+ * Verified nodes are saved bottom-up in bounded batches: a full node is saved
+ * only after its whole subtree is saved or already present, so local store
+ * never has a full node with missing children. An interrupted sync keeps the
+ * completed subtrees, which are skipped when sync is called again.
+ */
+public class TreeSync {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final TreeStore localStore;
+    private final SyncTransport transport;
+    private final int maxInFlight;
+    private final int batchSize;
+
+    /**
+     * Construct a tree sync which saves 1024 nodes per batch.
+     * 
+     * @param localStore  Local tree store to write nodes.
+     * @param transport   Transport to request nodes from peer.
+     * @param maxInFlight Max requests in flight.
+     */
+    public TreeSync(TreeStore localStore, SyncTransport transport, int maxInFlight) {
+        this(localStore, transport, maxInFlight, 1024);
+    }
+
+    /**
+     * Construct a tree sync.
+     * 
+     * @param localStore  Local tree store to write nodes.
+     * @param transport   Transport to request nodes from peer.
+     * @param maxInFlight Max requests in flight.
+     * @param batchSize   Max nodes saved per batch.
+     */
+    public TreeSync(TreeStore localStore, SyncTransport transport, int maxInFlight, int batchSize) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid max in flight: " + maxInFlight);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.localStore = localStore;
+        this.transport = transport;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sync local store to the target root.
+     * 
+     * @param rootHash Target root hash.
+     * @return Number of nodes saved into local store.
+     */
+    public int sync(byte[] rootHash) {
+        PersistNode root = join(this.transport.requestRoot(rootHash));
+        if (root.leaf() || !root.path().isEmpty() || !Arrays.equals(rootHash, root.nodeHash())) {
+            throw new IllegalStateException("Invalid root node: " + root);
+        }
+        verifyTopHash(root);
+        final long number = root.number();
+        if (isPresent(root, number)) {
+            return 0;
+        }
+        Batch batch = new Batch();
+        Deque<Pending> pending = new ArrayDeque<>();
+        pending.push(new Pending(root, null));
+        BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+        int inFlight = 0;
+        int requests = 0;
+        while (!pending.isEmpty() || inFlight > 0) {
+            while (inFlight < this.maxInFlight && !pending.isEmpty()) {
+                Pending parent = pending.pop();
+                this.transport.requestChildren(parent.pnode.path(), parent.pnode.nodeHash(), number).whenComplete((children, err) -> {
+                    responses.add(new Response(parent, children, err));
+                });
+                inFlight++;
+                requests++;
+            }
+            Response response;
+            try {
+                response = responses.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted when sync.", e);
+            }
+            inFlight--;
+            Pending parent = response.parent;
+            if (response.error != null) {
+                throw new IllegalStateException("Request children failed: " + parent.pnode, response.error);
+            }
+            verifyChildren(parent.pnode, response.children);
+            for (PersistNode child : response.children) {
+                if (isPresent(child, number)) {
+                    continue;
+                }
+                if (child.leaf()) {
+                    batch.add(child);
+                } else {
+                    parent.remaining++;
+                    pending.push(new Pending(child, parent));
+                }
+            }
+            // save parents whose subtrees are all saved:
+            while (parent != null && parent.remaining == 0) {
+                batch.add(parent.pnode);
+                parent = parent.parent;
+                if (parent != null) {
+                    parent.remaining--;
+                }
+            }
+        }
+        batch.flush();
+        if (logger.isDebugEnabled()) {
+            logger.debug("synced {} nodes by {} requests to root {}", batch.saved, requests, SmtUtils.toHexString(rootHash));
+        }
+        return batch.saved;
+    }
+
+    private boolean isPresent(PersistNode pnode, long number) {
+        Node local = this.localStore.load(pnode.topPath(), number);
+        return local != null && Arrays.equals(local.getTopHash(), pnode.topHash());
+    }
+
+    void verifyChildren(PersistNode parent, List<PersistNode> children) {
+        int level = parent.path().length();
+        byte[][] childTopHashes = new byte[16][];
+        for (PersistNode child : children) {
+            NibbleString topPath = child.topPath();
+            if (topPath.length() != level + 1 || child.topLevel() != level + 1 || !topPath.startsWith(parent.path()) || !child.path().startsWith(topPath)
+                    || child.number() > parent.number() || child.keyBits() != parent.keyBits()) {
+                throw new IllegalStateException("Invalid child node " + child + " of parent " + parent);
+            }
+            int index = topPath.valueAt(level);
+            if (childTopHashes[index] != null) {
+                throw new IllegalStateException("Duplicate child node " + child + " of parent " + parent);
+            }
+            verifyTopHash(child);
+            childTopHashes[index] = child.topHash();
+        }
+        byte[] nodeHash = FullNode.hashChildren(parent.keyBits(), level, childTopHashes);
+        if (!Arrays.equals(nodeHash, parent.nodeHash())) {
+            throw new IllegalStateException("Node hash unmatched with children of " + parent);
+        }
+    }
+
+    void verifyTopHash(PersistNode pnode) {
+        NibbleString path = pnode.path();
+        if (pnode.leaf()) {
+            if (path.length() * 4 != pnode.keyBits() || pnode.dataValue() == null || !Arrays.equals(pnode.nodeHash(), SmtUtils.keccak(pnode.dataValue()))) {
+                throw new IllegalStateException("Invalid leaf node: " + pnode);
+            }
+        } else if (path.length() * 4 >= pnode.keyBits() || pnode.dataValue() != null) {
+            throw new IllegalStateException("Invalid full node: " + pnode);
+        }
+        byte[] topHash = SmtUtils.keccakMerkleByRange(pnode.keyBits(), path.length() * 4, path, pnode.topLevel(), pnode.nodeHash());
+        if (!Arrays.equals(topHash, pnode.topHash())) {
+            throw new IllegalStateException("Top hash unmatched: " + pnode);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when sync.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Request failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Nodes to save, which are flushed to local store when batch is full.
+     */
+    class Batch {
+        List<PersistNode> pnodes = new ArrayList<>();
+        int saved = 0;
+
+        void add(PersistNode pnode) {
+            this.pnodes.add(pnode);
+            if (this.pnodes.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (!this.pnodes.isEmpty()) {
+                localStore.save(this.pnodes);
+                this.saved += this.pnodes.size();
+                this.pnodes = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Fetched full node which is not saved until its subtree is saved.
+     */
+    static class Pending {
+        final PersistNode pnode;
+        final Pending parent;
+        // full children not yet saved:
+        int remaining = 0;
+
+        Pending(PersistNode pnode, Pending parent) {
+            this.pnode = pnode;
+            this.parent = parent;
+        }
+    }
+
+    static class Response {
+        final Pending parent;
+        final List<PersistNode> children;
+        final Throwable error;
+
+        Response(Pending parent, List<PersistNode> children, Throwable error) {
+            this.parent = parent;
+            this.children = children;
+            this.error = error;
+        }
+    }
+}
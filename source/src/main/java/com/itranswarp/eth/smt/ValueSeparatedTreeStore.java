@@ -0,0 +1,89 @@
+package com.itranswarp.eth.smt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tree store which stores leaf values out of line in a value store.
+ * 
+ * Leaf values larger than the inline limit are stored once by their hash, and
+ * stored leaf nodes only reference the hash. A leaf which is re-persisted only
+ * because its top level changed does not rewrite its value. Loaded leafs do not
+ * hold values, which are fetched by {@link #loadValue(byte[])} only when asked.
+ */
+public class ValueSeparatedTreeStore implements TreeStore {
+
+    /**
+     * Default max size of value kept inline.
+     */
+    public static final int DEFAULT_INLINE_LIMIT = 64;
+
+    private final TreeStore base;
+    private final ValueStore valueStore;
+    private final int inlineLimit;
+
+    /**
+     * Construct a value separated tree store with default inline limit.
+     * 
+     * @param base       Tree store of nodes.
+     * @param valueStore Value store of leaf values.
+     */
+    public ValueSeparatedTreeStore(TreeStore base, ValueStore valueStore) {
+        this(base, valueStore, DEFAULT_INLINE_LIMIT);
+    }
+
+    /**
+     * Construct a value separated tree store.
+     * 
+     * @param base        Tree store of nodes.
+     * @param valueStore  Value store of leaf values.
+     * @param inlineLimit Values with size not greater than limit are kept inline.
+     */
+    public ValueSeparatedTreeStore(TreeStore base, ValueStore valueStore, int inlineLimit) {
+        this.base = base;
+        this.valueStore = valueStore;
+        this.inlineLimit = inlineLimit;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        return this.base.load(topPath, currentNumber);
+    }
+
+    @Override
+    public List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        return this.base.loadAll(topPaths, currentNumber);
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        return this.base.loadRoot(hash);
+    }
+
+    @Override
+    public byte[] loadValue(byte[] dataHash) {
+        return this.valueStore.get(dataHash);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return this.base.isThreadSafe();
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        List<PersistNode> separated = new ArrayList<>(pnodes.size());
+        for (PersistNode pnode : pnodes) {
+            if (pnode.leaf() && pnode.dataValue() != null && pnode.dataValue().length > this.inlineLimit) {
+                // value is written only once:
+                if (!this.valueStore.contains(pnode.nodeHash())) {
+                    this.valueStore.put(pnode.nodeHash(), pnode.dataValue());
+                }
+                pnode = new PersistNode(pnode.number(), true, pnode.topPath(), pnode.path(), pnode.topLevel(), pnode.topHash(), pnode.nodeHash(), null,
+                        pnode.keyBits());
+            }
+            separated.add(pnode);
+        }
+        this.base.save(separated);
+    }
+}
@@ -0,0 +1,35 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * A value store for persistence of leaf values by their hash, which keeps
+ * large values out of tree nodes.
+ */
+public interface ValueStore {
+
+    /**
+     * Get value by its hash, or null if not found.
+     *
+     * @param hash Keccak hash of value.
+     * @return Binary data, or null if not found.
+     */
+    byte[] get(byte[] hash);
+
+    /**
+     * Check if value exists.
+     *
+     * @param hash Keccak hash of value.
+     * @return True if exists.
+     */
+    default boolean contains(byte[] hash) {
+        return get(hash) != null;
+    }
+
+    /**
+     * Put value by its hash.
+     *
+     * @param hash  Keccak hash of value.
+     * @param value Binary data.
+     */
+    void put(byte[] hash, byte[] value);
+
+}
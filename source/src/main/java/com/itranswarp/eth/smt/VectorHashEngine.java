@@ -0,0 +1,175 @@
+package com.itranswarp.eth.smt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Hash engine which hashes independent 64-bytes messages in multiple lanes by
+ * Vector API. Each lane holds the sponge state of one message, so 4 (AVX2) or
+ * 8 (AVX-512) messages share one permutation.
+ * 
+ * Vectors are never passed to or returned from methods, otherwise they may be
+ * boxed if the method is not inlined. Single message and remaining messages of
+ * batch are hashed by the scalar engine. This class must be loaded only if
+ * module jdk.incubator.vector is available.
+ */
+class VectorHashEngine implements HashEngine {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    static final int LANES = SPECIES.length();
+
+    private static final long[] ROUND_CONSTANTS = { 0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+            0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L, 0x000000000000008aL, 0x0000000000000088L,
+            0x0000000080008009L, 0x000000008000000aL, 0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+            0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L, 0x8000000000008080L,
+            0x0000000080000001L, 0x8000000080008008L };
+
+    /**
+     * Rotation of word i by rho step.
+     */
+    private static final int[] RHO = { 0, 1, 62, 28, 27, 36, 44, 6, 55, 20, 3, 10, 43, 25, 39, 41, 45, 15, 21, 8, 18, 2, 61, 56, 14 };
+
+    /**
+     * Position of word i after pi step.
+     */
+    private static final int[] PI = new int[25];
+
+    static {
+        // word (x, y) is moved to (y, 2x + 3y):
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                PI[x + 5 * y] = y + 5 * ((2 * x + 3 * y) % 5);
+            }
+        }
+    }
+
+    private static final ThreadLocal<LaneBuffer> LANE_BUFFER = ThreadLocal.withInitial(LaneBuffer::new);
+
+    private final HashEngine scalar;
+
+    VectorHashEngine(HashEngine scalar) {
+        if (LANES < 4) {
+            throw new LinkageError("Vector of long is not supported.");
+        }
+        this.scalar = scalar;
+    }
+
+    @Override
+    public void keccak(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        this.scalar.keccak(input, offset, length, output, outOffset);
+    }
+
+    @Override
+    public void keccak64(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outOffset) {
+        this.scalar.keccak64(left, leftOffset, right, rightOffset, output, outOffset);
+    }
+
+    @Override
+    public void keccak64Batch(byte[] input, int inOffset, byte[] output, int outOffset, int count) {
+        int i = 0;
+        if (count >= LANES) {
+            final LaneBuffer buf = LANE_BUFFER.get();
+            for (; i + LANES <= count; i += LANES) {
+                permuteLanes(input, inOffset + i * 64, output, outOffset + i * 32, buf);
+            }
+        }
+        for (; i < count; i++) {
+            int offset = inOffset + i * 64;
+            this.scalar.keccak64(input, offset, input, offset + 32, output, outOffset + i * 32);
+        }
+    }
+
+    private static void permuteLanes(byte[] input, int inOffset, byte[] output, int outOffset, LaneBuffer buf) {
+        final int n = LANES;
+        final long[] a = buf.state;
+        final long[] b = buf.temp;
+        final long[] c = buf.columns;
+        // transpose: a[w * n + j] = word w of message j:
+        for (int j = 0; j < n; j++) {
+            int offset = inOffset + j * 64;
+            for (int w = 0; w < 8; w++) {
+                a[w * n + j] = (long) LONG_LE.get(input, offset + w * 8);
+            }
+        }
+        // keccak padding: 0x01 after input and 0x80 at the last byte of block:
+        Arrays.fill(a, 8 * n, 25 * n, 0L);
+        Arrays.fill(a, 8 * n, 9 * n, 0x01L);
+        Arrays.fill(a, 16 * n, 17 * n, 0x8000000000000000L);
+
+        for (int round = 0; round < 24; round++) {
+            theta(a, c);
+            rhoPi(a, b);
+            chi(b, a);
+            // iota:
+            LongVector.fromArray(SPECIES, a, 0).lanewise(VectorOperators.XOR, ROUND_CONSTANTS[round]).intoArray(a, 0);
+        }
+        // squeeze 4 words of each lane:
+        for (int j = 0; j < n; j++) {
+            int offset = outOffset + j * 32;
+            for (int w = 0; w < 4; w++) {
+                LONG_LE.set(output, offset + w * 8, a[w * n + j]);
+            }
+        }
+    }
+
+    private static void theta(long[] a, long[] c) {
+        final int n = LANES;
+        for (int x = 0; x < 5; x++) {
+            LongVector.fromArray(SPECIES, a, x * n).lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, a, (x + 5) * n))
+                    .lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, a, (x + 10) * n))
+                    .lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, a, (x + 15) * n))
+                    .lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, a, (x + 20) * n)).intoArray(c, x * n);
+        }
+        for (int x = 0; x < 5; x++) {
+            LongVector d = LongVector.fromArray(SPECIES, c, ((x + 1) % 5) * n).lanewise(VectorOperators.ROL, 1)
+                    .lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, c, ((x + 4) % 5) * n));
+            for (int y = 0; y < 25; y += 5) {
+                int i = (x + y) * n;
+                LongVector.fromArray(SPECIES, a, i).lanewise(VectorOperators.XOR, d).intoArray(a, i);
+            }
+        }
+    }
+
+    private static void rhoPi(long[] a, long[] b) {
+        final int n = LANES;
+        for (int i = 0; i < 25; i++) {
+            LongVector.fromArray(SPECIES, a, i * n).lanewise(VectorOperators.ROL, RHO[i]).intoArray(b, PI[i] * n);
+        }
+    }
+
+    private static void chi(long[] b, long[] a) {
+        final int n = LANES;
+        for (int y = 0; y < 25; y += 5) {
+            LongVector b0 = LongVector.fromArray(SPECIES, b, y * n);
+            LongVector b1 = LongVector.fromArray(SPECIES, b, (y + 1) * n);
+            LongVector b2 = LongVector.fromArray(SPECIES, b, (y + 2) * n);
+            LongVector b3 = LongVector.fromArray(SPECIES, b, (y + 3) * n);
+            LongVector b4 = LongVector.fromArray(SPECIES, b, (y + 4) * n);
+            b0.lanewise(VectorOperators.XOR, b2.lanewise(VectorOperators.AND_NOT, b1)).intoArray(a, y * n);
+            b1.lanewise(VectorOperators.XOR, b3.lanewise(VectorOperators.AND_NOT, b2)).intoArray(a, (y + 1) * n);
+            b2.lanewise(VectorOperators.XOR, b4.lanewise(VectorOperators.AND_NOT, b3)).intoArray(a, (y + 2) * n);
+            b3.lanewise(VectorOperators.XOR, b0.lanewise(VectorOperators.AND_NOT, b4)).intoArray(a, (y + 3) * n);
+            b4.lanewise(VectorOperators.XOR, b1.lanewise(VectorOperators.AND_NOT, b0)).intoArray(a, (y + 4) * n);
+        }
+    }
+}
+
+/**
+ * Keccak states of all lanes stored as word-major, which keeps only a few
+ * vectors alive at a time.
+ */
+class LaneBuffer {
+
+    final long[] state = new long[25 * VectorHashEngine.LANES];
+    final long[] temp = new long[25 * VectorHashEngine.LANES];
+    final long[] columns = new long[5 * VectorHashEngine.LANES];
+}
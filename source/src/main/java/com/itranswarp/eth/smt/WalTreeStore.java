@@ -0,0 +1,393 @@
+package com.itranswarp.eth.smt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tree store which appends each saved batch to a write-ahead log before it
+ * is saved to base store.
+ * 
+ * Each batch is one record of the log:
+ * 
+ * length: int, length of payload;
+ * 
+ * crc: int, CRC32 of payload;
+ * 
+ * payload: number, root hash (or empty if batch has no root) and all nodes of
+ * batch.
+ * 
+ * A batch is saved to base store only after its record is synced to disk.
+ * Batches saved by concurrent threads within the group window are synced by
+ * one fsync, and base store must accept concurrent saves in this case. When
+ * opened, the log is scanned and stops at the first truncated or corrupted
+ * record, which is discarded with all bytes after it. Nodes of each record
+ * which are not found in base store are replayed, so base store always holds
+ * complete batches up to the latest root of log, even if base store saved
+ * only part of a batch before crash.
+ * 
+ * The log grows until {@link #checkpoint()} is called after base store has
+ * persisted all saved batches.
+ */
+public class WalTreeStore implements TreeStore, AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int HEADER_SIZE = 8;
+
+    private final TreeStore base;
+    private final FileChannel channel;
+    private final long groupWindowNanos;
+
+    // guarded by this:
+    private long writtenPosition;
+    private long syncedPosition;
+    private boolean syncing;
+    private long syncCount;
+    private long latestNumber = -1;
+    private byte[] latestRoot;
+
+    /**
+     * Open a write-ahead log and recover base store from it.
+     * 
+     * @param base             Base tree store.
+     * @param walFile          Log file, which is created if not exist.
+     * @param groupWindowNanos Nanoseconds to wait for other commits before
+     *                         fsync, or 0 to sync immediately.
+     */
+    public WalTreeStore(TreeStore base, Path walFile, long groupWindowNanos) {
+        this.base = base;
+        this.groupWindowNanos = groupWindowNanos;
+        try {
+            this.channel = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get root hash of the latest complete batch in log.
+     * 
+     * @return Root hash, or null if log has no root.
+     */
+    public synchronized byte[] getLatestRoot() {
+        return this.latestRoot;
+    }
+
+    /**
+     * Get number of the latest complete batch in log.
+     * 
+     * @return Block number, or -1 if log is empty.
+     */
+    public synchronized long getLatestNumber() {
+        return this.latestNumber;
+    }
+
+    /**
+     * Get how many times the log is synced to disk.
+     * 
+     * @return Count of fsync.
+     */
+    public synchronized long getSyncCount() {
+        return this.syncCount;
+    }
+
+    /**
+     * Discard all records. Must be called only when base store has persisted
+     * all saved batches and no batch is saving.
+     */
+    public synchronized void checkpoint() {
+        try {
+            this.channel.truncate(0);
+            this.channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.writtenPosition = 0;
+        this.syncedPosition = 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        return this.base.load(topPath, currentNumber);
+    }
+
+    @Override
+    public List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        return this.base.loadAll(topPaths, currentNumber);
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        return this.base.loadRoot(hash);
+    }
+
+    @Override
+    public byte[] loadValue(byte[] dataHash) {
+        return this.base.loadValue(dataHash);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return this.base.isThreadSafe();
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        if (pnodes.isEmpty()) {
+            return;
+        }
+        PersistNode root = findRoot(pnodes);
+        byte[] record = encode(pnodes, root);
+        long end;
+        try {
+            synchronized (this) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer, this.writtenPosition + buffer.position());
+                }
+                this.writtenPosition += record.length;
+                end = this.writtenPosition;
+            }
+            sync(end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.base.save(pnodes);
+        synchronized (this) {
+            long number = pnodes.get(0).number();
+            if (root != null && number >= this.latestNumber) {
+                this.latestNumber = number;
+                this.latestRoot = root.nodeHash();
+            }
+        }
+    }
+
+    /**
+     * Wait until log is synced to end position. The first thread becomes leader
+     * which waits the group window and syncs all records written so far, and
+     * other threads wait for the leader.
+     */
+    private void sync(long end) throws IOException {
+        synchronized (this) {
+            while (this.syncing && this.syncedPosition < end) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted when sync write-ahead log.", e);
+                }
+            }
+            if (this.syncedPosition >= end) {
+                return;
+            }
+            this.syncing = true;
+        }
+        long target = 0;
+        try {
+            if (this.groupWindowNanos > 0) {
+                LockSupport.parkNanos(this.groupWindowNanos);
+            }
+            long written;
+            synchronized (this) {
+                written = this.writtenPosition;
+            }
+            this.channel.force(false);
+            target = written;
+        } finally {
+            synchronized (this) {
+                this.syncing = false;
+                this.syncCount++;
+                this.syncedPosition = Math.max(this.syncedPosition, target);
+                notifyAll();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long size = this.channel.size();
+        long position = 0;
+        int replayed = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            int crc = header.getInt(4);
+            if (length <= 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload.array());
+            if ((int) crc32.getValue() != crc) {
+                break;
+            }
+            payload.flip();
+            long number = payload.getLong();
+            byte[] rootHash = null;
+            if (payload.get() != 0) {
+                rootHash = new byte[32];
+                payload.get(rootHash);
+            }
+            List<PersistNode> pnodes = decodeNodes(payload);
+            // base store may have saved part of the batch before crash:
+            List<PersistNode> missing = new ArrayList<>();
+            for (PersistNode pnode : pnodes) {
+                Node node = this.base.load(pnode.topPath(), pnode.number());
+                if (node == null || node.getNumber() != pnode.number() || !Arrays.equals(node.getTopHash(), pnode.topHash())) {
+                    missing.add(pnode);
+                }
+            }
+            if (!missing.isEmpty()) {
+                this.base.save(missing);
+                replayed++;
+            }
+            if (rootHash != null) {
+                this.latestNumber = number;
+                this.latestRoot = rootHash;
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            logger.warn("discard incomplete write-ahead log: {} bytes at position {}", size - position, position);
+            this.channel.truncate(position);
+            this.channel.force(true);
+        }
+        if (replayed > 0) {
+            logger.info("replayed {} batches from write-ahead log.", replayed);
+        }
+        this.writtenPosition = position;
+        this.syncedPosition = position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalStateException("Unexpected end of write-ahead log.");
+            }
+        }
+    }
+
+    private static PersistNode findRoot(List<PersistNode> pnodes) {
+        for (int i = pnodes.size() - 1; i >= 0; i--) {
+            PersistNode pnode = pnodes.get(i);
+            if (!pnode.leaf() && pnode.path().isEmpty()) {
+                return pnode;
+            }
+        }
+        return null;
+    }
+
+    static byte[] encode(List<PersistNode> pnodes, PersistNode root) {
+        int estimated = 0;
+        for (PersistNode pnode : pnodes) {
+            estimated += pnode.estimatedSize() + 8;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 48 + estimated);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            // reserve header:
+            output.writeLong(0);
+            output.writeLong(pnodes.get(0).number());
+            if (root == null) {
+                output.writeByte(0);
+            } else {
+                output.writeByte(1);
+                output.write(root.nodeHash());
+            }
+            output.writeInt(pnodes.size());
+            for (PersistNode pnode : pnodes) {
+                output.writeLong(pnode.number());
+                output.writeBoolean(pnode.leaf());
+                output.writeShort(pnode.keyBits());
+                output.writeByte(pnode.topLevel());
+                writeNibbles(output, pnode.path());
+                output.write(pnode.topHash());
+                output.write(pnode.nodeHash());
+                if (pnode.dataValue() == null) {
+                    output.writeInt(-1);
+                } else {
+                    output.writeInt(pnode.dataValue().length);
+                    output.write(pnode.dataValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_SIZE);
+        header.putInt(record.length - HEADER_SIZE);
+        header.putInt((int) crc32.getValue());
+        return record;
+    }
+
+    static List<PersistNode> decodeNodes(ByteBuffer payload) {
+        int count = payload.getInt();
+        List<PersistNode> pnodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long number = payload.getLong();
+            boolean leaf = payload.get() != 0;
+            int keyBits = payload.getShort();
+            int topLevel = payload.get() & 0xff;
+            NibbleString path = readNibbles(payload);
+            byte[] topHash = new byte[32];
+            payload.get(topHash);
+            byte[] nodeHash = new byte[32];
+            payload.get(nodeHash);
+            byte[] dataValue = null;
+            int length = payload.getInt();
+            if (length >= 0) {
+                dataValue = new byte[length];
+                payload.get(dataValue);
+            }
+            // top path is always the prefix of path:
+            NibbleString topPath = topLevel < path.length() ? path.substring(0, topLevel) : path;
+            pnodes.add(new PersistNode(number, leaf, topPath, path, topLevel, topHash, nodeHash, dataValue, keyBits));
+        }
+        return pnodes;
+    }
+
+    private static void writeNibbles(DataOutputStream output, NibbleString nibbles) throws IOException {
+        int length = nibbles.length();
+        output.writeByte(length);
+        for (int i = 0; i < length; i += 2) {
+            int high = nibbles.valueAt(i);
+            int low = i + 1 < length ? nibbles.valueAt(i + 1) : 0;
+            output.writeByte((high << 4) | low);
+        }
+    }
+
+    private static NibbleString readNibbles(ByteBuffer payload) {
+        int length = payload.get() & 0xff;
+        byte[] packed = new byte[(length + 1) / 2];
+        payload.get(packed);
+        NibbleString nibbles = new NibbleString(packed);
+        return length < nibbles.length() ? nibbles.substring(0, length) : nibbles;
+    }
+}
@@ -0,0 +1,16 @@
+package com.itranswarp.eth.smt;
+
+/**
+ * Listener of warm-up progress.
+ */
+public interface WarmUpListener {
+
+    /**
+     * Called after each batch of nodes is loaded.
+     * 
+     * @param level Depth of loaded nodes from root, starting at 1.
+     * @param nodes Number of nodes loaded so far.
+     * @param bytes Estimated bytes of nodes loaded so far.
+     */
+    void onProgress(int level, long nodes, long bytes);
+}
@@ -0,0 +1,62 @@
+package com.itranswarp.eth.smt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class ParallelMerkleRootCalculatorTest {
+
+    @Test
+    void calculateMerkleRootOfEmpty() {
+        var calc = new ParallelMerkleRootCalculator();
+        assertEquals(SimpleSparseMerkleTreeTest.DEFAULT_ROOT, SmtUtils.toHexString(calc.calculateMerkleRoot()));
+
+        calc = new ParallelMerkleRootCalculator();
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_1, new byte[0]);
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_2, new byte[0]);
+        assertEquals(SimpleSparseMerkleTreeTest.DEFAULT_ROOT, SmtUtils.toHexString(calc.calculateMerkleRoot()));
+    }
+
+    @Test
+    void calculateMerkleRootOf3Leafs() {
+        var calc = new ParallelMerkleRootCalculator();
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_3, SimpleSparseMerkleTreeTest.DATA_1);
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_1, SimpleSparseMerkleTreeTest.DATA_1);
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_2, SimpleSparseMerkleTreeTest.DATA_2);
+        // override:
+        calc.update(SimpleSparseMerkleTreeTest.ADDRESS_3, SimpleSparseMerkleTreeTest.DATA_3);
+        assertEquals(4, calc.size());
+        assertEquals("0f57aa6ae4c0b2230a33f598c52165da734d25f2390fa508a7a95259333d2375", SmtUtils.toHexString(calc.calculateMerkleRoot()));
+    }
+
+    @Test
+    void compareWithSimpleTree() {
+        PseudoRandom random = new PseudoRandom(0x20221101L);
+        var calc = new ParallelMerkleRootCalculator(4, 16);
+        var ssmt = new SimpleSparseMerkleTree();
+        byte[] base = random.randomBytes(20);
+        for (int i = 0; i < 12000; i++) {
+            // random address:
+            byte[] data = random.randomBytes(1 + i % 50);
+            String address = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+            calc.update(address, data);
+            ssmt.update(address, data);
+            // neighbour address which shares most bits:
+            base[19] = (byte) i;
+            base[18] = (byte) (i >> 8);
+            address = "0x" + SmtUtils.toHexString(base);
+            calc.update(address, data);
+            ssmt.update(address, data);
+        }
+        // update existing addresses again:
+        for (int i = 0; i < 12000; i += 7) {
+            base[19] = (byte) i;
+            base[18] = (byte) (i >> 8);
+            String address = "0x" + SmtUtils.toHexString(base);
+            byte[] data = random.randomBytes(32);
+            calc.update(address, data);
+            ssmt.update(address, data);
+        }
+        assertArrayEquals(ssmt.calculateMerkleRoot(), calc.calculateMerkleRoot());
+    }
+}
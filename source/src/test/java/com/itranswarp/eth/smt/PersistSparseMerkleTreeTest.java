@@ -2,9 +2,23 @@ package com.itranswarp.eth.smt;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -195,6 +209,1327 @@ public class PersistSparseMerkleTreeTest {
         assertArrayEquals(data7, snapshot2.getLeafData(address7));
     }
 
+    @Test
+    void historyLeafs() {
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        psmt.update(address5, data5);
+        psmt.update(address6, data6);
+        psmt.update(address5, dataX);
+        psmt.update(address7, data7, address6, dataY);
+        assertEquals(4, psmt.getNumber());
+        assertArrayEquals(SmtUtils.EMPTY_DATA, psmt.getLeafData(SmtUtils.fromHexString(address5), 0));
+        assertArrayEquals(data5, psmt.getLeafData(SmtUtils.fromHexString(address5), 1));
+        assertArrayEquals(SmtUtils.EMPTY_DATA, psmt.getLeafData(SmtUtils.fromHexString(address6), 1));
+        assertArrayEquals(data6, psmt.getLeafData(SmtUtils.fromHexString(address6), 2));
+        assertArrayEquals(dataX, psmt.getLeafData(SmtUtils.fromHexString(address5), 3));
+        assertArrayEquals(data6, psmt.getLeafData(SmtUtils.fromHexString(address6), 3));
+        assertArrayEquals(dataY, psmt.getLeafData(SmtUtils.fromHexString(address6), 4));
+        assertArrayEquals(data7, psmt.getLeafData(SmtUtils.fromHexString(address7), 4));
+        assertThrows(IllegalArgumentException.class, () -> psmt.getLeafData(SmtUtils.fromHexString(address7), 5));
+    }
+
+    @Test
+    void flatState() {
+        int ADDRESSES = 200;
+        PseudoRandom random = new PseudoRandom(0x123456789L);
+        byte[][] addresses = new byte[ADDRESSES][];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = random.randomBytes(20);
+        }
+        var store = new MemoryTreeStore();
+        var flatStore = new MemoryFlatStateStore();
+        try (var flatState = new FlatState(flatStore, 8)) {
+            var psmt = new PersistSparseMerkleTree(store, null, flatState);
+            var expected = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+            for (int i = 0; i < ADDRESSES * 2; i++) {
+                byte[] address = addresses[(i * 7) % ADDRESSES];
+                psmt.update(address, data[i % 8]);
+                expected.update(address, data[i % 8]);
+            }
+            assertArrayEquals(expected.getMerkleRoot(), psmt.getMerkleRoot());
+            for (byte[] address : addresses) {
+                assertArrayEquals(expected.getLeafData(address), psmt.getLeafData(address));
+            }
+            // recent versions:
+            long head = psmt.getNumber();
+            for (long n = head - 20; n <= head; n++) {
+                for (int i = 0; i < ADDRESSES; i += 10) {
+                    assertArrayEquals(expected.getLeafData(addresses[i], n), psmt.getLeafData(addresses[i], n));
+                }
+            }
+            flatState.flush();
+            assertEquals(head, flatStore.getNumber());
+            assertEquals(ADDRESSES, flatStore.size());
+            // reopen with flushed flat state:
+            var reopen = new PersistSparseMerkleTree(store, psmt.getMerkleRoot(), flatState);
+            for (byte[] address : addresses) {
+                assertArrayEquals(expected.getLeafData(address), reopen.getLeafData(address));
+            }
+            // mismatched flat state:
+            assertThrows(IllegalStateException.class, () -> new PersistSparseMerkleTree(store, psmt.getMerkleRoot(), new FlatState(new MemoryFlatStateStore(), 8)));
+        }
+    }
+
+    @Test
+    void scanLeafs() {
+        int ADDRESSES = 500;
+        PseudoRandom random = new PseudoRandom(0x13579bdfL);
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        TreeMap<String, byte[]> expected = new TreeMap<>();
+        for (int i = 0; i < ADDRESSES; i++) {
+            String address = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+            psmt.update(address, data[i % 8]);
+            expected.put(address.substring(2), data[i % 8]);
+        }
+        // address sharing long prefix:
+        psmt.update(address5, data5, address6, data6);
+        expected.put(address5.substring(2), data5);
+        expected.put(address6.substring(2), data6);
+
+        String min = "0x" + "0".repeat(40);
+        String max = "0x" + "f".repeat(40);
+        assertScan(expected, psmt.scan(min, max));
+        // scan from reloaded tree:
+        var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+        assertScan(expected, reload.scan(min, max));
+        // scan ranges:
+        String[] bounds = { "0x1357", "0x13579bdf0f28207b7915e0012f20ca41bd285195", "0x8", "0x80", "0xabc", "0xfff" };
+        for (String from : bounds) {
+            for (String to : bounds) {
+                String fromAddress = (from + "0".repeat(42)).substring(0, 42);
+                String toAddress = (to + "f".repeat(42)).substring(0, 42);
+                var sub = fromAddress.compareTo(toAddress) > 0 ? new TreeMap<String, byte[]>()
+                        : expected.subMap(fromAddress.substring(2), true, toAddress.substring(2), true);
+                assertScan(sub, reload.scan(fromAddress, toAddress));
+            }
+        }
+        // empty tree:
+        assertFalse(new PersistSparseMerkleTree(new MemoryTreeStore(), null).scan(min, max).hasNext());
+    }
+
+    void assertScan(Map<String, byte[]> expected, Iterator<LeafEntry> it) {
+        for (var entry : expected.entrySet()) {
+            assertTrue(it.hasNext());
+            LeafEntry leaf = it.next();
+            assertEquals(entry.getKey(), leaf.address().toString());
+            assertArrayEquals(entry.getValue(), leaf.dataValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    void diffRoots() {
+        int ADDRESSES = 300;
+        PseudoRandom random = new PseudoRandom(0x2468aceL);
+        String[] addresses = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        byte[] emptyRoot = psmt.getMerkleRoot();
+        TreeMap<String, byte[]> stateA = new TreeMap<>();
+        for (int i = 0; i < 200; i++) {
+            psmt.update(addresses[i], data[i % 8]);
+            stateA.put(addresses[i].substring(2), data[i % 8]);
+        }
+        psmt.update(address5, data5);
+        stateA.put(address5.substring(2), data5);
+        byte[] rootA = psmt.getMerkleRoot();
+
+        TreeMap<String, byte[]> stateB = new TreeMap<>(stateA);
+        // change, insert and revert:
+        for (int i = 0; i < 200; i += 17) {
+            psmt.update(addresses[i], dataX);
+            stateB.put(addresses[i].substring(2), dataX);
+        }
+        for (int i = 200; i < ADDRESSES; i += 3) {
+            psmt.update(addresses[i], dataY);
+            stateB.put(addresses[i].substring(2), dataY);
+        }
+        psmt.update(addresses[3], dataX);
+        psmt.update(addresses[3], data[3]);
+        // split leaf 5 and full node:
+        psmt.update(address6, data6, address7, data7);
+        stateB.put(address6.substring(2), data6);
+        stateB.put(address7.substring(2), data7);
+        byte[] rootB = psmt.getMerkleRoot();
+
+        assertDiff(stateA, stateB, psmt.diff(rootA, rootB));
+        assertDiff(stateB, stateA, psmt.diff(rootB, rootA));
+        assertDiff(new TreeMap<>(), stateB, psmt.diff(emptyRoot, rootB));
+        assertDiff(stateA, stateA, psmt.diff(rootA, rootA));
+    }
+
+    void assertDiff(TreeMap<String, byte[]> stateA, TreeMap<String, byte[]> stateB, Iterator<LeafChange> it) {
+        TreeMap<String, String> keys = new TreeMap<>();
+        stateA.keySet().forEach(k -> keys.put(k, k));
+        stateB.keySet().forEach(k -> keys.put(k, k));
+        for (String key : keys.keySet()) {
+            byte[] oldValue = stateA.getOrDefault(key, SmtUtils.EMPTY_DATA);
+            byte[] newValue = stateB.getOrDefault(key, SmtUtils.EMPTY_DATA);
+            if (Arrays.equals(oldValue, newValue)) {
+                continue;
+            }
+            assertTrue(it.hasNext());
+            LeafChange change = it.next();
+            assertEquals(key, change.address().toString());
+            assertArrayEquals(oldValue, change.oldValue());
+            assertArrayEquals(newValue, change.newValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    void contentAddressedStore() {
+        int ADDRESSES = 200;
+        PseudoRandom random = new PseudoRandom(0x123456789L);
+        byte[][] addresses = new byte[ADDRESSES][];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = random.randomBytes(20);
+        }
+        var store = new ContentAddressedTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        var expected = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+        for (int i = 0; i < ADDRESSES; i++) {
+            psmt.update(addresses[i], data[i % 8]);
+            expected.update(addresses[i], data[i % 8]);
+        }
+        assertArrayEquals(expected.getMerkleRoot(), psmt.getMerkleRoot());
+        byte[] root = psmt.getMerkleRoot();
+        int bodies = store.getBodyCount();
+        long refs = store.getRefCount();
+
+        // change and revert values:
+        for (int n = 0; n < 10; n++) {
+            for (int i = 0; i < ADDRESSES; i += 20) {
+                psmt.update(addresses[i], dataX);
+            }
+            for (int i = 0; i < ADDRESSES; i += 20) {
+                psmt.update(addresses[i], data[i % 8]);
+            }
+        }
+        assertArrayEquals(root, psmt.getMerkleRoot());
+        assertTrue(store.getRefCount() > refs);
+        // only bodies of dataX leafs and their parents in the first round are new:
+        int bodiesAfterRevert = store.getBodyCount();
+        assertTrue(bodiesAfterRevert < bodies * 2);
+        for (int i = 0; i < ADDRESSES; i += 20) {
+            psmt.update(addresses[i], dataX);
+        }
+        for (int i = 0; i < ADDRESSES; i += 20) {
+            psmt.update(addresses[i], data[i % 8]);
+        }
+        assertEquals(bodiesAfterRevert, store.getBodyCount());
+        // history is loaded from the newest reference no newer than number:
+        long head = psmt.getNumber();
+        assertArrayEquals(data[0], psmt.getLeafData(addresses[0], head));
+        assertArrayEquals(dataX, psmt.getLeafData(addresses[0], head - ADDRESSES / 20));
+        assertArrayEquals(data[0], psmt.getLeafData(addresses[0], head - ADDRESSES / 10));
+
+        // reload:
+        var reload = new PersistSparseMerkleTree(store, root);
+        for (int i = 0; i < ADDRESSES; i++) {
+            assertArrayEquals(expected.getLeafData(addresses[i]), reload.getLeafData(addresses[i]));
+        }
+        reload.update(addresses[0], dataY);
+        expected.update(addresses[0], dataY);
+        assertArrayEquals(expected.getMerkleRoot(), reload.getMerkleRoot());
+    }
+
+    @Test
+    void getMultiLeafs() {
+        int ADDRESSES = 500;
+        PseudoRandom random = new PseudoRandom(0x123456789L);
+        List<byte[]> addresses = new ArrayList<>();
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses.add(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        for (int i = 0; i < ADDRESSES; i += 2) {
+            psmt.update(addresses.get(i), data[i % 8]);
+        }
+        psmt.update(address5, data5, address6, data6);
+        // query existing, non-existing, duplicate and prefix-sharing addresses:
+        List<byte[]> query = new ArrayList<>(addresses);
+        query.add(addresses.get(0));
+        query.add(SmtUtils.fromHexString(address5));
+        query.add(SmtUtils.fromHexString(address6));
+        query.add(SmtUtils.fromHexString(address7));
+
+        var coldStore = new CountingTreeStore(store);
+        var cold = new PersistSparseMerkleTree(coldStore, psmt.getMerkleRoot());
+        List<byte[]> results = cold.getLeafData(query);
+        assertEquals(query.size(), results.size());
+        for (int i = 0; i < query.size(); i++) {
+            assertArrayEquals(psmt.getLeafData(query.get(i)), results.get(i));
+        }
+        int batchLoads = coldStore.loads;
+
+        var coldStore2 = new CountingTreeStore(store);
+        var cold2 = new PersistSparseMerkleTree(coldStore2, psmt.getMerkleRoot());
+        for (byte[] address : query) {
+            cold2.getLeafData(address);
+        }
+        assertEquals(coldStore2.loads, batchLoads);
+        assertTrue(coldStore.batches < 40);
+        assertTrue(cold.getLeafData(List.of()).isEmpty());
+    }
+
+    @Test
+    void metrics() {
+        var metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        try {
+            var store = new MemoryTreeStore();
+            var psmt = new PersistSparseMerkleTree(store, null);
+            update(psmt, new SimpleSparseMerkleTree(), address1, data1);
+            long keccaks = metrics.getKeccakCount();
+            assertTrue(keccaks > 0);
+            assertEquals(1, metrics.getCommitCount());
+            // root and leaf:
+            assertEquals(2, metrics.getCommittedNodeCount());
+            // root saved by constructor:
+            assertEquals(3, metrics.getSavedNodeCount());
+            assertTrue(metrics.getSavedBytes() > 3 * 32);
+            assertTrue(metrics.getCacheMissCount() > 0);
+
+            var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+            long loads = metrics.getLoadCount();
+            assertArrayEquals(data1, reload.getLeafData(address1));
+            assertEquals(loads + 1, metrics.getLoadCount());
+            assertTrue(metrics.getDeserializeCount() >= 2);
+            assertTrue(metrics.getPercentile(MetricsListener.Operation.UPDATE, 0.99) > 0);
+            assertTrue(metrics.getPercentile(MetricsListener.Operation.GET_LEAF, 0.5) > 0);
+            assertEquals(0, metrics.getPercentile(MetricsListener.Operation.GET_LEAFS, 0.5));
+            long hits = metrics.getCacheHitCount();
+            assertArrayEquals(data1, reload.getLeafData(address1));
+            assertEquals(hits + 1, metrics.getCacheHitCount());
+
+            // rehash of dirty root looks up its 16 children once:
+            var lazy = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.lazyHashing(true));
+            lazy.update(address1, data1);
+            long lookups = metrics.getCacheHitCount() + metrics.getCacheMissCount();
+            lazy.commit();
+            assertEquals(lookups + 16, metrics.getCacheHitCount() + metrics.getCacheMissCount());
+        } finally {
+            Metrics.setListener(null);
+        }
+    }
+
+    @Test
+    void batchUpdateAndProof() {
+        PseudoRandom random = new PseudoRandom(0x35353535L);
+        List<byte[]> addresses = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        byte[] base = random.randomBytes(20);
+        for (int i = 0; i < 300; i++) {
+            addresses.add(random.randomBytes(20));
+            values.add(data[i % 8]);
+            // address shares prefix with base:
+            byte[] near = base.clone();
+            near[19] = (byte) i;
+            near[10 + i % 10] ^= 0x10;
+            addresses.add(near);
+            values.add(data[(i + 3) % 8]);
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        var ssmt = new SimpleSparseMerkleTree();
+        // 3 batches, and the last batch updates existing addresses:
+        psmt.update(addresses.subList(0, 200), values.subList(0, 200));
+        psmt.update(addresses.subList(200, 600), values.subList(200, 600));
+        psmt.update(addresses.subList(100, 150), values.subList(0, 50));
+        assertEquals(3, psmt.getNumber());
+        for (int i = 0; i < 600; i++) {
+            ssmt.update("0x" + SmtUtils.toHexString(addresses.get(i)), values.get(i));
+        }
+        for (int i = 100; i < 150; i++) {
+            ssmt.update("0x" + SmtUtils.toHexString(addresses.get(i)), values.get(i - 100));
+        }
+        verify(psmt, ssmt);
+        // load from store:
+        var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+        for (int i = 0; i < 600; i++) {
+            assertArrayEquals(i >= 100 && i < 150 ? values.get(i - 100) : values.get(i), reload.getLeafData(addresses.get(i)));
+        }
+
+        byte[] root = psmt.getMerkleRoot();
+        for (int i = 0; i < 600; i += 7) {
+            MerkleProof proof = reload.getProof(addresses.get(i));
+            assertArrayEquals(reload.getLeafData(addresses.get(i)), proof.dataValue());
+            assertTrue(proof.verify(root));
+            // tampered data:
+            MerkleProof fake = new MerkleProof(proof.address(), "fake".getBytes(), proof.siblings());
+            assertFalse(fake.verify(root));
+        }
+        // proof of non-exist addresses:
+        for (int i = 0; i < 20; i++) {
+            byte[] near = addresses.get(i * 2 + 1).clone();
+            near[i % 20] ^= 0x01;
+            for (byte[] address : List.of(random.randomBytes(20), near)) {
+                MerkleProof proof = psmt.getProof(address);
+                assertEquals(0, proof.dataValue().length);
+                assertTrue(proof.verify(root));
+            }
+        }
+        // empty tree:
+        var empty = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+        assertTrue(empty.getProof(address1).verify(empty.getMerkleRoot()));
+    }
+
+    @Test
+    void forkAndMerge() {
+        PseudoRandom random = new PseudoRandom(0x36363636L);
+        String[] addresses = new String[200];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        var ssmt = new SimpleSparseMerkleTree();
+        for (int i = 0; i < 100; i++) {
+            update(psmt, ssmt, addresses[i], data[i % 8]);
+        }
+        byte[] root0 = psmt.getMerkleRoot();
+        int saved = store.topPathMap.size();
+
+        // 2 sibling branches:
+        var branch1 = psmt.fork();
+        var branch2 = psmt.fork();
+        var ssmt1 = new SimpleSparseMerkleTree();
+        var ssmt2 = new SimpleSparseMerkleTree();
+        for (int i = 0; i < 100; i++) {
+            ssmt1.update(addresses[i], data[i % 8]);
+            ssmt2.update(addresses[i], data[i % 8]);
+        }
+        for (int i = 50; i < 150; i++) {
+            update(branch1, ssmt1, addresses[i], data[(i + 1) % 8]);
+        }
+        for (int i = 0; i < 200; i += 3) {
+            update(branch2, ssmt2, addresses[i], data[(i + 2) % 8]);
+        }
+        verify(branch1, ssmt1);
+        verify(branch2, ssmt2);
+        // parent and store are not changed:
+        assertArrayEquals(root0, psmt.getMerkleRoot());
+        verify(psmt, ssmt);
+        assertEquals(saved, store.topPathMap.size());
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(i < 100 ? data[i % 8] : SmtUtils.EMPTY_DATA, psmt.getLeafData(addresses[i]));
+            assertArrayEquals(i < 150 && i >= 50 ? data[(i + 1) % 8] : ssmt1.getLeafData(addresses[i]), branch1.getLeafData(addresses[i]));
+        }
+
+        // merge branch2:
+        psmt.merge(branch2);
+        verify(psmt, ssmt2);
+        var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+        assertEquals(psmt.getNumber(), reload.getNumber());
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(ssmt2.getLeafData(addresses[i]), reload.getLeafData(addresses[i]));
+        }
+        // branch1 is forked at old version:
+        assertThrows(IllegalStateException.class, () -> psmt.merge(branch1));
+        assertThrows(IllegalArgumentException.class, () -> psmt.merge(reload));
+        verify(branch1, ssmt1);
+
+        // parent updates after fork are invisible to branch:
+        var branch3 = psmt.fork();
+        update(psmt, ssmt2, addresses[199], data[0]);
+        update(psmt, ssmt2, addresses[1], data[0]);
+        assertArrayEquals(SmtUtils.EMPTY_DATA, branch3.getLeafData(addresses[199]));
+        assertArrayEquals(reload.getLeafData(addresses[1]), branch3.getLeafData(addresses[1]));
+        branch3.update(addresses[2], data[7]);
+        assertArrayEquals(reload.getLeafData(addresses[1]), branch3.getLeafData(addresses[1]));
+        verify(psmt, ssmt2);
+    }
+
+    @Test
+    void snapshotStore() {
+        PseudoRandom random = new PseudoRandom(0x37373737L);
+        String[] addresses = new String[100];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        var ssmt = new SimpleSparseMerkleTree();
+        for (int i = 0; i < 50; i++) {
+            update(psmt, ssmt, addresses[i], data[i % 8]);
+        }
+        var snapshot1 = store.snapshot();
+        var root1 = psmt.getMerkleRoot();
+        for (int i = 50; i < 100; i++) {
+            update(psmt, ssmt, addresses[i], data[i % 8]);
+        }
+        int saved = store.topPathMap.size();
+
+        // updates of parent are invisible to snapshot:
+        var tree1 = new PersistSparseMerkleTree(snapshot1, root1);
+        assertThrows(IllegalStateException.class, () -> new PersistSparseMerkleTree(snapshot1, psmt.getMerkleRoot()));
+        var ssmt1 = new SimpleSparseMerkleTree();
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(data[i % 8], tree1.getLeafData(addresses[i]));
+            assertArrayEquals(SmtUtils.EMPTY_DATA, tree1.getLeafData(addresses[i + 50]));
+            ssmt1.update(addresses[i], data[i % 8]);
+        }
+        // updates of snapshot are invisible to parent:
+        for (int i = 25; i < 75; i++) {
+            update(tree1, ssmt1, addresses[i], data[(i + 5) % 8]);
+        }
+        verify(tree1, ssmt1);
+        assertEquals(saved, store.topPathMap.size());
+        var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(data[i % 8], reload.getLeafData(addresses[i]));
+        }
+        update(psmt, ssmt, addresses[0], data[7]);
+        verify(psmt, ssmt);
+
+        // snapshot of snapshot and copy of snapshot:
+        var snapshot2 = snapshot1.snapshot();
+        var copy1 = snapshot1.copy();
+        var root2 = tree1.getMerkleRoot();
+        update(tree1, ssmt1, addresses[99], data[0]);
+        var tree2 = new PersistSparseMerkleTree(snapshot2, root2);
+        var tree3 = new PersistSparseMerkleTree(copy1, root2);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(tree2.getLeafData(addresses[i]), tree3.getLeafData(addresses[i]));
+        }
+        assertArrayEquals(SmtUtils.EMPTY_DATA, tree2.getLeafData(addresses[99]));
+        assertArrayEquals(data[0], tree1.getLeafData(addresses[99]));
+
+        // many snapshots:
+        int size = store.topPathMap.size();
+        for (int i = 0; i < 1000; i++) {
+            var tree = new PersistSparseMerkleTree(store.snapshot(), psmt.getMerkleRoot());
+            tree.update(addresses[i % 100], data[i % 8]);
+        }
+        assertEquals(size, store.topPathMap.size());
+        verify(psmt, ssmt);
+    }
+
+    @Test
+    void lazyHashing() {
+        PseudoRandom random = new PseudoRandom(0x38383838L);
+        String[] addresses = new String[300];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        try {
+            var eagerStore = new MemoryTreeStore();
+            var eager = new PersistSparseMerkleTree(eagerStore, null);
+            var lazyStore = new MemoryTreeStore();
+            var lazy = new PersistSparseMerkleTree(lazyStore, null, null, TreeOptions.DEFAULT.lazyHashing(true));
+            var ssmt = new SimpleSparseMerkleTree();
+
+            // eager tree commits each update as one version:
+            long keccaks = metrics.getKeccakCount();
+            for (int i = 0; i < 300; i++) {
+                eager.update(addresses[i], data[i % 8]);
+                ssmt.update(addresses[i], data[i % 8]);
+            }
+            long eagerKeccaks = metrics.getKeccakCount() - keccaks;
+
+            // lazy tree hashes once when committed:
+            keccaks = metrics.getKeccakCount();
+            for (int i = 0; i < 300; i++) {
+                lazy.update(addresses[i], data[i % 8]);
+            }
+            assertEquals(0, metrics.getKeccakCount() - keccaks);
+            assertTrue(lazy.hasPending());
+            assertEquals(0, lazy.getNumber());
+            assertArrayEquals(data[5], lazy.getLeafData(addresses[5]));
+            lazy.commit();
+            long lazyKeccaks = metrics.getKeccakCount() - keccaks;
+            assertTrue(lazyKeccaks < eagerKeccaks, "lazy = " + lazyKeccaks + ", eager = " + eagerKeccaks);
+            assertFalse(lazy.hasPending());
+            assertEquals(1, lazy.getNumber());
+            verify(lazy, ssmt);
+
+            // repeated updates of hot addresses are hashed only once:
+            keccaks = metrics.getKeccakCount();
+            for (int n = 0; n < 10; n++) {
+                for (int i = 0; i < 20; i++) {
+                    eager.update(addresses[i], data[(i + n) % 8]);
+                }
+            }
+            eagerKeccaks = metrics.getKeccakCount() - keccaks;
+            keccaks = metrics.getKeccakCount();
+            for (int n = 0; n < 10; n++) {
+                for (int i = 0; i < 20; i++) {
+                    lazy.update(addresses[i], data[(i + n) % 8]);
+                    ssmt.update(addresses[i], data[(i + n) % 8]);
+                }
+            }
+            lazy.commit();
+            lazyKeccaks = metrics.getKeccakCount() - keccaks;
+            assertTrue(lazyKeccaks * 5 < eagerKeccaks, "lazy = " + lazyKeccaks + ", eager = " + eagerKeccaks);
+            assertEquals(2, lazy.getNumber());
+            verify(lazy, ssmt);
+
+            // root can be requested before commit:
+            for (int i = 0; i < 100; i++) {
+                update(eager, ssmt, addresses[i * 3], data[(i + 1) % 8]);
+                lazy.update(addresses[i * 3], data[(i + 1) % 8]);
+                if (i % 10 == 0) {
+                    assertArrayEquals(eager.getMerkleRoot(), lazy.getMerkleRoot());
+                    assertTrue(lazy.getProof(addresses[i * 3]).verify(eager.getMerkleRoot()));
+                }
+            }
+            // historical version is not affected by pending updates:
+            assertArrayEquals(data[0], lazy.getLeafData(SmtUtils.fromHexString(addresses[0].substring(2)), 1));
+            assertArrayEquals(data[9 % 8], lazy.getLeafData(SmtUtils.fromHexString(addresses[0].substring(2)), 2));
+            assertThrows(IllegalArgumentException.class, () -> lazy.getLeafData(SmtUtils.fromHexString(addresses[0].substring(2)), 3));
+            assertThrows(IllegalStateException.class, () -> lazy.fork());
+            lazy.commit();
+            assertEquals(3, lazy.getNumber());
+            verify(lazy, ssmt);
+
+            // load from store:
+            var reload = new PersistSparseMerkleTree(lazyStore, eager.getMerkleRoot());
+            assertEquals(3, reload.getNumber());
+            for (int i = 0; i < 300; i++) {
+                assertArrayEquals(ssmt.getLeafData(addresses[i]), reload.getLeafData(addresses[i]));
+            }
+        } finally {
+            Metrics.setListener(null);
+        }
+    }
+
+    @Test
+    void keyBitsAndSecureKey() {
+        PseudoRandom random = new PseudoRandom(0x39393939L);
+        for (int keyBits : new int[] { 64, 256 }) {
+            var options = TreeOptions.DEFAULT.keyBits(keyBits);
+            var store = new MemoryTreeStore();
+            var psmt = new PersistSparseMerkleTree(store, null, null, options);
+            var ssmt = new SimpleSparseMerkleTree(keyBits);
+            assertArrayEquals(ssmt.calculateMerkleRoot(), psmt.getMerkleRoot());
+            String[] keys = new String[100];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "0x" + SmtUtils.toHexString(random.randomBytes(keyBits / 8));
+                update(psmt, ssmt, keys[i], data[i % 8]);
+            }
+            verify(psmt, ssmt);
+            assertThrows(IllegalArgumentException.class, () -> psmt.update(address1, data1));
+            for (int i = 0; i < keys.length; i += 9) {
+                MerkleProof proof = psmt.getProof(keys[i]);
+                assertEquals(keyBits, proof.siblings().length);
+                assertTrue(proof.verify(psmt.getMerkleRoot()));
+            }
+            var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot(), null, options);
+            for (int i = 0; i < keys.length; i++) {
+                assertArrayEquals(data[i % 8], reload.getLeafData(keys[i]));
+            }
+            // key bits must match store:
+            assertThrows(IllegalStateException.class, () -> new PersistSparseMerkleTree(store, psmt.getMerkleRoot()));
+        }
+
+        // 64-bits keys hash fewer levels than 160-bits keys:
+        var metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        try {
+            var tree64 = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.keyBits(64));
+            var tree160 = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+            long keccaks = metrics.getKeccakCount();
+            for (long id = 0; id < 100; id++) {
+                tree64.update(ByteBuffer.allocate(8).putLong(id * 7919).array(), data[(int) id % 8]);
+            }
+            long keccaks64 = metrics.getKeccakCount() - keccaks;
+            keccaks = metrics.getKeccakCount();
+            for (long id = 0; id < 100; id++) {
+                tree160.update(ByteBuffer.allocate(20).putLong(12, id * 7919).array(), data[(int) id % 8]);
+            }
+            long keccaks160 = metrics.getKeccakCount() - keccaks;
+            assertTrue(keccaks64 * 2 < keccaks160, "64 = " + keccaks64 + ", 160 = " + keccaks160);
+        } finally {
+            Metrics.setListener(null);
+        }
+
+        // secure key mode hashes clustered keys:
+        var secure = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.secureKey(true));
+        var ssmt = new SimpleSparseMerkleTree();
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("user-" + i).getBytes();
+            secure.update(key, data[i % 8]);
+            ssmt.update("0x" + SmtUtils.toHexString(Arrays.copyOf(SmtUtils.keccak(key), 20)), data[i % 8]);
+        }
+        verify(secure, ssmt);
+        assertArrayEquals(data[3], secure.getLeafData("user-3".getBytes()));
+        MerkleProof proof = secure.getProof("user-3".getBytes());
+        assertEquals(SmtUtils.hashedKeyToPath("user-3".getBytes(), 160), proof.address());
+        assertTrue(proof.verify(secure.getMerkleRoot()));
+    }
+
+    @Test
+    void valueSeparatedStore() {
+        PseudoRandom random = new PseudoRandom(0x40404040L);
+        String[] addresses = new String[200];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        // 4 KB values:
+        byte[][] values = new byte[8][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.randomBytes(4096);
+        }
+        var metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        try {
+            var inlineStore = new MemoryTreeStore();
+            var inline = new PersistSparseMerkleTree(inlineStore, null);
+            long savedBytes = metrics.getSavedBytes();
+            for (int i = 0; i < addresses.length; i++) {
+                inline.update(addresses[i], values[i % 8]);
+            }
+            long inlineBytes = metrics.getSavedBytes() - savedBytes;
+
+            var nodeStore = new MemoryTreeStore();
+            var valueStore = new MemoryValueStore();
+            var store = new ValueSeparatedTreeStore(nodeStore, valueStore);
+            var psmt = new PersistSparseMerkleTree(store, null);
+            var ssmt = new SimpleSparseMerkleTree();
+            savedBytes = metrics.getSavedBytes();
+            for (int i = 0; i < addresses.length; i++) {
+                update(psmt, ssmt, addresses[i], values[i % 8]);
+            }
+            long separatedBytes = metrics.getSavedBytes() - savedBytes;
+            verify(psmt, ssmt);
+            assertArrayEquals(inline.getMerkleRoot(), psmt.getMerkleRoot());
+            // each distinct value is stored once:
+            assertEquals(8, valueStore.size());
+            assertTrue(separatedBytes * 10 < inlineBytes, "separated = " + separatedBytes + ", inline = " + inlineBytes);
+
+            // small values are kept inline:
+            psmt.update(addresses[0], data1);
+            update(psmt, ssmt, addresses[1], data2);
+            psmt.update(addresses[0], values[0]);
+            assertEquals(8, valueStore.size());
+
+            // values are loaded only when asked:
+            var reload = new PersistSparseMerkleTree(store, psmt.getMerkleRoot());
+            for (int i = 0; i < addresses.length; i++) {
+                assertArrayEquals(ssmt.getLeafData(addresses[i]), reload.getLeafData(addresses[i]));
+            }
+            MerkleProof proof = reload.getProof(addresses[5]);
+            assertArrayEquals(values[5], proof.dataValue());
+            assertTrue(proof.verify(psmt.getMerkleRoot()));
+            Iterator<LeafEntry> it = reload.scan(addresses[0], addresses[0]);
+            assertArrayEquals(values[0], it.next().dataValue());
+            assertThrows(IllegalStateException.class, () -> new PersistSparseMerkleTree(nodeStore, psmt.getMerkleRoot()).getLeafData(addresses[9]));
+
+            // merge branch which splits leaves loaded without value into flat state:
+            var flatStore = new MemoryFlatStateStore();
+            var separatedStore = new ValueSeparatedTreeStore(new MemoryTreeStore(), new MemoryValueStore());
+            try (var flatState = new FlatState(flatStore, 2)) {
+                var flat = new PersistSparseMerkleTree(separatedStore, null, flatState);
+                for (int i = 0; i < 20; i++) {
+                    flat.update(addresses[i], values[i % 8]);
+                }
+                var cold = new PersistSparseMerkleTree(separatedStore, flat.getMerkleRoot(), flatState);
+                var branch = cold.fork();
+                List<byte[]> neighbours = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    // differs from address i only in the last nibble:
+                    byte[] neighbour = SmtUtils.fromHexString(addresses[i]);
+                    neighbour[19] ^= 0x01;
+                    neighbours.add(neighbour);
+                    branch.update(neighbour, values[(i + 1) % 8]);
+                }
+                cold.merge(branch);
+                flatState.flush();
+                assertEquals(cold.getNumber(), flatStore.getNumber());
+                for (int i = 0; i < 20; i++) {
+                    assertArrayEquals(values[i % 8], cold.getLeafData(addresses[i]));
+                    assertArrayEquals(values[(i + 1) % 8], cold.getLeafData(neighbours.get(i)));
+                }
+            }
+        } finally {
+            Metrics.setListener(null);
+        }
+    }
+
+    @Test
+    void concurrentLoadStore() throws Exception {
+        PseudoRandom random = new PseudoRandom(0x43434343L);
+        String[] addresses = new String[500];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        for (int i = 0; i < 400; i++) {
+            psmt.update(addresses[i], data[i % 8]);
+        }
+        final byte[] rootHash = psmt.getMerkleRoot();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            for (boolean lazy : new boolean[] { false, true }) {
+                var options = TreeOptions.DEFAULT.lazyHashing(lazy);
+                var expected = new PersistSparseMerkleTree(store.copy(), rootHash, null, options);
+                var slowStore = new SlowTreeStore(store.copy());
+                var actual = new PersistSparseMerkleTree(new ConcurrentLoadTreeStore(slowStore, executor), rootHash, null, options);
+                for (int i = 390; i < 410; i++) {
+                    expected.update(addresses[i], dataX);
+                    actual.update(addresses[i], dataX);
+                }
+                if (lazy) {
+                    expected.commit();
+                    actual.commit();
+                }
+                assertArrayEquals(expected.getMerkleRoot(), actual.getMerkleRoot());
+                // missing children are loaded concurrently:
+                assertTrue(slowStore.maxInFlight.get() > 4, "max in flight = " + slowStore.maxInFlight.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void warmUp() {
+        PseudoRandom random = new PseudoRandom(0x45454545L);
+        String[] addresses = new String[1000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "0x" + SmtUtils.toHexString(random.randomBytes(20));
+        }
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        for (int i = 0; i < addresses.length; i++) {
+            psmt.update(addresses[i], data[i % 8]);
+        }
+        final byte[] rootHash = psmt.getMerkleRoot();
+        var metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // cold tree loads upper levels on reading:
+            var cold = new PersistSparseMerkleTree(store, rootHash);
+            long loads = metrics.getLoadCount();
+            for (String address : addresses) {
+                cold.getLeafData(address);
+            }
+            long coldLoads = metrics.getLoadCount() - loads;
+
+            // 2 levels are up to 16 + 256 nodes:
+            var warm = new PersistSparseMerkleTree(store, rootHash);
+            List<Long> progress = new ArrayList<>();
+            long nodes = warm.warmUp(2, Long.MAX_VALUE, executor, (level, n, bytes) -> progress.add(n));
+            assertTrue(nodes > 16 + 200 && nodes <= 16 + 256, "nodes = " + nodes);
+            assertEquals(nodes, progress.get(progress.size() - 1));
+            loads = metrics.getLoadCount();
+            for (String address : addresses) {
+                assertArrayEquals(cold.getLeafData(address), warm.getLeafData(address));
+            }
+            long warmLoads = metrics.getLoadCount() - loads;
+            assertTrue(warmLoads <= coldLoads - nodes, "warm = " + warmLoads + ", cold = " + coldLoads);
+
+            // stop when byte budget is used up:
+            var budget = new PersistSparseMerkleTree(store, rootHash);
+            long partial = budget.warmUp(3, 1, executor, null);
+            assertEquals(16, partial);
+            assertArrayEquals(rootHash, budget.getMerkleRoot());
+        } finally {
+            executor.shutdown();
+            Metrics.setListener(null);
+        }
+    }
+
+    @Test
+    void changeSubscription() throws Exception {
+        var store = new MemoryTreeStore();
+        var psmt = new PersistSparseMerkleTree(store, null);
+        psmt.update(address1, data1);
+        var subscription = psmt.subscribe(4, ChangeSubscription.OverflowPolicy.DROP_OLDEST);
+        assertNull(subscription.poll());
+
+        psmt.update(address1, data2, address2, data3);
+        final ChangeEvent first = subscription.poll(1, TimeUnit.SECONDS);
+        ChangeEvent event = first;
+        assertEquals(2, event.number());
+        assertArrayEquals(psmt.getMerkleRoot(), event.rootHash());
+        assertEquals(2, event.leafChanges().size());
+        LeafChange change = event.leafChanges().get(0);
+        assertEquals(new NibbleString(address1.substring(2)), change.address());
+        assertArrayEquals(data1, change.oldValue());
+        assertArrayEquals(data2, change.newValue());
+        assertArrayEquals(SmtUtils.EMPTY_DATA, event.leafChanges().get(1).oldValue());
+        // written nodes contain the new root:
+        assertTrue(first.nodes().stream().anyMatch(pnode -> pnode.path().isEmpty() && Arrays.equals(pnode.nodeHash(), first.rootHash())));
+        assertThrows(UnsupportedOperationException.class, () -> first.nodes().clear());
+
+        // drop oldest when buffer is full:
+        for (int i = 0; i < 6; i++) {
+            psmt.update(address3, data[i]);
+        }
+        assertEquals(2, subscription.getDroppedCount());
+        assertEquals(5, subscription.poll().number());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(subscription.poll());
+        }
+        assertNull(subscription.poll());
+
+        // drop newest, and lazy updates are published once on commit:
+        var lazy = new PersistSparseMerkleTree(store.copy(), psmt.getMerkleRoot(), null, TreeOptions.DEFAULT.lazyHashing(true));
+        var newest = lazy.subscribe(1, ChangeSubscription.OverflowPolicy.DROP_NEWEST);
+        lazy.update(address4, data1);
+        lazy.update(address4, data2);
+        lazy.update(address1, dataX);
+        assertNull(newest.poll());
+        lazy.commit();
+        lazy.update(address5, data5);
+        lazy.commit();
+        assertEquals(1, newest.getDroppedCount());
+        event = newest.poll();
+        assertEquals(9, event.number());
+        assertEquals(2, event.leafChanges().size());
+        assertArrayEquals(SmtUtils.EMPTY_DATA, event.leafChanges().get(0).oldValue());
+        assertArrayEquals(data2, event.leafChanges().get(0).newValue());
+        assertArrayEquals(data2, event.leafChanges().get(1).oldValue());
+        assertArrayEquals(dataX, event.leafChanges().get(1).newValue());
+
+        // merged versions of branch are published:
+        var branch = psmt.fork();
+        branch.update(address6, data6);
+        branch.update(address6, data7);
+        psmt.merge(branch);
+        event = subscription.poll();
+        assertEquals(9, event.number());
+        assertEquals(List.of(new NibbleString(address6.substring(2))), event.leafChanges().stream().map(LeafChange::address).toList());
+        event = subscription.poll();
+        assertEquals(10, event.number());
+        assertArrayEquals(data6, event.leafChanges().get(0).oldValue());
+        assertArrayEquals(psmt.getMerkleRoot(), event.rootHash());
+
+        subscription.close();
+        psmt.update(address7, data7);
+        assertNull(subscription.poll());
+    }
+
+    @Test
+    void writeAheadLog() throws Exception {
+        Path walFile = Files.createTempFile("smt-", ".wal");
+        try {
+            var wal = new WalTreeStore(new MemoryTreeStore(), walFile, 0);
+            var psmt = new PersistSparseMerkleTree(wal, null);
+            PseudoRandom random = new PseudoRandom(0x1234L);
+            for (int i = 0; i < 8; i++) {
+                psmt.update(random.randomBytes(20), data[i]);
+            }
+            psmt.update(address1, data1, address2, data2);
+            byte[] rootHash = psmt.getMerkleRoot();
+            assertArrayEquals(rootHash, wal.getLatestRoot());
+            assertEquals(psmt.getNumber(), wal.getLatestNumber());
+            psmt.update(address3, data3);
+            wal.close();
+
+            // simulate crash when writing the last record, and base store is lost:
+            long size = Files.size(walFile);
+            try (var channel = FileChannel.open(walFile, StandardOpenOption.WRITE)) {
+                channel.truncate(size - 10);
+            }
+            var recovered = new WalTreeStore(new MemoryTreeStore(), walFile, 0);
+            assertArrayEquals(rootHash, recovered.getLatestRoot());
+            var reopened = new PersistSparseMerkleTree(recovered, recovered.getLatestRoot());
+            assertArrayEquals(data1, reopened.getLeafData(address1));
+            assertArrayEquals(data2, reopened.getLeafData(address2));
+            assertArrayEquals(SmtUtils.EMPTY_DATA, reopened.getLeafData(address3));
+            // continue to write after incomplete record is discarded:
+            reopened.update(address3, data4);
+            byte[] latest = reopened.getMerkleRoot();
+            recovered.close();
+            recovered = new WalTreeStore(new MemoryTreeStore(), walFile, 0);
+            assertArrayEquals(latest, recovered.getLatestRoot());
+            assertArrayEquals(data4, new PersistSparseMerkleTree(recovered, latest).getLeafData(address3));
+            recovered.checkpoint();
+            recovered.close();
+            assertEquals(0, Files.size(walFile));
+        } finally {
+            Files.deleteIfExists(walFile);
+        }
+    }
+
+    @Test
+    void writeAheadLogPartialBatch() throws Exception {
+        Path walFile = Files.createTempFile("smt-", ".wal");
+        try {
+            List<List<PersistNode>> batches = new ArrayList<>();
+            var base = new MemoryTreeStore() {
+                @Override
+                public void save(List<PersistNode> pnodes) {
+                    batches.add(pnodes);
+                    super.save(pnodes);
+                }
+            };
+            var wal = new WalTreeStore(base, walFile, 0);
+            var psmt = new PersistSparseMerkleTree(wal, null);
+            PseudoRandom random = new PseudoRandom(0x4747L);
+            for (int i = 0; i < 8; i++) {
+                psmt.update(random.randomBytes(20), data[i]);
+            }
+            psmt.update(address1, data1, address2, data2);
+            wal.close();
+
+            // simulate crash when base store has saved half of the last batch:
+            var crashed = new MemoryTreeStore();
+            for (int i = 0; i < batches.size() - 1; i++) {
+                crashed.save(batches.get(i));
+            }
+            List<PersistNode> last = batches.get(batches.size() - 1);
+            assertTrue(last.size() > 2);
+            crashed.save(last.subList(0, last.size() / 2));
+            var recovered = new WalTreeStore(crashed, walFile, 0);
+            assertArrayEquals(psmt.getMerkleRoot(), recovered.getLatestRoot());
+            var reopened = new PersistSparseMerkleTree(recovered, recovered.getLatestRoot());
+            assertArrayEquals(data1, reopened.getLeafData(address1));
+            assertArrayEquals(data2, reopened.getLeafData(address2));
+            recovered.close();
+        } finally {
+            Files.deleteIfExists(walFile);
+        }
+    }
+
+    @Test
+    void writeAheadLogGroupCommit() throws Exception {
+        Path walFile = Files.createTempFile("smt-", ".wal");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger saved = new AtomicInteger();
+        var base = new TreeStore() {
+            @Override
+            public Node load(NibbleString topPath, long currentNumber) {
+                return null;
+            }
+
+            @Override
+            public Node loadRoot(byte[] hash) {
+                return null;
+            }
+
+            @Override
+            public void save(List<PersistNode> pnodes) {
+                saved.addAndGet(pnodes.size());
+            }
+        };
+        try (var wal = new WalTreeStore(base, walFile, TimeUnit.MILLISECONDS.toNanos(5))) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final int index = i;
+                futures.add(executor.submit(() -> {
+                    for (int n = 0; n < 10; n++) {
+                        byte[] hash = SmtUtils.keccak(data[index]);
+                        wal.save(List.of(new PersistNode(index * 10 + n, false, NibbleString.EMPTY, NibbleString.EMPTY, 0, hash, hash, null)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // 80 commits are synced by much fewer fsync:
+            assertTrue(wal.getSyncCount() < 80 / 2, "sync count: " + wal.getSyncCount());
+            assertEquals(80, saved.get());
+            assertEquals(79, wal.getLatestNumber());
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(walFile);
+        }
+    }
+
+    @Test
+    void shardedTree() {
+        List<TreeStore> stores = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            stores.add(new MemoryTreeStore());
+        }
+        var psmt = new PersistSparseMerkleTree(new MemoryTreeStore(), null);
+        PseudoRandom random = new PseudoRandom(0x5678L);
+        List<byte[]> addresses = new ArrayList<>();
+        try (var sharded = new ShardedSparseMerkleTree(stores, null, 0, TreeOptions.DEFAULT)) {
+            assertArrayEquals(psmt.getMerkleRoot(), sharded.getMerkleRoot());
+            for (int n = 0; n < 10; n++) {
+                List<byte[]> batch = new ArrayList<>();
+                List<byte[]> values = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    byte[] address = n > 0 && i % 5 == 0 ? addresses.get(i) : random.randomBytes(20);
+                    batch.add(address);
+                    values.add(data[(n + i) % 8]);
+                    addresses.add(address);
+                }
+                // updates of one version are split into 2 calls:
+                sharded.update(batch.subList(0, 20), values.subList(0, 20));
+                sharded.update(batch.subList(20, 50), values.subList(20, 50));
+                assertThrows(IllegalStateException.class, () -> sharded.getLeafData(batch.get(0)));
+                sharded.commit();
+                psmt.update(batch, values);
+                assertEquals(psmt.getNumber(), sharded.getNumber());
+                assertArrayEquals(psmt.getMerkleRoot(), sharded.getMerkleRoot());
+            }
+            for (byte[] address : addresses) {
+                assertArrayEquals(psmt.getLeafData(address), sharded.getLeafData(address));
+            }
+            byte[] missing = random.randomBytes(20);
+            for (byte[] address : List.of(addresses.get(7), addresses.get(123), missing)) {
+                MerkleProof proof = sharded.getProof(address);
+                assertTrue(proof.verify(sharded.getMerkleRoot()));
+                assertArrayEquals(psmt.getProof(address).calculateMerkleRoot(), proof.calculateMerkleRoot());
+            }
+
+            // reopen by shard roots:
+            try (var reopened = new ShardedSparseMerkleTree(stores, sharded.getShardRoots(), sharded.getNumber(), TreeOptions.DEFAULT)) {
+                assertArrayEquals(sharded.getMerkleRoot(), reopened.getMerkleRoot());
+                assertArrayEquals(psmt.getLeafData(addresses.get(99)), reopened.getLeafData(addresses.get(99)));
+            }
+        }
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        final int THREADS = 8;
+        final int UPDATES = 200;
+        PseudoRandom random = new PseudoRandom(0x9abcL);
+        byte[][][] addresses = new byte[THREADS][UPDATES][];
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < UPDATES; i++) {
+                addresses[t][i] = random.randomBytes(20);
+            }
+        }
+        var expected = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.lazyHashing(true));
+        var psmt = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.lazyHashing(true).concurrentWriters(true));
+        assertThrows(IllegalArgumentException.class, () -> new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, TreeOptions.DEFAULT.concurrentWriters(true)));
+        assertThrows(IllegalStateException.class, () -> psmt.fork());
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            for (int round = 0; round < 3; round++) {
+                final int r = round;
+                final byte[] committedRoot = psmt.getMerkleRoot();
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    final int thread = t;
+                    writers.add(executor.submit(() -> {
+                        for (int i = 0; i < UPDATES; i++) {
+                            psmt.update(addresses[thread][i], data[(thread + i + r) % 8]);
+                        }
+                    }));
+                }
+                // reads see the last committed version while writing:
+                Future<?> reader = executor.submit(() -> {
+                    for (int i = 0; i < UPDATES; i++) {
+                        assertArrayEquals(committedRoot, psmt.getMerkleRoot());
+                        byte[] value = psmt.getLeafData(addresses[i % THREADS][i]);
+                        assertArrayEquals(r == 0 ? SmtUtils.EMPTY_DATA : data[(i % THREADS + i + r - 1) % 8], value);
+                    }
+                });
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                reader.get();
+                assertEquals(round, psmt.getNumber());
+                psmt.commit();
+                assertEquals(round + 1, psmt.getNumber());
+
+                for (int t = 0; t < THREADS; t++) {
+                    for (int i = 0; i < UPDATES; i++) {
+                        expected.update(addresses[t][i], data[(t + i + r) % 8]);
+                    }
+                }
+                expected.commit();
+                assertArrayEquals(expected.getMerkleRoot(), psmt.getMerkleRoot());
+                assertTrue(psmt.getProof(addresses[3][7]).verify(psmt.getMerkleRoot()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void concurrentWritersReadWhileSaving() throws Exception {
+        final int ADDRESSES = 500;
+        PseudoRandom random = new PseudoRandom(0x5a5aL);
+        List<byte[]> addresses = new ArrayList<>();
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses.add(random.randomBytes(20));
+        }
+        var base = new MemoryTreeStore();
+        var init = new PersistSparseMerkleTree(base, null);
+        for (int i = 0; i < ADDRESSES; i++) {
+            init.update(addresses.get(i), data[i % 8]);
+        }
+        init.commit();
+        // reopen cold so that readers load nodes from store while commit saves:
+        var store = new RacyTreeStore(base);
+        var psmt = new PersistSparseMerkleTree(store, init.getMerkleRoot(), null, TreeOptions.DEFAULT.lazyHashing(true).concurrentWriters(true));
+        AtomicInteger commits = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // reader keeps walking the committed root until all commits are done:
+            Future<?> reader = executor.submit(() -> {
+                while (commits.get() < 5) {
+                    for (int i = 0; i < ADDRESSES; i += 2) {
+                        assertArrayEquals(data[i % 8], psmt.getLeafData(addresses.get(i)));
+                    }
+                }
+            });
+            for (int round = 0; round < 5; round++) {
+                for (int i = 1; i < ADDRESSES; i += 2) {
+                    psmt.update(addresses.get(i), data[(i + round + 1) % 8]);
+                }
+                psmt.commit();
+                commits.incrementAndGet();
+            }
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(store.saves.get() > 0);
+        assertEquals(0, store.violations.get());
+        assertArrayEquals(data[(1 + 5) % 8], psmt.getLeafData(addresses.get(1)));
+    }
+
+    @Test
+    void proofCache() {
+        PseudoRandom random = new PseudoRandom(0xdef0L);
+        List<byte[]> hot = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hot.add(random.randomBytes(20));
+        }
+        // address not exist:
+        hot.add(random.randomBytes(20));
+        CountingMetricsListener metrics = new CountingMetricsListener();
+        Metrics.setListener(metrics);
+        try {
+            for (TreeOptions options : List.of(TreeOptions.DEFAULT, TreeOptions.DEFAULT.lazyHashing(true))) {
+                var expected = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, options);
+                var psmt = new PersistSparseMerkleTree(new MemoryTreeStore(), null, null, options.proofCacheSize(64));
+                for (int n = 0; n < 20; n++) {
+                    List<byte[]> addresses = new ArrayList<>();
+                    List<byte[]> values = new ArrayList<>();
+                    for (int i = 0; i < 5; i++) {
+                        // update hot address sometimes, and insert new address:
+                        addresses.add(i == 0 && n % 3 == 0 ? hot.get(n % 10) : random.randomBytes(20));
+                        values.add(data[(n + i) % 8]);
+                    }
+                    if (n == 0) {
+                        addresses.addAll(hot.subList(0, 10));
+                        for (int i = 0; i < 10; i++) {
+                            values.add(data[i % 8]);
+                        }
+                    }
+                    expected.update(addresses, values);
+                    psmt.update(addresses, values);
+                    expected.commit();
+                    psmt.commit();
+                    for (int r = 0; r < 3; r++) {
+                        for (byte[] address : hot) {
+                            MerkleProof proof = psmt.getProof(address);
+                            MerkleProof expectedProof = expected.getProof(address);
+                            assertArrayEquals(expectedProof.dataValue(), proof.dataValue());
+                            assertTrue(Arrays.deepEquals(expectedProof.siblings(), proof.siblings()));
+                            assertTrue(proof.verify(psmt.getMerkleRoot()));
+                        }
+                    }
+                }
+            }
+            // most proofs are found in cache after promoted:
+            assertTrue(metrics.getProofCacheHitCount() > metrics.getProofCacheMissCount() * 5,
+                    metrics.getProofCacheHitCount() + " hits, " + metrics.getProofCacheMissCount() + " misses");
+        } finally {
+            Metrics.setListener(null);
+        }
+
+        var cache = new ProofCache(2);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new NibbleString("0" + i), 1, null, 1);
+        }
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Store which is not thread-safe, and counts loads overlapped with a save.
+     */
+    static class RacyTreeStore implements TreeStore {
+
+        final TreeStore base;
+        final AtomicInteger saving = new AtomicInteger();
+        final AtomicInteger saves = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+
+        RacyTreeStore(TreeStore base) {
+            this.base = base;
+        }
+
+        @Override
+        public Node load(NibbleString topPath, long currentNumber) {
+            if (saving.get() > 0) {
+                violations.incrementAndGet();
+            }
+            return base.load(topPath, currentNumber);
+        }
+
+        @Override
+        public Node loadRoot(byte[] hash) {
+            if (saving.get() > 0) {
+                violations.incrementAndGet();
+            }
+            return base.loadRoot(hash);
+        }
+
+        @Override
+        public void save(List<PersistNode> pnodes) {
+            saving.incrementAndGet();
+            try {
+                Thread.sleep(2);
+                base.save(pnodes);
+                saves.incrementAndGet();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                saving.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Store which sleeps on each load to simulate latency of I/O.
+     */
+    static class SlowTreeStore implements TreeStore {
+
+        final TreeStore base;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        SlowTreeStore(TreeStore base) {
+            this.base = base;
+        }
+
+        @Override
+        public Node load(NibbleString topPath, long currentNumber) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return base.load(topPath, currentNumber);
+        }
+
+        @Override
+        public Node loadRoot(byte[] hash) {
+            return base.loadRoot(hash);
+        }
+
+        @Override
+        public void save(List<PersistNode> pnodes) {
+            base.save(pnodes);
+        }
+    }
+
     @Test
     void randomAddresses() {
         int ADDRESSES = 100;
@@ -340,3 +1675,36 @@ class PseudoRandom {
         return bytes;
     }
 }
+
+class CountingTreeStore implements TreeStore {
+
+    final TreeStore target;
+    int loads = 0;
+    int batches = 0;
+
+    CountingTreeStore(TreeStore target) {
+        this.target = target;
+    }
+
+    @Override
+    public Node load(NibbleString topPath, long currentNumber) {
+        loads++;
+        return target.load(topPath, currentNumber);
+    }
+
+    @Override
+    public List<Node> loadAll(List<NibbleString> topPaths, long currentNumber) {
+        batches++;
+        return TreeStore.super.loadAll(topPaths, currentNumber);
+    }
+
+    @Override
+    public Node loadRoot(byte[] hash) {
+        return target.loadRoot(hash);
+    }
+
+    @Override
+    public void save(List<PersistNode> pnodes) {
+        target.save(pnodes);
+    }
+}
@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -178,4 +179,62 @@ public class SmtUtilsTest {
         assertEquals("36873fe6ba9db2ce0ec296eafea5cc940796a0d2a846937269e3369136780628", SmtUtils.keccakMerkleByRange(160, "f", leafHash));
         assertEquals("4fab65756339c0969be5301cf3df1e7148b22ad78d5dcf428fed51133a20117d", SmtUtils.keccakMerkleByRange(160, "39", leafHash));
     }
+
+    @Test
+    void keccak64MatchesGeneric() {
+        Random random = new Random(0x41414141L);
+        HashEngine generic = HashEngines.GENERIC;
+        HashEngine keccak64 = HashEngines.KECCAK64;
+        byte[] buffer = new byte[200];
+        byte[] expected = new byte[32];
+        byte[] actual = new byte[32];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(buffer);
+            int leftOffset = random.nextInt(100);
+            int rightOffset = random.nextInt(100);
+            byte[] input = new byte[64];
+            System.arraycopy(buffer, leftOffset, input, 0, 32);
+            System.arraycopy(buffer, rightOffset, input, 32, 32);
+            generic.keccak(input, 0, 64, expected, 0);
+            keccak64.keccak64(buffer, leftOffset, buffer, rightOffset, actual, 0);
+            assertArrayEquals(expected, actual);
+            generic.keccak64(buffer, leftOffset, buffer, rightOffset, actual, 0);
+            assertArrayEquals(expected, actual);
+            // other length falls back to generic:
+            int length = random.nextInt(200 - leftOffset);
+            generic.keccak(buffer, leftOffset, length, expected, 0);
+            keccak64.keccak(buffer, leftOffset, length, actual, 0);
+            assertArrayEquals(expected, actual);
+        }
+        // output overlaps input:
+        random.nextBytes(buffer);
+        byte[] copy = buffer.clone();
+        generic.keccak64(copy, 0, copy, 32, expected, 0);
+        keccak64.keccak64(buffer, 0, buffer, 32, buffer, 16);
+        assertArrayEquals(expected, Arrays.copyOfRange(buffer, 16, 48));
+    }
+
+    @Test
+    void keccak64BatchMatchesScalar() {
+        Random random = new Random(0x42424242L);
+        HashEngine scalar = HashEngines.KECCAK64;
+        for (HashEngine engine : List.of(HashEngines.KECCAK64, HashEngines.DEFAULT)) {
+            for (int count = 0; count <= 21; count++) {
+                int inOffset = random.nextInt(40);
+                byte[] input = new byte[inOffset + count * 64];
+                random.nextBytes(input);
+                byte[] expected = new byte[count * 32];
+                for (int i = 0; i < count; i++) {
+                    int offset = inOffset + i * 64;
+                    scalar.keccak64(input, offset, input, offset + 32, expected, i * 32);
+                }
+                byte[] actual = new byte[count * 32 + 3];
+                engine.keccak64Batch(input, inOffset, actual, 3, count);
+                assertArrayEquals(expected, Arrays.copyOfRange(actual, 3, 3 + count * 32));
+                // hash in place:
+                engine.keccak64Batch(input, inOffset, input, inOffset, count);
+                assertArrayEquals(expected, Arrays.copyOfRange(input, inOffset, inOffset + count * 32));
+            }
+        }
+    }
 }
@@ -0,0 +1,198 @@
+package com.itranswarp.eth.smt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TreeSyncTest {
+
+    static final int ADDRESSES = 1000;
+
+    byte[][] addresses;
+    ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        PseudoRandom random = new PseudoRandom(0x97531L);
+        addresses = new byte[ADDRESSES][];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = random.randomBytes(20);
+        }
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void syncEmptyStore() {
+        var remoteStore = new MemoryTreeStore();
+        var remote = new PersistSparseMerkleTree(remoteStore, null);
+        for (int i = 0; i < ADDRESSES; i++) {
+            remote.update(addresses[i], value(i));
+        }
+        var localStore = new MemoryTreeStore();
+        var transport = new CountingTransport(new StoreSyncTransport(remoteStore, executor));
+        int saved = new TreeSync(localStore, transport, 16).sync(remote.getMerkleRoot());
+        assertTrue(saved > ADDRESSES);
+        verifyLocal(remote, localStore, ADDRESSES);
+        // sync again does nothing:
+        assertEquals(0, new TreeSync(localStore, transport, 16).sync(remote.getMerkleRoot()));
+    }
+
+    @Test
+    void syncLaggingStore() {
+        var remoteStore = new MemoryTreeStore();
+        var remote = new PersistSparseMerkleTree(remoteStore, null);
+        for (int i = 0; i < ADDRESSES; i++) {
+            remote.update(addresses[i], value(i));
+        }
+        var localStore = remoteStore.copy();
+        for (int i = 0; i < ADDRESSES; i += 50) {
+            remote.update(addresses[i], value(i + 1));
+        }
+        var fullTransport = new CountingTransport(new StoreSyncTransport(remoteStore, executor));
+        new TreeSync(new MemoryTreeStore(), fullTransport, 16).sync(remote.getMerkleRoot());
+
+        var transport = new CountingTransport(new StoreSyncTransport(remoteStore, executor));
+        int saved = new TreeSync(localStore, transport, 16).sync(remote.getMerkleRoot());
+        assertTrue(saved < ADDRESSES);
+        assertTrue(transport.requests.get() * 4 < fullTransport.requests.get());
+        var local = verifyLocal(remote, localStore, ADDRESSES);
+        // continue update on both:
+        for (int i = 0; i < ADDRESSES; i += 7) {
+            remote.update(addresses[i], value(i + 2));
+            local.update(addresses[i], value(i + 2));
+        }
+        assertArrayEquals(remote.getMerkleRoot(), local.getMerkleRoot());
+    }
+
+    @Test
+    void resumeInterruptedSync() {
+        var remoteStore = new MemoryTreeStore();
+        var remote = new PersistSparseMerkleTree(remoteStore, null);
+        for (int i = 0; i < ADDRESSES; i++) {
+            remote.update(addresses[i], value(i));
+        }
+        var fullTransport = new CountingTransport(new StoreSyncTransport(remoteStore, executor));
+        int total = new TreeSync(new MemoryTreeStore(), fullTransport, 16).sync(remote.getMerkleRoot());
+
+        // peer fails after half of requests:
+        AtomicInteger maxBatch = new AtomicInteger();
+        var localStore = new MemoryTreeStore() {
+            @Override
+            public void save(List<PersistNode> pnodes) {
+                maxBatch.accumulateAndGet(pnodes.size(), Math::max);
+                super.save(pnodes);
+            }
+        };
+        var failing = new StoreSyncTransport(remoteStore, executor) {
+            final AtomicInteger requests = new AtomicInteger();
+
+            @Override
+            public CompletableFuture<List<PersistNode>> requestChildren(NibbleString path, byte[] nodeHash, long number) {
+                if (requests.incrementAndGet() > fullTransport.requests.get() / 2) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("Peer disconnected."));
+                }
+                return super.requestChildren(path, nodeHash, number);
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> new TreeSync(localStore, failing, 4, 64).sync(remote.getMerkleRoot()));
+        assertTrue(maxBatch.get() <= 64);
+        assertFalse(localStore.topPathMap.isEmpty());
+        // full nodes are saved only after their children:
+        assertThrows(IllegalStateException.class, () -> localStore.loadRoot(remote.getMerkleRoot()));
+        for (List<PersistNode> pnodes : localStore.topPathMap.values()) {
+            for (PersistNode pnode : pnodes) {
+                if (!pnode.leaf()) {
+                    FullNode node = (FullNode) pnode.deserialize();
+                    byte[][] childTopHashes = new byte[16][];
+                    for (int i = 0; i < 16; i++) {
+                        childTopHashes[i] = node.getChildTopHash(localStore, pnode.number(), i);
+                    }
+                    assertArrayEquals(pnode.nodeHash(), FullNode.hashChildren(pnode.keyBits(), pnode.path().length(), childTopHashes));
+                }
+            }
+        }
+
+        var transport = new CountingTransport(new StoreSyncTransport(remoteStore, executor));
+        int saved = new TreeSync(localStore, transport, 4, 64).sync(remote.getMerkleRoot());
+        assertTrue(saved < total);
+        assertTrue(transport.requests.get() < fullTransport.requests.get());
+        assertTrue(maxBatch.get() <= 64);
+        verifyLocal(remote, localStore, ADDRESSES);
+    }
+
+    @Test
+    void rejectTamperedNode() {
+        var remoteStore = new MemoryTreeStore();
+        var remote = new PersistSparseMerkleTree(remoteStore, null);
+        for (int i = 0; i < 100; i++) {
+            remote.update(addresses[i], value(i));
+        }
+        var transport = new StoreSyncTransport(remoteStore, executor) {
+            @Override
+            public CompletableFuture<List<PersistNode>> requestChildren(NibbleString path, byte[] nodeHash, long number) {
+                return super.requestChildren(path, nodeHash, number).thenApply(children -> {
+                    List<PersistNode> tampered = new ArrayList<>();
+                    for (PersistNode c : children) {
+                        if (c.leaf()) {
+                            byte[] data = value(0);
+                            c = new PersistNode(c.number(), true, c.topPath(), c.path(), c.topLevel(), c.topHash(), SmtUtils.keccak(data), data);
+                        }
+                        tampered.add(c);
+                    }
+                    return tampered;
+                });
+            }
+        };
+        var localStore = new MemoryTreeStore();
+        assertThrows(IllegalStateException.class, () -> new TreeSync(localStore, transport, 4).sync(remote.getMerkleRoot()));
+        assertTrue(localStore.topPathMap.isEmpty());
+    }
+
+    PersistSparseMerkleTree verifyLocal(PersistSparseMerkleTree remote, TreeStore localStore, int count) {
+        var local = new PersistSparseMerkleTree(localStore, remote.getMerkleRoot());
+        assertEquals(remote.getNumber(), local.getNumber());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(remote.getLeafData(addresses[i]), local.getLeafData(addresses[i]));
+        }
+        return local;
+    }
+
+    static byte[] value(int n) {
+        return String.format("%032d", n).getBytes();
+    }
+
+    static class CountingTransport implements SyncTransport {
+
+        final SyncTransport target;
+        final AtomicInteger requests = new AtomicInteger();
+
+        CountingTransport(SyncTransport target) {
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<PersistNode> requestRoot(byte[] rootHash) {
+            return target.requestRoot(rootHash);
+        }
+
+        @Override
+        public CompletableFuture<List<PersistNode>> requestChildren(NibbleString path, byte[] nodeHash, long number) {
+            requests.incrementAndGet();
+            return target.requestChildren(path, nodeHash, number);
+        }
+    }
+}